@@ -175,13 +175,16 @@ public class AlgorithmActivity extends AppCompatActivity implements GLSurfaceVie
             mDataRecorder = new DataRecorder(
                     getExternalCacheDir(),
                     mRecordPrefix,
-                    prefs.getBoolean("compress_to_archive", true));
+                    prefs.getBoolean("compress_to_archive", true),
+                    prefs.getString("archive_compression", "none"));
             mAlgoWorkerSettings.recordingFileName = mDataRecorder.getLogFileName();
             mAlgoWorkerSettings.infoFileName = mDataRecorder.getInfoFileName();
             mAlgoWorkerSettings.parametersFileName = mDataRecorder.getParametersFileName();
         }
         if (mAlgoWorkerSettings.recordSensors) {
             mAlgoWorkerSettings.videoRecordingFileName = mDataRecorder.getVideoFileName();
+            if (prefs.getBoolean("record_binary_sensors", false))
+                mAlgoWorkerSettings.binarySensorLogFileName = mDataRecorder.getBinarySensorLogFileName();
         }
         mAlgoWorkerSettings.filesDir = getExternalFilesDir(null).getAbsolutePath(); // getFilesDir().getAbsolutePath();
 
@@ -254,7 +257,8 @@ public class AlgorithmActivity extends AppCompatActivity implements GLSurfaceVie
 
         CameraManager cameraManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
         if (cameraManager == null) throw new RuntimeException("could not access CameraManager");
-        mCameraWorker = new CameraWorker(cameraManager, mAlgorithmWorker, mAlgoWorkerSettings.targetFps);
+        mCameraWorker = new CameraWorker(cameraManager, mAlgorithmWorker, mAlgoWorkerSettings.targetFps,
+                mAlgoWorkerSettings.cameraYuvImages);
 
         if (mDirectCameraPreview) {
             mGlSurfaceView.setVisibility(View.GONE);
@@ -290,9 +294,27 @@ public class AlgorithmActivity extends AppCompatActivity implements GLSurfaceVie
         String[] dims = sizeString.split("x");
 
         s.targetImageSize = new Size(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
-
+        s.algorithmImageDownscale = Integer.parseInt(prefs.getString("algorithm_image_downscale", "1"));
+        s.cameraYuvImages = Integer.parseInt(prefs.getString("camera_yuv_images", "0"));
+
+        s.gpuReadbackBuffers = Integer.parseInt(prefs.getString("gpu_readback_buffers", "0"));
+        s.gpuCombinedReadback = prefs.getBoolean("gpu_combined_readback", false);
+        s.gpuPyramidLevels = Integer.parseInt(prefs.getString("gpu_pyramid_levels", "0"));
+        s.cpuPipelineFrames = Integer.parseInt(prefs.getString("cpu_pipeline_frames", "0"));
+        s.cpuPipelineDropPolicy = prefs.getString("cpu_pipeline_drop_policy", "oldest");
         s.useCalibAcc = prefs.getBoolean("use_calib_acc", true);
         s.useCalibGyro = prefs.getBoolean("use_calib_gyro", true);
+        s.imuBatchSize = Integer.parseInt(prefs.getString("imu_batch_size", "1"));
+        s.imuBatchFlushOnFrame = prefs.getBoolean("imu_batch_flush_on_frame", false);
+        s.nativeSensors = prefs.getBoolean("native_sensors", false);
+        s.imuReorderLatencyMs = Float.parseFloat(prefs.getString("imu_reorder_latency", "0"));
+        String imuSync = prefs.getString("imu_sync", "off");
+        if (imuSync.equals("off") || imuSync.equals("gyro")) {
+            s.imuSyncMode = imuSync;
+        } else {
+            s.imuSyncMode = "fixed";
+            s.imuSyncRate = Float.parseFloat(imuSync);
+        }
 
         s.moduleName = mNativeModule;
 
@@ -322,12 +344,20 @@ public class AlgorithmActivity extends AppCompatActivity implements GLSurfaceVie
         }
 
         s.recordCamera = prefs.getBoolean("record_tracking_video", false);
+        s.videoEncoderThreads = Integer.parseInt(prefs.getString("video_encoder_threads", "1"));
+        s.recorderQueuePolicy = prefs.getString("recorder_queue_policy", "drop");
         s.recordPoses = prefs.getBoolean("record_tracking_poses", false);
         s.recordSensors = prefs.getBoolean("record_tracking_sensors", false);
+        s.recordSynchronizedImu = s.recordSensors && prefs.getBoolean("record_synchronized_imu", false);
+        // the synchronized stream only exists if some synchronization mode is enabled
+        if (s.recordSynchronizedImu && s.imuSyncMode.equals("off")) s.imuSyncMode = "gyro";
+        s.recordExtraSensors = s.recordSensors && prefs.getBoolean("record_extra_sensors", false);
         final boolean recordingSomething = s.recordCamera || s.recordPoses || s.recordSensors;
         s.recordGps = (recordingSomething && prefs.getBoolean("record_gps", false)) || mGpsRequired;
         s.recordWiFiLocations = recordingSomething && prefs.getBoolean("record_google_wifi_locations", false);
         s.recordingOnly = mDataCollectionMode;
+        s.sensorFifoLatencyMs = Integer.parseInt(prefs.getString("sensor_fifo_latency", "0"));
+        s.sensorFifoFlushOnFrame = prefs.getBoolean("sensor_fifo_flush_on_frame", false);
 
         s.allPrefs = prefs.getAll();
 
@@ -372,8 +402,16 @@ public class AlgorithmActivity extends AppCompatActivity implements GLSurfaceVie
         super.onDestroy();
         if (mCameraWorker != null) mCameraWorker.stop();
         if (mDataRecorder != null) {
-            mDataRecorder.flush();
+            // the native recorder may still be draining its queues and writing the files
+            final DataRecorder recorder = mDataRecorder;
+            mAlgorithmWorker.runAfterStop(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.flush();
+                }
+            });
             mDataRecorder = null;
         }
+        mAlgorithmWorker.release();
     }
 }
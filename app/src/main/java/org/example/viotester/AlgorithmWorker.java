@@ -2,7 +2,7 @@ package org.example.viotester;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.location.GnssClock;
 import android.location.Location;
@@ -16,7 +16,10 @@ import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
+import android.util.SparseArray;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -26,7 +29,7 @@ import androidx.annotation.RequiresApi;
 
 import org.codehaus.jackson.map.ObjectMapper;
 
-public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listener {
+public class AlgorithmWorker implements SensorEventListener2, CameraWorker.Listener {
     private static final String TAG = AlgorithmWorker.class.getName();
     private static final boolean SUPPORTS_GNSS_CLOCK = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
 
@@ -44,16 +47,62 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
 
         public int targetFps;
         public Size targetImageSize;
+        // > 1: CPU algorithms get gray images this many times smaller than targetImageSize,
+        // while recorded video keeps the full resolution
+        public int algorithmImageDownscale = 1;
+        // > 0: CPU algorithms read gray frames from a YUV ImageReader with this many buffers
+        // instead of the GPU, the SurfaceTexture is only used for display
+        public int cameraYuvImages = 0;
         public String targetCamera;
         public Float relativeFocalLengthX;
         public Float relativeFocalLengthY;
         public boolean halfFps;
         public boolean useCalibAcc;
         public boolean useCalibGyro;
+        // >= 2: read camera frames to the CPU asynchronously through a ring of this many
+        // pixel buffers. CPU modules then get frames gpuReadbackBuffers - 1 frames late
+        public int gpuReadbackBuffers = 0;
+        // convert and read the gray and color frames in one pass instead of two
+        public boolean gpuCombinedReadback = false;
+        // >= 2: build a gray image pyramid with this many levels on the GPU for CPU modules
+        // that use it (grayPyramidEnabled)
+        public int gpuPyramidLevels = 0;
+        // > 0: run CPU algorithm modules in a separate thread on a pool of this many frames
+        public int cpuPipelineFrames = 0;
+        // when the above pool is full: "oldest", "newest" (drop that frame) or "block"
+        public String cpuPipelineDropPolicy = "oldest";
+
+        // IMU samples are passed to the native side in batches of this size, <= 1 disables batching
+        public int imuBatchSize = 1;
+        // if true, also pass any pending IMU samples to the native side on each camera frame
+        public boolean imuBatchFlushOnFrame = false;
+        // read the gyroscope and accelerometer with the NDK sensor API in a native thread.
+        // Falls back to the Java SensorEventListener if not available
+        public boolean nativeSensors = false;
+        // if > 0, deliver IMU samples and frames to the native module in strict timestamp
+        // order, holding IMU samples for at most this many milliseconds
+        public float imuReorderLatencyMs = 0;
+        // "off", "gyro" (interpolate acc to gyro timestamps) or "fixed" (both to imuSyncRate Hz)
+        public String imuSyncMode = "off";
+        public float imuSyncRate = 0;
+
+        // In recording-only mode, let the sensor hardware queue samples in its FIFO for up
+        // to this long before waking up the application processor. 0 = disabled
+        public int sensorFifoLatencyMs = 0;
+        // in the above mode, also request a FIFO flush on each camera frame
+        public boolean sensorFifoFlushOnFrame = false;
 
         public boolean recordCamera;
         public boolean recordSensors;
         public boolean recordPoses;
+        public boolean recordSynchronizedImu;
+        // also record magnetometer, pressure and both the calibrated and uncalibrated IMU
+        public boolean recordExtraSensors;
+        // threads that encode recorded video frames to JPEG in parallel
+        public int videoEncoderThreads = 1;
+        // when recording cannot keep up: "drop", "block" (the camera waits for the video encoder,
+        // other data is kept in memory) or "degrade" (video FPS). IMU is never dropped
+        public String recorderQueuePolicy = "drop";
 
         public int screenWidth;
         public int screenHeight;
@@ -66,6 +115,9 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
         public String infoFileName;
         @Nullable
         public String parametersFileName;
+        // if set, IMU and extra sensors are recorded here in binary instead of the JSONL, see SensorLogReader
+        @Nullable
+        public String binarySensorLogFileName;
         @Nullable
         public String videoRecordingFileName;
         @Nullable
@@ -170,8 +222,10 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
 
     private final SensorManager mSensorManager;
     private final List<Sensor> mSensors;
-    private HandlerThread mHandlerThread;
-    private Handler mSensorHandler;
+    // indexed by the Android sensor type
+    private final SparseArray<SensorChannel> mChannels;
+    private final HandlerThread mHandlerThread;
+    private final Handler mSensorHandler;
     private final Settings mSettings;
     private final Listener mListener;
     private final GpsListener mGpsListener;
@@ -180,16 +234,81 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
     private final FrequencyMonitor mAccMonitor;
     private final FrequencyMonitor mGyroMonitor;
     private final FrequencyMonitor mProcessedFpsMonitor;
+    // only used in debug builds, see sensorAllocationCounterEnabled()
+    private final AllocationCounter mSensorAllocations;
 
     private CameraWorker.CameraParameters mCameraParameters = null;
     private int mScreenWidth = -1, mScreenHeight = -1;
     private boolean mExternalInitialized = false;
     private boolean running = false;
+    private boolean mUsingNativeSensors = false;
+    // the native sensor thread only counts its samples, the gyro and acc monitors poll the counts
+    private static final long NATIVE_SENSOR_POLL_MILLIS = 500;
+    private long mNativeGyroSamples = 0, mNativeAccSamples = 0; // sensor thread only
+    private final Runnable mPollNativeSensors = new Runnable() {
+        @Override
+        public void run() {
+            final long gyro = getNativeSensorSampleCount(SensorChannel.NATIVE_GYROSCOPE);
+            final long acc = getNativeSensorSampleCount(SensorChannel.NATIVE_ACCELEROMETER);
+            mGyroMonitor.onSamples(gyro - mNativeGyroSamples);
+            mAccMonitor.onSamples(acc - mNativeAccSamples);
+            mNativeGyroSamples = gyro;
+            mNativeAccSamples = acc;
+            mSensorHandler.postDelayed(this, NATIVE_SENSOR_POLL_MILLIS);
+        }
+    };
 
     //private final static int GYRO_SENSOR = Sensor.TYPE_GYROSCOPE_UNCALIBRATED;
     private final int mGyroSensor;
     private final int mAccSensor;
 
+    // Record layout in the IMU batch buffer, must match ImuBatchRecord in algorithm_worker.cpp:
+    // int64 timestamp (ns), int32 native type, float values[6], int32 number of values
+    private static final int IMU_RECORD_BYTES = 40;
+
+    // batch size used with hardware FIFO batching if not set explicitly
+    private static final int DEFAULT_FIFO_IMU_BATCH_SIZE = 64;
+    private static final long FIFO_FLUSH_TIMEOUT_MILLIS = 500;
+
+    private final boolean mFifoBatching;
+    private volatile String mFifoStatsString = "";
+    private String mFrameStatsString = null; // GL thread only
+
+    // --- stop() runs on the sensor thread without blocking the caller. These are
+    // only accessed from the sensor thread (mSensorHandler)
+    // waiting for the sensor FIFO flush before unregistering, see stopSensors
+    private boolean mStopping = false;
+    private int mPendingFifoFlushes = 0;
+    // per-frame FIFO flushes (sensorFifoFlushOnFrame) are issued from the GL thread.
+    // Their completions still in flight when the stop flush starts are also waited
+    // for, since they share onFlushCompleted with it. Guarded by mFrameFlushLock
+    private final Object mFrameFlushLock = new Object();
+    private int mFrameFlushCompletions = 0;
+    private boolean mFrameFlushesStopped = false;
+    // start, stop and other lifecycle calls made during the above wait, run after it in order
+    private final List<Runnable> mAfterStop = new ArrayList<>();
+    private final Runnable mFifoFlushTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "timeout while flushing sensor FIFOs");
+            finishStop();
+        }
+    };
+    // a new session is configured only after the previous one has been stopped
+    private final Object mStopLock = new Object();
+    private int mStopsRequested = 0, mStopsFinished = 0; // guarded by mStopLock
+
+    private final boolean mImuBatching;
+    private final int mImuBatchSize;
+    private final ByteBuffer mImuBatch;
+    private int mImuBatchCount = 0;
+    private final Runnable mFlushImuBatch = new Runnable() {
+        @Override
+        public void run() {
+            flushImuBatch();
+        }
+    };
+
     public AlgorithmWorker(
             SensorManager sensorManager,
             LocationManager locationManager,
@@ -203,7 +322,7 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
         mMode = mode;
 
         mSensors = new ArrayList<>();
-        List<Integer> sensorTypes = new ArrayList<>();
+        mChannels = new SparseArray<>();
 
         mGyroSensor = mSettings.useCalibGyro ?
                 Sensor.TYPE_GYROSCOPE :
@@ -212,86 +331,248 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
                 Sensor.TYPE_ACCELEROMETER :
                 Sensor.TYPE_ACCELEROMETER_UNCALIBRATED; // TODO: Requires API level 26
 
-        if (false) { // mSettings.recordExtraSensors
-            // TODO: record these extra sensors too
-            sensorTypes.add(Sensor.TYPE_GYROSCOPE);
-            sensorTypes.add(Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
-            sensorTypes.add(Sensor.TYPE_ACCELEROMETER);
-            sensorTypes.add(Sensor.TYPE_ACCELEROMETER_UNCALIBRATED);
-            sensorTypes.add(Sensor.TYPE_MAGNETIC_FIELD);
-            sensorTypes.add(Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED);
-            sensorTypes.add(Sensor.TYPE_PRESSURE);
-        } else {
-            sensorTypes.add(mGyroSensor);
-            sensorTypes.add(mAccSensor);
-        }
-
-        for (int sensorType : sensorTypes) {
-            mSensors.add(sensorManager.getDefaultSensor(sensorType));
-        }
-
-        mGpsListener = new GpsListener(locationManager);
-
+        // the IMU monitors are called on every sample, only check the clock every now and then
+        final int imuClockCheckInterval = 32;
         mAccMonitor = new FrequencyMonitor(new FrequencyMonitor.Listener() {
             @Override
             public void onFrequency(double freq) {
+                if (sensorAllocationCounterEnabled()) mSensorAllocations.beginIgnore();
                 Log.i(TAG, String.format("acc frequency %.3g Hz", freq));
+                if (sensorAllocationCounterEnabled()) mSensorAllocations.endIgnore();
             }
-        });
+        }, imuClockCheckInterval);
         mGyroMonitor = new FrequencyMonitor(new FrequencyMonitor.Listener() {
             @Override
             public void onFrequency(double freq) {
-                Log.i(TAG, String.format("gyro frequency %.3g Hz", freq));
+                if (sensorAllocationCounterEnabled()) {
+                    final double allocRate = mSensorAllocations.sample();
+                    mSensorAllocations.beginIgnore();
+                    if (allocRate >= 0) {
+                        Log.i(TAG, String.format("sensor thread allocations %.3g / s", allocRate));
+                    }
+                    Log.i(TAG, String.format("gyro frequency %.3g Hz", freq));
+                    mSensorAllocations.endIgnore();
+                } else {
+                    Log.i(TAG, String.format("gyro frequency %.3g Hz", freq));
+                }
             }
-        });
+        }, imuClockCheckInterval);
+
+        addChannel(new SensorChannel(mGyroSensor, SensorChannel.NATIVE_GYROSCOPE, mGyroMonitor));
+        addChannel(new SensorChannel(mAccSensor, SensorChannel.NATIVE_ACCELEROMETER, mAccMonitor));
+        if (mSettings.recordExtraSensors) {
+            final int[] extraSensorTypes = {
+                    Sensor.TYPE_GYROSCOPE,
+                    Sensor.TYPE_GYROSCOPE_UNCALIBRATED,
+                    Sensor.TYPE_ACCELEROMETER,
+                    Sensor.TYPE_ACCELEROMETER_UNCALIBRATED,
+                    Sensor.TYPE_MAGNETIC_FIELD,
+                    Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED,
+                    Sensor.TYPE_PRESSURE
+            };
+            for (int sensorType : extraSensorTypes) {
+                // the primary gyroscope and accelerometer are already registered
+                if (mChannels.get(sensorType) != null) continue;
+                addChannel(new SensorChannel(sensorType, SensorChannel.extraNativeType(sensorType), null));
+            }
+        }
+
+        mGpsListener = new GpsListener(locationManager);
+
+        mFifoBatching = mSettings.recordingOnly && mSettings.sensorFifoLatencyMs > 0;
+        // FIFO batches arrive in bursts, so they are also batched here unless set explicitly
+        final int imuBatchSize = mFifoBatching && mSettings.imuBatchSize <= 1
+                ? DEFAULT_FIFO_IMU_BATCH_SIZE
+                : mSettings.imuBatchSize;
+        mImuBatching = imuBatchSize > 1;
+        // The extra channels are only recorded and have no other native sink than the
+        // batch buffer, so they are batched even if the gyroscope and accelerometer
+        // are passed one sample at a time
+        mImuBatchSize = mImuBatching ? imuBatchSize : DEFAULT_FIFO_IMU_BATCH_SIZE;
+        if (mImuBatching || mSettings.recordExtraSensors) {
+            // allocated once, the native side keeps a pointer to this buffer
+            mImuBatch = ByteBuffer.allocateDirect(mImuBatchSize * IMU_RECORD_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            setImuBatchBuffer(mImuBatch);
+        } else {
+            mImuBatch = null;
+        }
+
         mProcessedFpsMonitor = new FrequencyMonitor(new FrequencyMonitor.Listener() {
             @Override
             public void onFrequency(double freq) {
                 Log.i(TAG, String.format("processed FPS %.2g", freq));
             }
         });
-    }
-
-    synchronized public void start() {
-        Log.d(TAG, "start");
+        mSensorAllocations = new AllocationCounter();
 
+        // lives until release(), so that start and stop can be ordered on it
         mHandlerThread = new HandlerThread("NativeHandler", Thread.MAX_PRIORITY);
         mHandlerThread.start();
         mSensorHandler = new Handler(mHandlerThread.getLooper());
+    }
 
-        // always record sensors at max rate when
-        final int sensorDelay = SensorManager.SENSOR_DELAY_FASTEST;
-        for (Sensor sensor : mSensors) {
-            mSensorManager.registerListener(this, sensor, sensorDelay, mSensorHandler);
-        }
+    synchronized public void start() {
+        Log.d(TAG, "start");
+        postLifecycle(new Runnable() {
+            @Override
+            public void run() {
+                startSensors();
+            }
+        });
         mAccMonitor.start();
         mGyroMonitor.start();
         mProcessedFpsMonitor.start();
+        if (sensorAllocationCounterEnabled()) mSensorAllocations.start();
         mGpsListener.start();
         running = true;
     }
 
+    /**
+     * Returns immediately. The sensors are unregistered and the native module is
+     * stopped on the sensor thread, after the hardware FIFOs have been flushed
+     */
     synchronized public void stop() {
         Log.d(TAG, "stop");
-        mSensorManager.unregisterListener(this);
         mAccMonitor.stop();
         mGyroMonitor.stop();
         mProcessedFpsMonitor.stop();
+        if (sensorAllocationCounterEnabled()) mSensorAllocations.stop();
         mGpsListener.stop();
+        mExternalInitialized = false;
+        running = false;
+
+        synchronized (mStopLock) {
+            mStopsRequested++;
+        }
+        postLifecycle(new Runnable() {
+            @Override
+            public void run() {
+                stopSensors();
+            }
+        });
+    }
+
+    /**
+     * Ends the sensor thread after any stop() in progress has finished. Call when
+     * the AlgorithmWorker is no longer used
+     */
+    public void release() {
+        postLifecycle(new Runnable() {
+            @Override
+            public void run() {
+                mHandlerThread.quitSafely();
+            }
+        });
+    }
+
+    /**
+     * Runs on the sensor thread once the stop() called before this has finished
+     * and the native module has been closed, e.g., all recorded files written
+     */
+    public void runAfterStop(Runnable runnable) {
+        postLifecycle(runnable);
+    }
+
+    // --- lifecycle, only called from the sensor thread (mSensorHandler)
+    private void postLifecycle(final Runnable runnable) {
         mSensorHandler.post(new Runnable() {
             @Override
             public void run() {
-                nativeStop();
+                if (mStopping) mAfterStop.add(runnable);
+                else runnable.run();
             }
         });
-        mExternalInitialized = false;
-        running = false;
+    }
 
-        mHandlerThread.quitSafely();
-        try {
-            mHandlerThread.join();
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Failed to join native access handler thread", e);
+    private void startSensors() {
+        synchronized (mFrameFlushLock) {
+            mFrameFlushesStopped = false;
+            mFrameFlushCompletions = 0;
+        }
+        // the native sensor source does not support FIFO batching
+        mUsingNativeSensors = mSettings.nativeSensors && !mFifoBatching
+                && startNativeSensors(mSettings.useCalibGyro, mSettings.useCalibAcc);
+        if (mSettings.nativeSensors && !mUsingNativeSensors) {
+            Log.w(TAG, "native sensors not available, using SensorEventListener");
+        }
+        if (mUsingNativeSensors) {
+            mNativeGyroSamples = getNativeSensorSampleCount(SensorChannel.NATIVE_GYROSCOPE);
+            mNativeAccSamples = getNativeSensorSampleCount(SensorChannel.NATIVE_ACCELEROMETER);
+            mSensorHandler.postDelayed(mPollNativeSensors, NATIVE_SENSOR_POLL_MILLIS);
+        }
+
+        // always record sensors at max rate when
+        final int sensorDelay = SensorManager.SENSOR_DELAY_FASTEST;
+        final int maxReportLatencyUs = mFifoBatching ? mSettings.sensorFifoLatencyMs * 1000 : 0;
+        for (Sensor sensor : mSensors) {
+            if (mUsingNativeSensors && (sensor.getType() == mGyroSensor || sensor.getType() == mAccSensor)) {
+                continue;
+            }
+            mSensorManager.registerListener(this, sensor, sensorDelay, maxReportLatencyUs, mSensorHandler);
+        }
+        if (mFifoBatching) {
+            mFifoStatsString = fifoWakeupStats(mSensors, mSettings.sensorFifoLatencyMs);
+            Log.i(TAG, "sensor FIFO batching: " + mFifoStatsString);
+        }
+    }
+
+    /**
+     * Deliver the samples still queued in the sensor hardware FIFOs before the
+     * listener is unregistered. The flush is asynchronous: the stop finishes in
+     * onFlushCompleted, or after FIFO_FLUSH_TIMEOUT_MILLIS
+     */
+    private void stopSensors() {
+        mStopping = true;
+        int frameFlushCompletions;
+        synchronized (mFrameFlushLock) {
+            // no more per-frame flushes, their completions would be counted as the stop flush
+            mFrameFlushesStopped = true;
+            frameFlushCompletions = mFrameFlushCompletions;
+            mFrameFlushCompletions = 0;
+        }
+        if (mFifoBatching && mSensorManager.flush(this)) {
+            // completions arrive in order for each sensor, so the stop flush is done
+            // once the earlier per-frame ones have also completed
+            mPendingFifoFlushes = frameFlushCompletions + mSensors.size();
+            mSensorHandler.postDelayed(mFifoFlushTimeout, FIFO_FLUSH_TIMEOUT_MILLIS);
+        } else {
+            finishStop();
+        }
+    }
+
+    private void finishStop() {
+        mSensorHandler.removeCallbacks(mFifoFlushTimeout);
+        mPendingFifoFlushes = 0;
+        mSensorManager.unregisterListener(this);
+        if (mUsingNativeSensors) {
+            mSensorHandler.removeCallbacks(mPollNativeSensors);
+            stopNativeSensors();
+            mUsingNativeSensors = false;
+        }
+        flushImuBatch();
+        nativeStop();
+        mStopping = false;
+        synchronized (mStopLock) {
+            mStopsFinished++;
+            mStopLock.notifyAll();
+        }
+        while (!mStopping && !mAfterStop.isEmpty()) mAfterStop.remove(0).run();
+    }
+
+    // called from the GL thread before configuring a new session
+    private void awaitStopped() {
+        synchronized (mStopLock) {
+            final int stops = mStopsRequested;
+            while (mStopsFinished < stops) {
+                try {
+                    mStopLock.wait();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "interrupted while waiting for the previous session to stop", e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
     }
 
@@ -351,6 +632,7 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
 
         long t0 = SystemClock.elapsedRealtimeNanos(); // this should be same as the sensor clock
         Log.d(TAG, jsonSettings());
+        awaitStopped();
         configure(t0, width, height, textureId, mSettings.halfFps ? 2 : 1, false, mSettings.moduleName, jsonSettings());
 
         if (mSettings.parametersFileName != null) {
@@ -378,6 +660,16 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
 
     @Override
     public void onFrame(long timestamp) {
+        if (mFifoBatching && mSettings.sensorFifoFlushOnFrame) {
+            // the pending samples are passed on in onFlushCompleted
+            synchronized (mFrameFlushLock) {
+                if (!mFrameFlushesStopped && mSensorManager.flush(this)) {
+                    mFrameFlushCompletions += mSensors.size();
+                }
+            }
+        } else if (mImuBatching && mSettings.imuBatchFlushOnFrame) {
+            mSensorHandler.post(mFlushImuBatch);
+        }
 
         if (processFrame(timestamp,
                 0, // camera ind
@@ -390,6 +682,11 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
 
             String statsString = getStatsString();
             statsString += String.format(" %.3g FPS", mProcessedFpsMonitor.getLatestFrequency());
+            if (sensorAllocationCounterEnabled()) {
+                statsString += String.format("\nsensor thread: %.3g alloc/s", mSensorAllocations.getLatestRate());
+            }
+            if (mFifoBatching) statsString += "\n" + mFifoStatsString;
+            if (mFrameStatsString != null) statsString += "\n" + mFrameStatsString;
             int trackingStatus = getTrackingStatus();
             double[] pose = getPose();
             TrackingOutput output = new TrackingOutput(pose, trackingStatus, statsString);
@@ -409,36 +706,108 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
         drawVisualization(SystemClock.elapsedRealtimeNanos());
     }
 
+    @Override
+    public void onFrameGap(long timestamp, long gapNanos, int missingFrames) {
+        Log.w(TAG, "camera frame gap " + (gapNanos * 1e-6) + " ms, " + missingFrames + " frame(s) missing");
+        processFrameGap(timestamp, gapNanos, missingFrames);
+    }
+
+    @Override
+    public void onFrameStats(String stats) {
+        mFrameStatsString = stats;
+    }
+
+    /**
+     * In debug builds, count the Java allocations made in the sensor thread, which
+     * should stay zero in steady state, apart from occasional GPS and AR pose events
+     */
+    private static boolean sensorAllocationCounterEnabled() {
+        return BuildConfig.DEBUG;
+    }
+
+    private void addChannel(SensorChannel channel) {
+        Sensor sensor = mSensorManager.getDefaultSensor(channel.sensorType);
+        if (sensor == null) {
+            Log.w(TAG, "sensor type " + channel.sensorType + " not available");
+            return;
+        }
+        mChannels.put(channel.sensorType, channel);
+        mSensors.add(sensor);
+    }
+
     @Override
     public void onSensorChanged(SensorEvent event) {
 //        Log.d(TAG, "(thread " + android.os.Process.myTid() + ") processing a sensor event "
 //                + event.timestamp);
-        switch (event.sensor.getType()) {
-            case Sensor.TYPE_ACCELEROMETER:
-            case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
-                if (event.sensor.getType() == mAccSensor) {
-                    mAccMonitor.onSample();
-                    // Event is reused, extract values we want
-                    final long time = event.timestamp;
-                    final float[] measurement = {event.values[0], event.values[1], event.values[2]};
-                    processAccSample(time, measurement[0], measurement[1], measurement[2]);
-                }
-                break;
-            case Sensor.TYPE_GYROSCOPE:
-            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
-                if (event.sensor.getType() == mGyroSensor) {
-                    mGyroMonitor.onSample();
-                    // Event is reused, extract values we want
-                    final long time = event.timestamp;
-                    final float[] measurement = {event.values[0], event.values[1], event.values[2]};
-                    processGyroSample(time, measurement[0], measurement[1], measurement[2]);
-                }
-                break;
-            default:
-                break;
+        // Note: this is called for every IMU sample, do not allocate anything here.
+        // The event object is reused by Android, so only the values are read
+        final SensorChannel channel = mChannels.get(event.sensor.getType());
+        if (channel == null) return;
+        if (channel.monitor != null) channel.monitor.onSample();
+
+        final float[] v = event.values;
+        if (mImuBatching || channel.isExtra()) {
+            addToImuBatch(channel, event.timestamp, v);
+        } else if (channel.nativeType == SensorChannel.NATIVE_GYROSCOPE) {
+            processGyroSample(event.timestamp, v[0], v[1], v[2]);
+        } else if (channel.nativeType == SensorChannel.NATIVE_ACCELEROMETER) {
+            processAccSample(event.timestamp, v[0], v[1], v[2]);
         }
     }
 
+    // --- IMU batching, only called from the sensor thread (mSensorHandler)
+    private void addToImuBatch(SensorChannel channel, long timeNanos, float[] values) {
+        final int offset = mImuBatchCount * IMU_RECORD_BYTES;
+        final int n = Math.min(channel.dimensions, values.length);
+        mImuBatch.putLong(offset, timeNanos);
+        mImuBatch.putInt(offset + 8, channel.nativeType);
+        for (int i = 0; i < n; ++i) mImuBatch.putFloat(offset + 12 + 4 * i, values[i]);
+        mImuBatch.putInt(offset + 12 + 4 * SensorChannel.MAX_DIMENSIONS, n);
+        if (++mImuBatchCount >= mImuBatchSize) flushImuBatch();
+    }
+
+    private void flushImuBatch() {
+        if (mImuBatchCount == 0) return;
+        processImuBatch(mImuBatchCount);
+        mImuBatchCount = 0;
+    }
+
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        // all samples from the hardware FIFO have been delivered at this point.
+        // Note: the IMU sample timestamps are the original event timestamps,
+        // which stay correct even if the events arrived in a burst
+        flushImuBatch();
+        if (mPendingFifoFlushes > 0) {
+            if (--mPendingFifoFlushes == 0) finishStop();
+        } else {
+            synchronized (mFrameFlushLock) {
+                if (mFrameFlushCompletions > 0) mFrameFlushCompletions--;
+            }
+        }
+    }
+
+    /**
+     * Rough estimate of how many times fewer CPU wakeups the sensors cause with
+     * the given hardware FIFO report latency. All sensors share the wakeup triggered
+     * by the first one whose FIFO share fills up or whose latency expires
+     */
+    private static String fifoWakeupStats(List<Sensor> sensors, int latencyMs) {
+        double eventsPerSecond = 0;
+        double batchedWakeupsPerSecond = 0;
+        for (Sensor sensor : sensors) {
+            if (sensor.getMinDelay() <= 0) continue; // not a continuous sensor
+            final double rate = 1e6 / sensor.getMinDelay();
+            final int fifoSize = Math.max(1, sensor.getFifoReservedEventCount());
+            final double eventsPerWakeup = Math.max(1, Math.min(rate * latencyMs * 1e-3, fifoSize));
+            eventsPerSecond += rate;
+            batchedWakeupsPerSecond = Math.max(batchedWakeupsPerSecond, rate / eventsPerWakeup);
+        }
+        if (batchedWakeupsPerSecond <= 0) return "sensor FIFO: no estimate";
+        return String.format("sensor FIFO %d ms: ~%.3gx fewer wakeups",
+                latencyMs, eventsPerSecond / batchedWakeupsPerSecond);
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int i) {
         Log.d(TAG, "accuracy changed: " + sensor + " " + i);
@@ -462,6 +831,7 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
             return;
         }
         if (!mExternalInitialized) {
+            awaitStopped();
             configure(timeNanos, width, height, textureId, 1, mSettings.recordPoses, mSettings.moduleName, jsonSettings());
             configureVisualization(mScreenWidth, mScreenHeight);
             mExternalInitialized = true;
@@ -475,6 +845,7 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
     private native void configure(long timeNanos, int width, int height, int textureId, int frameStride, boolean recordExternalPoses, String moduleName, String settingsJson);
 
     private native boolean processFrame(long timeNanos, int cameraInd, float fx, float fy, float px, float py);
+    private native void processFrameGap(long timeNanos, long gapNanos, int missingFrames);
     public native void processExternalImage(long timeNanos, long frameNumber, int cameraInd, float fx, float fy, float ppx, float ppy);
 
     private native void drawVisualization(long timeNanos);
@@ -485,11 +856,22 @@ public class AlgorithmWorker implements SensorEventListener, CameraWorker.Listen
     // --- these are called from the sensor thread (mSensorHandler)
     private native void processGyroSample(long timeNanos, float x, float y, float z);
     private native void processAccSample(long timeNanos, float x, float y, float z);
+    private native void processImuBatch(int count);
     private native void processGpsLocation(long timeNanos, double latitude, double longitude, double altitude, float accuracy);
     private native void processGpsTime(long timeNanos, double gpsTime);
     private native void recordPoseMatrix(long timeNanos, float[] viewMatrix, String tag);
     private native void writeInfoFile(String mode, String device);
     private native void writeParamsFile();
     private native double convertTime(long timeNanos);
+    // returns when the module has been closed, also if another thread held the last reference
     private native void nativeStop();
+
+    // --- called once from the constructor
+    private native void setImuBatchBuffer(ByteBuffer buffer);
+
+    // --- called from the sensor thread on start and stop. The native sensor source has its own thread
+    private native boolean startNativeSensors(boolean useCalibGyro, boolean useCalibAcc);
+    private native void stopNativeSensors();
+    // total samples of the given native type (gyroscope or accelerometer) from the native sensor source
+    private native long getNativeSensorSampleCount(int nativeType);
 }
@@ -0,0 +1,64 @@
+package org.example.viotester;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * Debug helper for checking that a thread does not allocate in steady state.
+ * Counts the Java allocations made by the thread that calls sample().
+ * Not thread-safe: all methods except start() and stop() must be called from
+ * the monitored thread.
+ */
+class AllocationCounter {
+    private long mLastCount = -1;
+    private long mLastNs;
+    private long mIgnoreStart;
+    private long mIgnored;
+    private volatile double mLatestRate = 0;
+
+    void start() {
+        Debug.startAllocCounting();
+        mLastCount = -1;
+    }
+
+    void stop() {
+        Debug.stopAllocCounting();
+    }
+
+    /**
+     * @return allocations per second since the previous call, or a negative
+     *  value on the first call
+     */
+    double sample() {
+        final long count = Debug.getThreadAllocCount();
+        final long curNs = SystemClock.elapsedRealtimeNanos();
+        double rate = -1;
+        if (mLastCount >= 0 && curNs > mLastNs) {
+            rate = (count - mLastCount - mIgnored) / ((curNs - mLastNs) * 1e-9);
+            mLatestRate = rate;
+        }
+        mLastCount = count;
+        mLastNs = curNs;
+        mIgnored = 0;
+        return rate;
+    }
+
+    /**
+     * Exclude the allocations made between beginIgnore() and endIgnore(),
+     * e.g., by debug logging, from the count
+     */
+    void beginIgnore() {
+        mIgnoreStart = Debug.getThreadAllocCount();
+    }
+
+    void endIgnore() {
+        mIgnored += Debug.getThreadAllocCount() - mIgnoreStart;
+    }
+
+    /**
+     * @return The latest value returned by sample(). May be called from any thread
+     */
+    double getLatestRate() {
+        return mLatestRate;
+    }
+}
@@ -31,20 +31,39 @@ public class CameraWorker {
         void onCaptureStart(CameraParameters parameters, int textureId);
         void onFrame(long timestamp);
         void onDraw();
+        void onFrameGap(long timestamp, long gapNanos, int missingFrames);
+        void onFrameStats(String stats);
     }
 
     private final CameraParameters mParameters;
     private final Listener mListener;
     private final int mTargetFps;
+    private final int mYuvImages;
     private SurfaceTexture mSurfaceTexture;
     private Surface mSurface; // use member to avoid garbage collection (may not be needed)
-    private boolean mHasNewCameraFrame;
+    private final FrameArrivalMonitor mFrameMonitor;
     int[] mGlTextureIds = new int[1];
 
-    CameraWorker(CameraManager manager, Listener listener, int targetFps) {
+    /**
+     * @param yuvImages if > 0, the camera also outputs YUV images to the native side
+     *                  through an ImageReader with this many buffers
+     */
+    CameraWorker(CameraManager manager, Listener listener, int targetFps, int yuvImages) {
         mListener = listener;
         mParameters = getCamera(manager, listener);
         mTargetFps = targetFps;
+        mYuvImages = yuvImages;
+        mFrameMonitor = new FrameArrivalMonitor(new FrameArrivalMonitor.Listener() {
+            @Override
+            public void onGap(long timestampNs, long gapNs, int missingFrames) {
+                mListener.onFrameGap(timestampNs, gapNs, missingFrames);
+            }
+
+            @Override
+            public void onReport(String stats) {
+                mListener.onFrameStats(stats);
+            }
+        }, targetFps);
     }
 
     void start() {
@@ -55,13 +74,12 @@ public class CameraWorker {
         mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
             @Override
             public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                synchronized (CameraWorker.this) {
-                    mHasNewCameraFrame = true;
-                }
+                mFrameMonitor.onFrameAvailable();
             }
         });
         mSurface = new Surface(mSurfaceTexture);
-        startCameraSession(mParameters.cameraId, mTargetFps, mSurface);
+        startCameraSession(mParameters.cameraId, mTargetFps, mSurface,
+                mParameters.width, mParameters.height, mYuvImages);
         mListener.onCaptureStart(mParameters, mGlTextureIds[0]);
     }
 
@@ -75,13 +93,12 @@ public class CameraWorker {
         boolean hasNewData = false;
         long lastTimestamp = 0;
 
-        synchronized (this) {
-            hasNewData = mHasNewCameraFrame;
-            if (mHasNewCameraFrame) {
-                mSurfaceTexture.updateTexImage();
-                lastTimestamp = mSurfaceTexture.getTimestamp();
-                mHasNewCameraFrame = false;
-            }
+        int arrivals = mFrameMonitor.takeArrivals();
+        if (arrivals > 0) {
+            // latches the newest frame, older ones not yet latched are skipped
+            mSurfaceTexture.updateTexImage();
+            lastTimestamp = mSurfaceTexture.getTimestamp();
+            hasNewData = mFrameMonitor.onFrameLatched(lastTimestamp, arrivals);
         }
 
         if (hasNewData) mListener.onFrame(lastTimestamp);
@@ -89,10 +106,12 @@ public class CameraWorker {
     }
 
     public void stop() {
+        Log.i(TAG, mFrameMonitor.getStats());
         stopCameraSession();
     }
 
-    private native void startCameraSession(String cameraId, int targetFPs, Surface surface);
+    private native void startCameraSession(String cameraId, int targetFPs, Surface surface,
+                                           int width, int height, int yuvImages);
     private native void stopCameraSession();
 
     public static class CameraParameters {
@@ -1,18 +1,7 @@
 package org.example.viotester;
-import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.gms.common.util.IOUtils;
-
-import org.kamranzafar.jtar.TarEntry;
-import org.kamranzafar.jtar.TarOutputStream;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -25,13 +14,20 @@ public class DataRecorder {
     private final String mLogFileName;
     private final String mInfoFileName;
     private final String mParametersFileName;
+    private final String mBinarySensorLogFileName;
     private final boolean compress;
 
+    static final String ARCHIVE_SUFFIX = ".tar";
+
     static File getFolder(File cacheDir) {
         return new File(cacheDir, "recordings");
     }
 
-    public DataRecorder(File cacheDir, String prefix, boolean compress) {
+    /**
+     * @param compress pack the session into a tar file after recording
+     * @param compression "gzip" to compress that file, or "none"
+     */
+    public DataRecorder(File cacheDir, String prefix, boolean compress, String compression) {
         Log.d(TAG, "ctor");
 
         this.compress = compress;
@@ -49,11 +45,15 @@ public class DataRecorder {
         if (!mFolder.mkdir()) {
             throw new RuntimeException("failed to create folder " + name);
         }
-        mVideoFileName = new File(mFolder, "data.avi").getAbsolutePath();
+        // written as tar entries by the native code if they are going to be archived
+        final String entrySuffix = compress ? SessionArchiver.TAR_ENTRY_SUFFIX : "";
+        mVideoFileName = new File(mFolder, "data.avi" + entrySuffix).getAbsolutePath();
         mLogFileName = new File(mFolder, "data.jsonl").getAbsolutePath();
         mInfoFileName = new File(mFolder, "info.json").getAbsolutePath();
         mParametersFileName = new File(mFolder, "parameters.txt").getAbsolutePath();
-        mTarFileName = new File(rootFolder, name + ".tar").getAbsolutePath();
+        mBinarySensorLogFileName = new File(mFolder, "sensors.bin" + entrySuffix).getAbsolutePath();
+        final String suffix = compression.equals("gzip") ? ARCHIVE_SUFFIX + SessionArchiver.GZIP_SUFFIX : ARCHIVE_SUFFIX;
+        mTarFileName = new File(rootFolder, name + suffix).getAbsolutePath();
 
         Log.i(TAG,"video file " + mVideoFileName);
         Log.i(TAG, "sensor log file " + mLogFileName);
@@ -67,40 +67,16 @@ public class DataRecorder {
     }
     public String getInfoFileName() { return mInfoFileName; }
     public String getParametersFileName() { return mParametersFileName; }
+    public String getBinarySensorLogFileName() { return mBinarySensorLogFileName; }
 
+    /**
+     * Call after the native recorder has closed its files, see AlgorithmWorker.runAfterStop.
+     * Returns immediately, the session is archived in a background thread, see SessionArchiver
+     */
     public void flush() {
         Log.d(TAG, "flush");
         if (this.compress) {
-            try {
-                writeTarball();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
-    private void writeTarball() throws IOException {
-        File[] files = mFolder.listFiles();
-        if (files == null)
-            throw new IOException("failed to list files in " + mFolder.getAbsolutePath());
-
-        try (TarOutputStream out = new TarOutputStream(new BufferedOutputStream(new FileOutputStream(mTarFileName)))) {
-            for (File f : files) {
-                Log.d(TAG, "adding " + f.getName() + " to tar " + mTarFileName);
-                out.putNextEntry(new TarEntry(f, f.getName()));
-                try (BufferedInputStream origin = new BufferedInputStream(new FileInputStream(f))) {
-                    IOUtils.copyStream(origin, out);
-                }
-                out.flush();
-            }
-        }
-
-        Log.i(TAG, "tarball created successfully, clearing folder " + mFolder.getAbsolutePath());
-        boolean success = true;
-        for (File f : files) if (!f.delete()) success = false;
-        if (!mFolder.delete()) success = false;
-        if (!success) {
-            throw new IOException("failed to clear folder " + mFolder);
+            SessionArchiver.archive(mFolder, new File(mTarFileName));
         }
     }
 }
@@ -0,0 +1,178 @@
+package org.example.viotester;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks camera frames from SurfaceTexture.onFrameAvailable to updateTexImage.
+ * onFrameAvailable() is lock-free and may be called from any thread, all other
+ * methods must be called from the GL thread.
+ *
+ * Reports frames missing from the camera timestamp sequence (dropped), frames that
+ * arrived but were replaced by a newer one before the GL thread latched them
+ * (skipped), latched frames with the same timestamp as the previous one
+ * (duplicated) and frames latched more than one frame interval after they
+ * arrived (late). Many skipped and late frames mean that the GL thread is the
+ * bottleneck. A frame that arrives between takeArrivals and updateTexImage is
+ * latched one call early and reported next time as latched ahead, not as a
+ * duplicate.
+ *
+ * The frame interval starts from the target frame rate and follows the camera
+ * if it runs faster, or settles to a lower rate, e.g., with long exposures in
+ * low light. The first RATE_CHANGE_FRAMES - 1 intervals after a drop in the
+ * rate are reported as gaps.
+ */
+class FrameArrivalMonitor {
+    private static final double REPORT_INTERVAL_SECONDS = 5.0;
+    // a timestamp gap longer than this many frame intervals counts as dropped frames
+    private static final double GAP_THRESHOLD = 1.5;
+    // weight of a new interval in the frame interval estimate
+    private static final double INTERVAL_SMOOTHING = 0.05;
+    // this many consecutive gaps of about the same length are a new frame interval
+    private static final int RATE_CHANGE_FRAMES = 3;
+    // relative difference of gaps that count as the same length
+    private static final double RATE_CHANGE_TOLERANCE = 0.2;
+    // upper bin limits of the jitter histograms, the last bin is open
+    private static final double[] JITTER_BINS_MS = { 0.5, 1, 2, 4, 8, 16 };
+
+    interface Listener {
+        void onGap(long timestampNs, long gapNs, int missingFrames);
+        void onReport(String stats);
+    }
+
+    private final Listener mListener;
+
+    private final AtomicInteger mPendingArrivals = new AtomicInteger();
+    private final AtomicLong mLatestArrivalNs = new AtomicLong();
+
+    private long mLastTimestampNs = -1;
+    private long mLastArrivalNs = -1;
+    private double mIntervalNs = 0;
+    private long mLastReportNs;
+    // consecutive gaps of about the same length, the first one is mGapRunNs long
+    private int mGapRun = 0;
+    private long mGapRunNs = 0;
+    // a frame arrived before the previous onFrameLatched returned, updateTexImage may have latched it
+    private boolean mMayHaveLatchedAhead = false;
+
+    private long mFrames, mDropped, mSkipped, mDuplicated, mLatchedAhead, mLate;
+    // deviation of the camera timestamp and arrival intervals from the estimated interval
+    private final int[] mTimestampJitter = new int[JITTER_BINS_MS.length + 1];
+    private final int[] mArrivalJitter = new int[JITTER_BINS_MS.length + 1];
+
+    /**
+     * @param targetFps the requested frame rate, the initial frame interval estimate.
+     *                  If <= 0, the first timestamp interval is used instead
+     */
+    FrameArrivalMonitor(Listener listener, int targetFps) {
+        mListener = listener;
+        if (targetFps > 0) mIntervalNs = 1e9 / targetFps;
+        mLastReportNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    void onFrameAvailable() {
+        // the time is stored first so that the GL thread sees it with the count
+        mLatestArrivalNs.set(SystemClock.elapsedRealtimeNanos());
+        mPendingArrivals.incrementAndGet();
+    }
+
+    /**
+     * @return the number of frames that arrived since the previous call,
+     *  if > 0, call updateTexImage and onFrameLatched
+     */
+    int takeArrivals() {
+        return mPendingArrivals.getAndSet(0);
+    }
+
+    /**
+     * @param arrivals value returned by takeArrivals
+     * @return false if the frame should be ignored since it was already latched
+     */
+    boolean onFrameLatched(long timestampNs, int arrivals) {
+        final long nowNs = SystemClock.elapsedRealtimeNanos();
+        final long arrivalNs = mLatestArrivalNs.get();
+        mSkipped += arrivals - 1;
+
+        boolean isNew = true;
+        if (mLastTimestampNs >= 0) {
+            final long dt = timestampNs - mLastTimestampNs;
+            if (dt <= 0) {
+                if (mMayHaveLatchedAhead) {
+                    // a frame that arrived after takeArrivals was already latched by the previous call
+                    mLatchedAhead++;
+                } else {
+                    mDuplicated++;
+                }
+                isNew = false;
+            } else if (mIntervalNs <= 0 || dt * GAP_THRESHOLD < mIntervalNs) {
+                // first interval, or the camera runs faster than estimated
+                mIntervalNs = dt;
+                mGapRun = 0;
+            } else if (dt > GAP_THRESHOLD * mIntervalNs) {
+                if (mGapRun > 0 && Math.abs(dt - mGapRunNs) < RATE_CHANGE_TOLERANCE * mGapRunNs) {
+                    mGapRun++;
+                } else {
+                    mGapRun = 1;
+                    mGapRunNs = dt;
+                }
+                if (mGapRun >= RATE_CHANGE_FRAMES) {
+                    // the camera runs at a lower rate, not dropping frames
+                    mIntervalNs = dt;
+                    mGapRun = 0;
+                } else {
+                    final int missing = (int)Math.round(dt / mIntervalNs) - 1;
+                    if (missing > 0) {
+                        mDropped += missing;
+                        mListener.onGap(timestampNs, dt, missing);
+                    }
+                }
+            } else {
+                mGapRun = 0;
+                addToHistogram(mTimestampJitter, dt - mIntervalNs);
+                if (mLastArrivalNs >= 0) addToHistogram(mArrivalJitter, arrivalNs - mLastArrivalNs - mIntervalNs);
+                mIntervalNs += INTERVAL_SMOOTHING * (dt - mIntervalNs);
+            }
+        }
+        if (isNew) {
+            mFrames++;
+            if (mIntervalNs > 0 && nowNs - arrivalNs > mIntervalNs) mLate++;
+            mLastTimestampNs = timestampNs;
+            mLastArrivalNs = arrivalNs;
+        }
+        mMayHaveLatchedAhead = mPendingArrivals.get() > 0;
+
+        if (nowNs > mLastReportNs + REPORT_INTERVAL_SECONDS * 1e9) {
+            mListener.onReport(getStats());
+            mLastReportNs = nowNs;
+        }
+        return isNew;
+    }
+
+    String getStats() {
+        return String.format("frames %d: dropped %d, GL skipped %d, duplicated %d, latched ahead %d, late %d",
+                mFrames, mDropped, mSkipped, mDuplicated, mLatchedAhead, mLate)
+                + "\ntimestamp jitter " + histogramString(mTimestampJitter)
+                + "\narrival jitter " + histogramString(mArrivalJitter);
+    }
+
+    private static void addToHistogram(int[] histogram, double deviationNs) {
+        final double ms = Math.abs(deviationNs) * 1e-6;
+        int bin = 0;
+        while (bin < JITTER_BINS_MS.length && ms >= JITTER_BINS_MS[bin]) bin++;
+        histogram[bin]++;
+    }
+
+    private static String histogramString(int[] histogram) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; ++i) {
+            if (i > 0) sb.append(' ');
+            if (i < JITTER_BINS_MS.length) sb.append('<').append(JITTER_BINS_MS[i]);
+            else sb.append(JITTER_BINS_MS[i - 1]).append('+');
+            sb.append(':').append(histogram[i]);
+        }
+        sb.append(" ms");
+        return sb.toString();
+    }
+}
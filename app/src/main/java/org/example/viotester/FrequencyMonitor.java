@@ -10,17 +10,31 @@ public class FrequencyMonitor {
     }
 
     private final Listener mListener;
+    private final long mClockCheckMask;
     private boolean mRunning;
     private long mNSamples;
     private long mLastReportNs;
     private double mLatestFrequency;
 
     FrequencyMonitor(Listener listener) {
+        this(listener, 1);
+    }
+
+    /**
+     * @param clockCheckInterval Read the clock only on every Nth sample. Rounded up to the
+     *                           nearest power of two. Use larger values for high-rate sources
+     *                           such as the IMU sensors to keep onSample() cheap
+     */
+    FrequencyMonitor(Listener listener, int clockCheckInterval) {
         mListener = listener;
+        int interval = 1;
+        while (interval < clockCheckInterval) interval <<= 1;
+        mClockCheckMask = interval - 1;
     }
 
     public void start() {
         mRunning = true;
+        mNSamples = 0;
         mLastReportNs = SystemClock.elapsedRealtimeNanos();
     }
 
@@ -31,18 +45,34 @@ public class FrequencyMonitor {
     public void onSample() {
         if (mRunning) {
             mNSamples++;
-            final long curNs = SystemClock.elapsedRealtimeNanos();
-            if (curNs > mLastReportNs + REPORT_INTERVAL_SECONDS * 1e9) {
-                final double dt = (curNs - mLastReportNs) * 1e-9;
-                mLatestFrequency = mNSamples / dt;
-                mListener.onFrequency(mLatestFrequency);
-                mLastReportNs = curNs;
-                mNSamples = 0;
-            }
+            if ((mNSamples & mClockCheckMask) != 0) return;
+            checkReport();
+        }
+    }
+
+    /**
+     * Add samples counted elsewhere, e.g., by polling the counter of a native thread.
+     * Always reads the clock
+     */
+    public void onSamples(long n) {
+        if (mRunning) {
+            mNSamples += n;
+            checkReport();
+        }
+    }
+
+    private void checkReport() {
+        final long curNs = SystemClock.elapsedRealtimeNanos();
+        if (curNs > mLastReportNs + REPORT_INTERVAL_SECONDS * 1e9) {
+            final double dt = (curNs - mLastReportNs) * 1e-9;
+            mLatestFrequency = mNSamples / dt;
+            mListener.onFrequency(mLatestFrequency);
+            mLastReportNs = curNs;
+            mNSamples = 0;
         }
     }
 
     public double getLatestFrequency() {
         return mLatestFrequency;
     }
-}
\ No newline at end of file
+}
@@ -35,6 +35,7 @@ public class MainActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         new AssetCopier(this); // copies stuff and saves paths to SharedPreferences
+        SessionArchiver.resumeInterrupted(DataRecorder.getFolder(getExternalCacheDir()));
 
         PreferenceManager.setDefaultValues(this, R.xml.root_preferences, false);
 
@@ -0,0 +1,169 @@
+package org.example.viotester;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression on all cores. The input is cut into blocks that are compressed
+ * independently as separate gzip members and written in their original order.
+ * Concatenated members are a valid gzip file (RFC 1952), readable by gunzip, tar
+ * and GZIPInputStream. Does not depend on Android.
+ */
+public class ParallelGzipChannel implements WritableByteChannel, Flushable {
+    private static final int BLOCK_SIZE = 1 << 20;
+    // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff };
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final WritableByteChannel mOutput;
+    private final int mLevel;
+    private final ExecutorService mExecutor;
+    // compressed blocks in input order, at most mMaxPending
+    private final ArrayDeque<Future<ByteBuffer>> mPending = new ArrayDeque<>();
+    private final int mMaxPending;
+
+    private byte[] mBlock = new byte[BLOCK_SIZE];
+    private int mBlockLength = 0;
+    private boolean mStore = false;
+    private boolean mOpen = true;
+
+    public ParallelGzipChannel(WritableByteChannel output, int level) {
+        this(output, level, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelGzipChannel(WritableByteChannel output, int level, int threads) {
+        mOutput = output;
+        mLevel = level;
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threads));
+        // keeps all threads busy while the oldest block is being written
+        mMaxPending = 2 * Math.max(1, threads);
+    }
+
+    /**
+     * Store the following bytes without compressing them, e.g., for data that is
+     * already compressed. Starts a new block if the mode changes
+     */
+    public void setStoreOnly(boolean store) throws IOException {
+        if (store == mStore) return;
+        if (mBlockLength > 0) submitBlock();
+        mStore = store;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!mOpen) throw new ClosedChannelException();
+        final int n = src.remaining();
+        while (src.hasRemaining()) {
+            final int len = Math.min(src.remaining(), BLOCK_SIZE - mBlockLength);
+            src.get(mBlock, mBlockLength, len);
+            mBlockLength += len;
+            if (mBlockLength == BLOCK_SIZE) submitBlock();
+        }
+        return n;
+    }
+
+    /**
+     * Compresses and writes all input so far. The output then ends with a complete
+     * gzip member, so it is a valid gzip file if cut at this point
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!mOpen) throw new ClosedChannelException();
+        if (mBlockLength > 0) submitBlock();
+        while (!mPending.isEmpty()) writeOldest();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /** Compresses and writes the remaining input and closes the output */
+    @Override
+    public void close() throws IOException {
+        if (!mOpen) return;
+        mOpen = false;
+        try {
+            if (mBlockLength > 0) submitBlock();
+            while (!mPending.isEmpty()) writeOldest();
+        } finally {
+            mExecutor.shutdownNow();
+            mOutput.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = mBlock;
+        final int length = mBlockLength;
+        final int level = mStore ? Deflater.NO_COMPRESSION : mLevel;
+        mPending.add(mExecutor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() {
+                return compressMember(data, length, level);
+            }
+        }));
+        mBlock = new byte[BLOCK_SIZE];
+        mBlockLength = 0;
+        if (mPending.size() >= mMaxPending) writeOldest();
+    }
+
+    private void writeOldest() throws IOException {
+        final ByteBuffer member;
+        try {
+            member = mPending.remove().get();
+        } catch (ExecutionException e) {
+            throw new IOException("gzip compression failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        }
+        while (member.hasRemaining()) mOutput.write(member);
+    }
+
+    private static ByteBuffer compressMember(byte[] data, int length, int level) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // stored blocks add a few bytes per 64 KiB, this is enough for any level
+            byte[] out = new byte[GZIP_HEADER.length + length + length / 64 + 64 + GZIP_TRAILER_SIZE];
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            int pos = GZIP_HEADER.length;
+            while (!deflater.finished()) {
+                if (out.length - pos < GZIP_TRAILER_SIZE + 64) {
+                    byte[] larger = new byte[2 * out.length];
+                    System.arraycopy(out, 0, larger, 0, pos);
+                    out = larger;
+                }
+                pos += deflater.deflate(out, pos, out.length - pos - GZIP_TRAILER_SIZE);
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            pos = putIntLE(out, pos, (int)crc.getValue());
+            pos = putIntLE(out, pos, length);
+            return ByteBuffer.wrap(out, 0, pos);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int putIntLE(byte[] b, int pos, int v) {
+        b[pos] = (byte)v;
+        b[pos + 1] = (byte)(v >>> 8);
+        b[pos + 2] = (byte)(v >>> 16);
+        b[pos + 3] = (byte)(v >>> 24);
+        return pos + 4;
+    }
+}
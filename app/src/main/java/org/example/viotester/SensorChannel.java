@@ -0,0 +1,77 @@
+package org.example.viotester;
+
+import android.hardware.Sensor;
+
+import androidx.annotation.Nullable;
+
+/**
+ * An Android sensor type routed to the native side. The native types must
+ * match AlgorithmModule::ImuSample::Type in algorithm_module.hpp
+ */
+class SensorChannel {
+    // the gyroscope and accelerometer used by the algorithms, calibrated or not
+    static final int NATIVE_GYROSCOPE = 0;
+    static final int NATIVE_ACCELEROMETER = 1;
+    // extra channels, only recorded
+    static final int NATIVE_GYROSCOPE_UNCALIBRATED = 2;
+    static final int NATIVE_ACCELEROMETER_UNCALIBRATED = 3;
+    static final int NATIVE_MAGNETOMETER = 4;
+    static final int NATIVE_MAGNETOMETER_UNCALIBRATED = 5;
+    static final int NATIVE_PRESSURE = 6;
+    static final int NATIVE_GYROSCOPE_CALIBRATED = 7;
+    static final int NATIVE_ACCELEROMETER_CALIBRATED = 8;
+
+    // the largest supported dimensionality: uncalibrated values + bias
+    static final int MAX_DIMENSIONS = 6;
+
+    final int sensorType;
+    final int nativeType;
+    final int dimensions;
+    @Nullable
+    final FrequencyMonitor monitor;
+
+    SensorChannel(int sensorType, int nativeType, @Nullable FrequencyMonitor monitor) {
+        this.sensorType = sensorType;
+        this.nativeType = nativeType;
+        this.dimensions = dimensionsOf(sensorType);
+        this.monitor = monitor;
+    }
+
+    /** Only recorded, not used by the algorithms */
+    boolean isExtra() {
+        return nativeType != NATIVE_GYROSCOPE && nativeType != NATIVE_ACCELEROMETER;
+    }
+
+    /**
+     * The number of SensorEvent.values forwarded for each sensor type. For the
+     * uncalibrated sensors, this includes the bias estimate in values[3..5]
+     */
+    static int dimensionsOf(int sensorType) {
+        switch (sensorType) {
+            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
+            case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+                return 6;
+            case Sensor.TYPE_PRESSURE:
+                return 1;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Native type of a sensor that is recorded as an extra channel
+     */
+    static int extraNativeType(int sensorType) {
+        switch (sensorType) {
+            case Sensor.TYPE_GYROSCOPE: return NATIVE_GYROSCOPE_CALIBRATED;
+            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED: return NATIVE_GYROSCOPE_UNCALIBRATED;
+            case Sensor.TYPE_ACCELEROMETER: return NATIVE_ACCELEROMETER_CALIBRATED;
+            case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED: return NATIVE_ACCELEROMETER_UNCALIBRATED;
+            case Sensor.TYPE_MAGNETIC_FIELD: return NATIVE_MAGNETOMETER;
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED: return NATIVE_MAGNETOMETER_UNCALIBRATED;
+            case Sensor.TYPE_PRESSURE: return NATIVE_PRESSURE;
+            default: throw new IllegalArgumentException("unsupported extra sensor type " + sensorType);
+        }
+    }
+}
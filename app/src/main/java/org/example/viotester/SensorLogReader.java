@@ -0,0 +1,284 @@
+package org.example.viotester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming reader for the binary sensor log written by the native recorder
+ * (see binary_sensor_log.hpp for the format). Corrupted records are skipped up
+ * to the next sync record. Does not depend on Android, and can be run on a desktop
+ * JVM to convert a log to the JSONL format of data.jsonl:
+ *
+ *   java org.example.viotester.SensorLogReader sensors.bin [output.jsonl]
+ */
+public class SensorLogReader implements Closeable {
+    private static final byte[] MAGIC = "VIOSENS1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SYNC_MARKER = "VIOSYNC\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int SUPPORTED_VERSION = 1;
+    private static final int SYNC_CHANNEL = 0xff;
+    private static final int MAX_VALUES = 6;
+    // offset of the sync marker in a sync record
+    private static final int SYNC_MARKER_OFFSET = 12;
+
+    public static class Record {
+        public double time;
+        public int channel;
+        public String name;
+        public int valueCount;
+        public final float[] values = new float[MAX_VALUES];
+    }
+
+    private final InputStream mInput;
+    private final int mRecordSize;
+    private final int mSyncInterval;
+    // indexed by channel id, null for unknown channels
+    private final String[] mChannelNames = new String[256];
+    private final int[] mChannelValues = new int[256];
+    private final byte[] mRecordBytes;
+    private final ByteBuffer mRecord;
+
+    private long mRecords = 0;
+    private long mSkippedBytes = 0;
+
+    public SensorLogReader(InputStream input) throws IOException {
+        // resync reads single bytes
+        mInput = input instanceof BufferedInputStream ? input : new BufferedInputStream(input);
+
+        final byte[] magic = new byte[MAGIC.length];
+        readFully(magic, 0, magic.length);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a binary sensor log");
+
+        final ByteBuffer fields = readLittleEndian(16);
+        final int version = fields.getInt();
+        if (version != SUPPORTED_VERSION) throw new IOException("unsupported sensor log version " + version);
+        mRecordSize = fields.getInt();
+        mSyncInterval = fields.getInt();
+        final int channels = fields.getInt();
+        if (mRecordSize < SYNC_MARKER_OFFSET + 4 * MAX_VALUES) throw new IOException("invalid record size " + mRecordSize);
+
+        for (int i = 0; i < channels; ++i) {
+            final ByteBuffer info = readLittleEndian(3);
+            final int id = info.get() & 0xff;
+            final int values = info.get() & 0xff;
+            final byte[] name = new byte[info.get() & 0xff];
+            readFully(name, 0, name.length);
+            mChannelNames[id] = new String(name, StandardCharsets.UTF_8);
+            mChannelValues[id] = values;
+        }
+
+        mRecordBytes = new byte[mRecordSize];
+        mRecord = ByteBuffer.wrap(mRecordBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getSyncInterval() {
+        return mSyncInterval;
+    }
+
+    /**
+     * Data records written before the current position, including records lost
+     * to corruption, as counted by the sync records
+     */
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    /** Bytes skipped while looking for a sync record after corrupted data */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /** Channel name for an id, or null if the id is not listed in the header */
+    public String getChannelName(int id) {
+        return mChannelNames[id & 0xff];
+    }
+
+    /**
+     * Reads the next data record into the given object
+     * @return false at the end of the log
+     */
+    public boolean next(Record r) throws IOException {
+        while (true) {
+            if (!readRecord()) return false;
+            final int channel = mRecordBytes[8] & 0xff;
+            final int count = mRecordBytes[9] & 0xff;
+            final boolean reservedZero = mRecordBytes[10] == 0 && mRecordBytes[11] == 0;
+
+            if (channel == SYNC_CHANNEL && count == 0 && reservedZero && isSyncMarker(mRecordBytes, SYNC_MARKER_OFFSET)) {
+                mRecord.position(SYNC_MARKER_OFFSET + SYNC_MARKER.length);
+                // differs from the count read so far if records were skipped
+                mRecords = mRecord.getLong();
+                continue;
+            }
+
+            if (mChannelNames[channel] == null || count > mChannelValues[channel] || !reservedZero) {
+                resync();
+                continue;
+            }
+
+            mRecord.position(0);
+            r.time = mRecord.getDouble();
+            r.channel = channel;
+            r.name = mChannelNames[channel];
+            r.valueCount = count;
+            mRecord.position(SYNC_MARKER_OFFSET);
+            for (int i = 0; i < MAX_VALUES; ++i) r.values[i] = mRecord.getFloat();
+            mRecords++;
+            return true;
+        }
+    }
+
+    /** Writes the record as a line of data.jsonl, without the newline */
+    public static void writeJson(Record r, Writer out) throws IOException {
+        out.write("{\"sensor\":{\"type\":\"");
+        out.write(r.name);
+        out.write("\",\"values\":[");
+        for (int i = 0; i < r.valueCount; ++i) {
+            if (i > 0) out.write(',');
+            writeNumber(r.values[i], out);
+        }
+        out.write("]},\"time\":");
+        out.write(Double.toString(r.time));
+        out.write('}');
+    }
+
+    /** Converts the whole log to JSONL, returns the number of records */
+    public long toJsonl(Writer out) throws IOException {
+        final Record r = new Record();
+        long n = 0;
+        while (next(r)) {
+            writeJson(r, out);
+            out.write('\n');
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+
+    private static void writeNumber(float v, Writer out) throws IOException {
+        // not representable in JSON
+        if (Float.isNaN(v) || Float.isInfinite(v)) out.write("null");
+        else out.write(Float.toString(v));
+    }
+
+    /** @return false at the end of the file, a partial last record is skipped */
+    private boolean readRecord() throws IOException {
+        int n = 0;
+        while (n < mRecordSize) {
+            final int r = mInput.read(mRecordBytes, n, mRecordSize - n);
+            if (r < 0) {
+                if (n == 0) return false;
+                // the end of a log that was not closed cleanly
+                mSkippedBytes += n;
+                return false;
+            }
+            n += r;
+        }
+        return true;
+    }
+
+    /**
+     * Discards the current record and skips to the end of the next sync record.
+     * The marker may also start inside the discarded record
+     */
+    private void resync() throws IOException {
+        // search the rest of the current record first, then the stream byte by byte
+        final byte[] window = new byte[SYNC_MARKER.length];
+        int filled = 0;
+        long scanned = 0;
+        for (int i = 1; i < mRecordSize; ++i) {
+            filled = shift(window, filled, mRecordBytes[i]);
+            scanned++;
+            if (filled == window.length && isSyncMarker(window, 0)) {
+                finishSyncRecord(scanned);
+                return;
+            }
+        }
+        while (true) {
+            final int b = mInput.read();
+            if (b < 0) {
+                mSkippedBytes += scanned + 1;
+                return;
+            }
+            filled = shift(window, filled, (byte)b);
+            scanned++;
+            if (filled == window.length && isSyncMarker(window, 0)) {
+                finishSyncRecord(scanned);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called when a marker ends at the current stream position, reads the rest
+     * of its sync record
+     * @param scanned bytes searched after the first byte of the discarded record
+     */
+    private void finishSyncRecord(long scanned) throws IOException {
+        // the bytes in front of the marker belong to the sync record itself
+        mSkippedBytes += Math.max(0, 1 + scanned - SYNC_MARKER_OFFSET - SYNC_MARKER.length);
+        final ByteBuffer rest = readLittleEndian(mRecordSize - SYNC_MARKER_OFFSET - SYNC_MARKER.length);
+        mRecords = rest.getLong();
+    }
+
+    private static int shift(byte[] window, int filled, byte b) {
+        if (filled < window.length) {
+            window[filled] = b;
+            return filled + 1;
+        }
+        System.arraycopy(window, 1, window, 0, window.length - 1);
+        window[window.length - 1] = b;
+        return filled;
+    }
+
+    private static boolean isSyncMarker(byte[] bytes, int offset) {
+        for (int i = 0; i < SYNC_MARKER.length; ++i) {
+            if (bytes[offset + i] != SYNC_MARKER[i]) return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer readLittleEndian(int size) throws IOException {
+        final byte[] bytes = new byte[size];
+        readFully(bytes, 0, size);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readFully(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int n = mInput.read(b, offset, length);
+            if (n < 0) throw new EOFException();
+            offset += n;
+            length -= n;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: SensorLogReader sensors.bin [output.jsonl]");
+            System.exit(1);
+        }
+        try (SensorLogReader reader = new SensorLogReader(new FileInputStream(args[0]));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                     args.length > 1 ? new FileOutputStream(args[1]) : System.out, StandardCharsets.UTF_8))) {
+            final long n = reader.toJsonl(out);
+            out.flush();
+            System.err.println(n + " records, " + reader.getSkippedBytes() + " corrupted bytes skipped");
+        }
+    }
+}
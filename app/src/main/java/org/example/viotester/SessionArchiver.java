@@ -0,0 +1,348 @@
+package org.example.viotester;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Packs finished recording folders into tar files in a background thread, one
+ * session at a time. Each file is deleted as soon as its entry has been written,
+ * and the archive is only renamed from NAME.tar.part to NAME.tar when it is
+ * complete. If archiving fails, the entries written so far stay in the .part file
+ * and the rest in the session folder.
+ *
+ * The large files are recorded as entry files (NAME + TAR_ENTRY_SUFFIX, see
+ * tar_entry.hpp), which already are tar entries. In a plain .tar, the largest one
+ * is renamed to the .part file and the others are appended as they are, so only
+ * the small files are copied with a new header. The extra disk space needed is
+ * then the size of the other entry files, the video is never copied.
+ *
+ * The .part file is created when the session is queued. After each entry, the
+ * length of the .part file and the entry name are appended to NAME.tar.part.entries,
+ * before the file is deleted. If the process ends before the archive is complete,
+ * resumeInterrupted continues it on the next start: the .part file is cut back to
+ * the last listed entry and the remaining files are added.
+ *
+ * Archives whose name ends with .tar.gz are compressed with ParallelGzipChannel.
+ * Files that are already compressed, like the MJPEG video, are stored in the gzip
+ * stream without compressing them again.
+ */
+class SessionArchiver {
+    private static final String TAG = SessionArchiver.class.getName();
+    static final String PART_SUFFIX = ".part";
+    static final String GZIP_SUFFIX = ".gz";
+    static final String ENTRIES_SUFFIX = ".entries";
+    // must match TarEntry::SUFFIX in tar_entry.hpp
+    static final String TAR_ENTRY_SUFFIX = ".tarentry";
+
+    // faster than the default level 6 and nearly as small for sensor logs
+    private static final int GZIP_LEVEL = 4;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "avi", "mp4", "mkv", "jpg", "jpeg", "png", "gz", "zst", "zip"));
+    // other files at least this large are checked by compressing a sample
+    private static final long SAMPLE_MIN_FILE_SIZE = 1 << 20;
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    // files that do not compress below this fraction of the sample size are stored
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    // archive file name -> fraction of bytes written, for sessions queued or in progress
+    private static final Map<String, Float> sProgress = new ConcurrentHashMap<>();
+    private static boolean sResumed = false;
+
+    private SessionArchiver() {}
+
+    static void archive(final File folder, final File tarFile) {
+        sProgress.put(tarFile.getName(), 0f);
+        try {
+            // marks the session for resumeInterrupted until the archive is complete
+            if (getPartFile(tarFile).createNewFile()) Log.d(TAG, "queued " + tarFile.getName());
+        } catch (IOException e) {
+            Log.w(TAG, "failed to create " + getPartFile(tarFile), e);
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeTarball(folder, tarFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to archive " + folder.getAbsolutePath(), e);
+                } finally {
+                    sProgress.remove(tarFile.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return archive file names and the fraction written so far, for all
+     *  archives that are queued or being written
+     */
+    static Map<String, Float> getArchivesInProgress() {
+        return sProgress;
+    }
+
+    /**
+     * Queues the archives that were not finished when the process ended last time
+     * and removes folders left over from finished ones. Only the first call in each
+     * process does anything
+     *
+     * @param rootFolder the folder with the sessions, see DataRecorder.getFolder
+     */
+    static synchronized void resumeInterrupted(final File rootFolder) {
+        if (sResumed) return;
+        sResumed = true;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = rootFolder.listFiles();
+                if (files == null) return;
+                for (File f : files) {
+                    final String name = f.getName();
+                    if (name.endsWith(PART_SUFFIX)) {
+                        final File tarFile = new File(rootFolder, name.substring(0, name.length() - PART_SUFFIX.length()));
+                        // queued in this process
+                        if (sProgress.containsKey(tarFile.getName())) continue;
+                        final File folder = getSessionFolder(tarFile);
+                        if (folder.isDirectory()) {
+                            Log.i(TAG, "resuming interrupted archive " + tarFile.getName());
+                            archive(folder, tarFile);
+                        } else {
+                            Log.w(TAG, "cannot resume " + name + ", " + folder + " does not exist");
+                        }
+                    } else if (name.endsWith(DataRecorder.ARCHIVE_SUFFIX)
+                            || name.endsWith(DataRecorder.ARCHIVE_SUFFIX + GZIP_SUFFIX)) {
+                        // the process ended after the rename
+                        final File folder = getSessionFolder(f);
+                        final String[] left = folder.list();
+                        if (left != null && left.length == 0 && folder.delete()) {
+                            Log.d(TAG, "deleted empty folder " + folder);
+                        }
+                        final File entries = getEntriesFile(f);
+                        if (entries.exists() && !entries.delete()) Log.w(TAG, "failed to delete " + entries);
+                    }
+                }
+            }
+        });
+    }
+
+    private static File getPartFile(File tarFile) {
+        return new File(tarFile.getAbsolutePath() + PART_SUFFIX);
+    }
+
+    private static File getEntriesFile(File tarFile) {
+        return new File(getPartFile(tarFile).getAbsolutePath() + ENTRIES_SUFFIX);
+    }
+
+    /** NAME for NAME.tar and NAME.tar.gz, see DataRecorder */
+    private static File getSessionFolder(File tarFile) {
+        String name = tarFile.getName();
+        if (name.endsWith(GZIP_SUFFIX)) name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+        if (name.endsWith(DataRecorder.ARCHIVE_SUFFIX)) {
+            name = name.substring(0, name.length() - DataRecorder.ARCHIVE_SUFFIX.length());
+        }
+        return new File(tarFile.getParentFile(), name);
+    }
+
+    private static void writeTarball(File folder, final File tarFile) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null)
+            throw new IOException("failed to list files in " + folder.getAbsolutePath());
+
+        final File partFile = getPartFile(tarFile);
+        final File entriesFile = getEntriesFile(tarFile);
+        final boolean gzipped = tarFile.getName().endsWith(GZIP_SUFFIX);
+        // non-empty if this continues an interrupted archive
+        Entries written = Entries.read(entriesFile);
+        if (!gzipped && written.names.isEmpty()) {
+            final File base = findLargestEntryFile(files);
+            if (base != null) {
+                // listed first, so an interrupted rename is completed below
+                Entries.append(entriesFile, base.length(), base.getName());
+                written = Entries.read(entriesFile);
+            }
+        }
+        if (written.first != null) {
+            final File first = new File(folder, written.first);
+            // the .part file is shorter only if the first entry is a renamed entry file
+            if (first.exists() && partFile.length() < written.firstPartLength) {
+                Log.d(TAG, "renaming " + first.getName() + " to " + partFile);
+                if (!first.renameTo(partFile))
+                    throw new IOException("failed to rename " + first + " to " + partFile);
+            }
+        }
+
+        long total = 0;
+        for (File f : files) {
+            if (!written.names.contains(f.getName())) total += f.length();
+        }
+        final long bytesTotal = total;
+        if (!written.names.isEmpty()) {
+            Log.i(TAG, String.format(Locale.US, "%d entries already in %s, %d bytes left",
+                    written.names.size(), partFile.getName(), bytesTotal));
+        }
+
+        // drops an incomplete entry after the last listed one
+        try (RandomAccessFile part = new RandomAccessFile(partFile, "rw")) {
+            part.setLength(written.partLength);
+        }
+        final FileChannel partChannel = new FileOutputStream(partFile, true).getChannel();
+        WritableByteChannel output = partChannel;
+        ParallelGzipChannel gzip = null;
+        if (gzipped) {
+            gzip = new ParallelGzipChannel(output, GZIP_LEVEL);
+            output = gzip;
+        }
+        try (TarWriter out = new TarWriter(output)) {
+            out.setProgressListener(new TarWriter.ProgressListener() {
+                @Override
+                public void onProgress(long payloadBytes) {
+                    sProgress.put(tarFile.getName(), bytesTotal > 0 ? payloadBytes / (float)bytesTotal : 1f);
+                }
+            });
+            for (File f : files) {
+                if (!written.names.contains(f.getName())) {
+                    Log.d(TAG, "adding " + f.getName() + " to tar " + partFile);
+                    addFile(out, gzip, f);
+                    // the entry must be on disk before the file is deleted
+                    if (gzip != null) gzip.flush();
+                    partChannel.force(false);
+                    Entries.append(entriesFile, partChannel.size(), f.getName());
+                }
+                if (f.exists() && !f.delete()) throw new IOException("failed to delete " + f);
+            }
+            Log.d(TAG, String.format("archived %d bytes to %s", out.getPayloadBytes(), tarFile.getName()));
+        }
+
+        if (!partFile.renameTo(tarFile))
+            throw new IOException("failed to rename " + partFile + " to " + tarFile);
+        if (!entriesFile.delete()) Log.w(TAG, "failed to delete " + entriesFile);
+        // the archive is complete, an empty folder left behind is removed by resumeInterrupted
+        if (!folder.delete()) Log.w(TAG, "failed to delete folder " + folder);
+        Log.i(TAG, "tarball " + tarFile + " created successfully");
+    }
+
+    private static boolean isEntryFile(File file) {
+        return file.getName().endsWith(TAR_ENTRY_SUFFIX);
+    }
+
+    /** The largest complete entry file, null if there is none */
+    private static File findLargestEntryFile(File[] files) throws IOException {
+        File largest = null;
+        for (File f : files) {
+            if (isEntryFile(f) && TarWriter.getEntryFileSize(f) >= 0
+                    && (largest == null || f.length() > largest.length())) {
+                largest = f;
+            }
+        }
+        return largest;
+    }
+
+    private static void addFile(TarWriter out, ParallelGzipChannel gzip, File file) throws IOException {
+        if (!isEntryFile(file)) {
+            if (gzip != null) gzip.setStoreOnly(isCompressed(file, file.getName()));
+            out.addFile(file, file.getName());
+        } else if (TarWriter.getEntryFileSize(file) >= 0) {
+            if (gzip != null) gzip.setStoreOnly(isCompressed(file, TarWriter.getEntryFileName(file)));
+            out.addEntryFile(file);
+        } else {
+            // the header was not written, e.g., because the recording failed or was cut off
+            final String name = file.getName().substring(0, file.getName().length() - TAR_ENTRY_SUFFIX.length());
+            Log.w(TAG, file + " is not a complete tar entry, adding its contents as " + name);
+            if (gzip != null) gzip.setStoreOnly(isCompressed(file, name));
+            final long headerSize = Math.min(file.length(), TarWriter.BLOCK_SIZE);
+            out.addFileRange(file, name, headerSize, file.length() - headerSize);
+        }
+    }
+
+    /** The entries file of an archive: lines of "PART_FILE_LENGTH NAME" */
+    private static class Entries {
+        // length of the .part file after the last complete entry
+        long partLength = 0;
+        // the first listed entry and the length of the .part file after it
+        String first = null;
+        long firstPartLength = 0;
+        final Set<String> names = new HashSet<>();
+
+        static Entries read(File file) throws IOException {
+            final Entries entries = new Entries();
+            if (!file.exists()) return entries;
+            final byte[] bytes;
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                bytes = new byte[(int)in.length()];
+                in.readFully(bytes);
+            }
+            final String text = new String(bytes, StandardCharsets.UTF_8);
+            // a line without a newline was cut off when the process ended
+            final int end = text.lastIndexOf('\n');
+            if (end < 0) return entries;
+            for (String line : text.substring(0, end).split("\n")) {
+                final int space = line.indexOf(' ');
+                if (space <= 0) throw new IOException("invalid line in " + file + ": " + line);
+                try {
+                    entries.partLength = Long.parseLong(line.substring(0, space));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid line in " + file + ": " + line, e);
+                }
+                entries.names.add(line.substring(space + 1));
+                if (entries.first == null) {
+                    entries.first = line.substring(space + 1);
+                    entries.firstPartLength = entries.partLength;
+                }
+            }
+            return entries;
+        }
+
+        static void append(File file, long partLength, String name) throws IOException {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write((partLength + " " + name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+        }
+    }
+
+    /** @param name the name of the entry, which may differ from the file name */
+    private static boolean isCompressed(File file, String name) throws IOException {
+        final String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        if (COMPRESSED_EXTENSIONS.contains(extension)) return true;
+        if (file.length() < SAMPLE_MIN_FILE_SIZE) return false;
+
+        // a sample from the middle of the file, the beginning is often a header
+        final byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position((file.length() - SAMPLE_SIZE) / 2);
+            int n;
+            while (length < SAMPLE_SIZE && (n = in.read(sample, length, SAMPLE_SIZE - length)) > 0) length += n;
+        }
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            final byte[] out = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) compressed += deflater.deflate(out);
+            final boolean incompressible = compressed > INCOMPRESSIBLE_RATIO * length;
+            if (incompressible) Log.d(TAG, name + " is already compressed, storing");
+            return incompressible;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.example.viotester;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.view.View;
@@ -12,31 +13,68 @@ import android.widget.ListView;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
 
 public class ShareListActivity extends AppCompatActivity {
     private static final String TAG = ShareListActivity.class.getName();
+    private static final long ARCHIVING_REFRESH_INTERVAL_MS = 1000;
+
+    private ListView mListView;
+    private final Handler mHandler = new Handler();
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            populateListView(mListView);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_share_list);
-        ListView listView = findViewById(R.id.share_data_list);
-        listView.setEmptyView(findViewById(R.id.share_data_empty_list));
-        populateListView(listView);
+        mListView = findViewById(R.id.share_data_list);
+        mListView.setEmptyView(findViewById(R.id.share_data_empty_list));
+        // in case the app was restored directly to this activity
+        SessionArchiver.resumeInterrupted(DataRecorder.getFolder(getExternalCacheDir()));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        populateListView(mListView);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
     }
 
     private void populateListView(ListView listView) {
         final ArrayList<String> listItems = new ArrayList<>();
         File[] files = DataRecorder.getFolder(getExternalCacheDir()).listFiles();
         if (files == null) files = new File[0];
+        // null for archives that are still being written
         final ArrayList<File> fileList = new ArrayList<>();
 
+        final Map<String, Float> archiving = SessionArchiver.getArchivesInProgress();
+        for (Map.Entry<String, Float> e : archiving.entrySet()) {
+            listItems.add(String.format(Locale.US, "%s (archiving %.0f%%)", e.getKey(), 100 * e.getValue()));
+            fileList.add(null);
+        }
+        if (!archiving.isEmpty()) {
+            mHandler.removeCallbacks(mRefresh);
+            mHandler.postDelayed(mRefresh, ARCHIVING_REFRESH_INTERVAL_MS);
+        }
+
         for (File f : files) {
             String fn = f.getName();
-            if (fn.endsWith(".tar")) {
+            if (fn.endsWith(DataRecorder.ARCHIVE_SUFFIX)
+                    || fn.endsWith(DataRecorder.ARCHIVE_SUFFIX + SessionArchiver.GZIP_SUFFIX)) {
                 String text = fn + " (" + Formatter.formatShortFileSize(this, f.length()) + ")";
                 listItems.add(text);
                 fileList.add(f);
@@ -49,6 +87,7 @@ public class ShareListActivity extends AppCompatActivity {
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
                 Log.d(TAG, "selected item " + i + ": " + listItems.get(i));
                 File f = fileList.get(i);
+                if (f == null) return;
 
                 Uri contentUri = FileProvider.getUriForFile(ShareListActivity.this, "org.example.viotester.fileprovider", f);
                 if (contentUri == null)
@@ -0,0 +1,252 @@
+package org.example.viotester;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal ustar writer. Headers are built here and file payloads are moved with
+ * FileChannel.transferTo, which lets the kernel copy the data (sendfile or
+ * copy_file_range on Linux) instead of passing every byte through Java buffers.
+ * When writing to another channel, e.g., a compressor, transferTo falls back to
+ * an ordinary copy. Only regular files are supported. Does not depend on Android.
+ *
+ * Entry files (see tar_entry.hpp in the native code) already contain their header
+ * and padding, and are added as they are with addEntryFile.
+ */
+public class TarWriter implements Closeable {
+    static final int BLOCK_SIZE = 512;
+    private static final int MAX_NAME_LENGTH = 100;
+    // largest size that fits in the 11 octal digits of the size field
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    // transferTo is called in chunks of at most this size to report progress
+    private static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    public interface ProgressListener {
+        /** @param payloadBytes file bytes written to the archive so far */
+        void onProgress(long payloadBytes);
+    }
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(BLOCK_SIZE);
+    private final ByteBuffer mZeros = ByteBuffer.allocate(2 * BLOCK_SIZE);
+    private ProgressListener mProgressListener;
+    private long mPayloadBytes = 0;
+    private boolean mFinished = false;
+
+    public TarWriter(File output) throws IOException {
+        this(new FileOutputStream(output).getChannel());
+    }
+
+    /** The channel is closed with this writer */
+    public TarWriter(WritableByteChannel output) {
+        mChannel = output;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /** Total file bytes written so far, excluding headers and padding */
+    public long getPayloadBytes() {
+        return mPayloadBytes;
+    }
+
+    public void addFile(File file, String name) throws IOException {
+        addFileRange(file, name, 0, file.length());
+    }
+
+    /** Adds size bytes of file starting from offset as an entry */
+    public void addFileRange(File file, String name, long offset, long size) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel source = in.getChannel();
+            if (offset + size > source.size()) throw new IOException(file + " is shorter than " + (offset + size) + " bytes");
+            writeHeader(name, size, file.lastModified() / 1000);
+            transfer(source, offset, size, size);
+            writePadding(size);
+        }
+    }
+
+    /**
+     * Adds an entry file as it is, see getEntryFileSize. Its header must be valid
+     * @return the name of the entry
+     */
+    public String addEntryFile(File file) throws IOException {
+        final long size = getEntryFileSize(file);
+        if (size < 0) throw new IOException("invalid tar entry file " + file);
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel source = in.getChannel();
+            transfer(source, 0, source.size(), size);
+        }
+        return getEntryFileName(file);
+    }
+
+    /**
+     * Size of the contents of a file written as a single tar entry with its header
+     * and padding, or -1 if the file is not a complete entry, e.g., because the
+     * header was never written
+     */
+    public static long getEntryFileSize(File file) throws IOException {
+        final long length = file.length();
+        if (length < BLOCK_SIZE || length % BLOCK_SIZE != 0) return -1;
+        final byte[] h = readHeader(file);
+        if (h[0] == 0 || h[156] != '0' || !new String(h, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) return -1;
+
+        // computed with the checksum field itself filled with spaces
+        final long storedChecksum = parseOctal(h, 148, 8);
+        Arrays.fill(h, 148, 156, (byte)' ');
+        long checksum = 0;
+        for (byte b : h) checksum += b & 0xff;
+        if (storedChecksum != checksum) return -1;
+
+        final long size = parseSize(h, 124, 12);
+        final long padded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        return size >= 0 && BLOCK_SIZE + padded == length ? size : -1;
+    }
+
+    /** Name of the entry in an entry file, see getEntryFileSize */
+    public static String getEntryFileName(File file) throws IOException {
+        final byte[] h = readHeader(file);
+        int length = 0;
+        while (length < MAX_NAME_LENGTH && h[length] != 0) length++;
+        return new String(h, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // copies count bytes from position, of which at most payloadBytes are reported as payload
+    private void transfer(FileChannel source, long position, long count, long payloadBytes) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            final long n = source.transferTo(position + transferred,
+                    Math.min(count - transferred, TRANSFER_CHUNK_SIZE), mChannel);
+            if (n <= 0) {
+                throw new IOException("unexpected end of file at " + (position + transferred) + "/" + (position + count) + " bytes");
+            }
+            mPayloadBytes += Math.min(payloadBytes, transferred + n) - Math.min(payloadBytes, transferred);
+            transferred += n;
+            if (mProgressListener != null) mProgressListener.onProgress(mPayloadBytes);
+        }
+    }
+
+    private static byte[] readHeader(File file) throws IOException {
+        final byte[] h = new byte[BLOCK_SIZE];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.readFully(h);
+        }
+        return h;
+    }
+
+    /** Writes the two zero blocks that end the archive */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        writeZeros(2 * BLOCK_SIZE);
+        mFinished = true;
+    }
+
+    /** Finishes the archive if needed */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void writeHeader(String name, long size, long mtimeSeconds) throws IOException {
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_LENGTH) throw new IOException("tar entry name too long: " + name);
+
+        final byte[] h = mHeader.array();
+        Arrays.fill(h, (byte)0);
+        System.arraycopy(nameBytes, 0, h, 0, nameBytes.length);
+        putOctal(h, 100, 8, 0644); // mode
+        putOctal(h, 108, 8, 0); // uid
+        putOctal(h, 116, 8, 0); // gid
+        putSize(h, 124, 12, size);
+        putOctal(h, 136, 12, mtimeSeconds);
+        h[156] = '0'; // regular file
+        putString(h, 257, "ustar\0");
+        putString(h, 263, "00");
+
+        // computed with the checksum field itself filled with spaces
+        Arrays.fill(h, 148, 156, (byte)' ');
+        long checksum = 0;
+        for (byte b : h) checksum += b & 0xff;
+        putOctal(h, 148, 7, checksum);
+        h[155] = ' ';
+
+        mHeader.clear();
+        writeFully(mHeader);
+    }
+
+    private void writePadding(long size) throws IOException {
+        final int remainder = (int)(size % BLOCK_SIZE);
+        if (remainder > 0) writeZeros(BLOCK_SIZE - remainder);
+    }
+
+    private void writeZeros(int count) throws IOException {
+        mZeros.clear();
+        mZeros.limit(count);
+        writeFully(mZeros);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) mChannel.write(buffer);
+    }
+
+    /** Octal digits up to a NUL or space, -1 if there are other characters */
+    private static long parseOctal(byte[] h, int offset, int length) {
+        long value = 0;
+        int i = offset;
+        while (i < offset + length && h[i] == ' ') i++;
+        for (; i < offset + length && h[i] != 0 && h[i] != ' '; ++i) {
+            if (h[i] < '0' || h[i] > '7') return -1;
+            value = value * 8 + (h[i] - '0');
+        }
+        return value;
+    }
+
+    /** See putSize */
+    private static long parseSize(byte[] h, int offset, int length) {
+        if ((h[offset] & 0x80) == 0) return parseOctal(h, offset, length);
+        long size = 0;
+        for (int i = 1; i < length; ++i) size = (size << 8) | (h[offset + i] & 0xff);
+        return size;
+    }
+
+    /** Zero-padded octal digits followed by a NUL, filling the field */
+    private static void putOctal(byte[] h, int offset, int length, long value) {
+        final int digits = length - 1;
+        for (int i = digits - 1; i >= 0; --i) {
+            h[offset + i] = (byte)('0' + (value & 7));
+            value >>>= 3;
+        }
+        h[offset + digits] = 0;
+    }
+
+    /** Octal, or the GNU base-256 encoding for files of 8 GiB or more */
+    private static void putSize(byte[] h, int offset, int length, long size) {
+        if (size <= MAX_OCTAL_SIZE) {
+            putOctal(h, offset, length, size);
+            return;
+        }
+        for (int i = length - 1; i > 0; --i) {
+            h[offset + i] = (byte)(size & 0xff);
+            size >>>= 8;
+        }
+        h[offset] = (byte)0x80;
+    }
+
+    private static void putString(byte[] h, int offset, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, h, offset, bytes.length);
+    }
+}
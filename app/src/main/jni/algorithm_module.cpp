@@ -5,14 +5,31 @@ using AlgoPtr = std::unique_ptr<AlgorithmModule>;
 using json = AlgorithmModule::json;
 
 AlgoPtr buildRecorder(int textureId, int w, int h, const json &settings);
-AlgoPtr buildCameraCalibrator(int textureId, int w, int h);
+AlgoPtr buildCameraCalibrator(int textureId, int w, int h, const json *settings);
 AlgoPtr buildTracking(int textureId, int w, int h, const json &settings);
 AlgoPtr buildGpuExample(int textureId, int w, int h, const json &settings);
 
+void AlgorithmModule::addImuBatch(const ImuSample *samples, std::size_t count) {
+    for (std::size_t i = 0; i < count; ++i) {
+        const auto &s = samples[i];
+        switch (s.type) {
+            case ImuSample::Type::GYROSCOPE:
+                addGyro(s.t, s.val);
+                break;
+            case ImuSample::Type::ACCELEROMETER:
+                addAcc(s.t, s.val);
+                break;
+            default:
+                // extra channels are ignored unless the module handles them
+                break;
+        }
+    }
+}
+
 AlgoPtr AlgorithmModule::build(int textureId, int width, int height, const std::string &name, const json *settings) {
     if (name == "calibration") {
 #ifdef USE_CAMERA_CALIBRATOR
-        return buildCameraCalibrator(textureId, width, height);
+        return buildCameraCalibrator(textureId, width, height, settings);
 #else
         assert(false && "Camera calibrator not built");
 #endif
@@ -1,8 +1,11 @@
 #ifndef ALGORITHM_MODULE_HPP
 #define ALGORITHM_MODULE_HPP
 
+#include <cstddef>
+#include <cstdint>
 #include <string>
 #include <memory>
+#include <vector>
 #include <nlohmann/json_fwd.hpp>
 #include "jsonl-recorder/types.hpp"
 
@@ -21,25 +24,131 @@ public:
         float accuracy;
     };
 
+    struct ImuSample {
+        // must match the native types in SensorChannel.java
+        enum class Type {
+            // the gyroscope and accelerometer used by the algorithms
+            GYROSCOPE = 0,
+            ACCELEROMETER = 1,
+            // extra channels, only given in addImuBatch and usually only recorded
+            GYROSCOPE_UNCALIBRATED = 2,
+            ACCELEROMETER_UNCALIBRATED = 3,
+            MAGNETOMETER = 4,
+            MAGNETOMETER_UNCALIBRATED = 5,
+            PRESSURE = 6,
+            GYROSCOPE_CALIBRATED = 7,
+            ACCELEROMETER_CALIBRATED = 8
+        };
+        Type type;
+        double t;
+        Vector3d val;
+        // bias estimate of the uncalibrated sensors, zero if not given
+        Vector3d bias;
+        // number of values given by the sensor: 1 (pressure in val.x), 3 or 6 (val + bias)
+        int dimensions;
+
+        bool isExtra() const { return type != Type::GYROSCOPE && type != Type::ACCELEROMETER; }
+    };
+
+    // capture results of a frame from the camera session, times in seconds
+    struct FrameMetadata {
+        // -1 if no capture result matched the frame timestamp yet, see addFrameMetadata
+        int64_t frameNumber = -1;
+        double exposureTime = 0;
+        double rollingShutterSkew = 0;
+        double frameDuration = 0;
+    };
+
+    /**
+     * Recorded events with a known schema, written without building a JSON tree
+     * (see jsonl_emitter.hpp). Fixed-size so that they can be queued without
+     * allocating. Other data can be recorded with addJsonData
+     */
+    struct Event {
+        enum class Type {
+            // external pose, e.g., from ARCore, under the key tag
+            POSE,
+            // GNSS clock (gpsTime.utcSeconds)
+            GNSS_TIME,
+            // camera frames missing from the timestamp sequence
+            FRAME_GAP
+        };
+        static constexpr std::size_t MAX_TAG_LENGTH = 31;
+
+        Type type;
+        double t;
+        // POSE
+        char tag[MAX_TAG_LENGTH + 1];
+        float position[3];
+        float orientation[4]; // w, x, y, z
+        // GNSS_TIME
+        double utcSeconds;
+        // FRAME_GAP
+        double duration;
+        int missingFrames;
+    };
+
     struct CameraIntrinsics {
         int cameraIndex = 0;
         float focalLengthX, focalLengthY;
         float principalPointX, principalPointY;
+        // not intrinsics, but passed along with them to addFrame
+        FrameMetadata metadata;
     };
 
     // these may be called from the GL thread
     static std::unique_ptr<AlgorithmModule> build(int textureId, int width, int height, const std::string &name, const json *settings = nullptr);
     virtual ~AlgorithmModule() = default;
 
-    // these methods are guaranteed to be called from an "algorithm/sensor thread"
+    // these methods are guaranteed to be called from an "algorithm/sensor thread".
+    // Note: if the native sensor source is enabled, addGyro and addAcc are called
+    // from a separate native sensor thread (see sensor_source.hpp)
     virtual void addGyro(double t, const Vector3d &val) = 0;
     virtual void addAcc(double t, const Vector3d &val) = 0;
+
+    /**
+     * Batched version of addGyro and addAcc. The samples are given in the order
+     * they were received. The default implementation calls addGyro / addAcc for
+     * each sample, override to process the whole span at once.
+     */
+    virtual void addImuBatch(const ImuSample *samples, std::size_t count);
+
+    /**
+     * Gyroscope and accelerometer values at a common timestamp. Only called
+     * if the module is wrapped with makeImuSynchronized. Called in addition to
+     * addGyro and addAcc
+     */
+    virtual void addImu(double t, const Vector3d &gyro, const Vector3d &acc) { (void)t; (void)gyro; (void)acc; }
     virtual void addGps(double t, const Gps &gps) { (void)t; (void)gps; };
     virtual void addJsonData(const json &json) { (void)json; };
+    virtual void addEvent(const Event &event) { (void)event; }
+
+    /**
+     * Capture results of an earlier frame that arrived only after the frame was
+     * given to addFrame / addGrayFrame, whose metadata.frameNumber was then -1.
+     * t is the time of that frame. Called from the same threads as addFrame
+     * and addGrayFrame
+     */
+    virtual void addFrameMetadata(double t, const FrameMetadata &metadata) { (void)t; (void)metadata; }
     virtual std::string status() const { return ""; }
     virtual int trackingStatus() const  { return -1; };
     virtual bool pose(Pose &pose) const { (void)pose; return false; };
 
+    /**
+     * True if frames are processed in a separate worker thread, see "cpuPipelineFrames"
+     * in CpuAlgorithmModule. The sensor calls then run concurrently with that processing
+     */
+    virtual bool pipelined() const { return false; }
+
+    /**
+     * A gray frame read on the CPU without the GPU (see frame_source.hpp), called
+     * from the frame source thread. The image is not copied and only valid during
+     * the call. Ignored unless the module supports it
+     */
+    virtual void addGrayFrame(double t, const cv::Mat &grayFrame, const CameraIntrinsics &cameraIntrinsics) {
+        (void)t; (void)grayFrame; (void)cameraIntrinsics;
+    }
+
     // these methods are called from the OpenGL thread
     virtual void addFrame(double t, const CameraIntrinsics &cameraIntrinsics) = 0;
 
@@ -57,8 +166,40 @@ public:
      */
     virtual void render(double t) { (void)t; }
 
-    // This helper function will protect all calls with a single mutex
-    static std::unique_ptr<AlgorithmModule> makeThreadSafe(AlgorithmModule *nonThreadSafe);
+    enum class ThreadSafeMode {
+        // all calls, including sensor data, wait for the module mutex
+        LOCK_ALL,
+        // IMU, GPS, JSON, event and frame metadata calls are buffered and passed to
+        // the module at the start of the next addFrame, so the sensor threads do not
+        // wait for frame processing. If a buffer is full, it is passed on right away
+        // under the module mutex instead of dropping data
+        QUEUE_SENSORS
+    };
+
+    // This helper function will protect all calls with a single mutex. The status
+    // also shows the longest time a sensor call had to wait for a lock. Not for
+    // pipelined() modules, whose frame processing the mutex cannot cover
+    static std::unique_ptr<AlgorithmModule> makeThreadSafe(AlgorithmModule *nonThreadSafe,
+            ThreadSafeMode mode = ThreadSafeMode::LOCK_ALL);
+
+    /**
+     * Wrap a module so that gyroscope, accelerometer and frame calls reach it in
+     * strict timestamp order. IMU samples are held for at most the given latency
+     * budget, or until a frame with a later timestamp arrives. Late IMU samples
+     * are dropped. Frames are never delayed, since they must be processed in the
+     * GL thread, but frames older than an already delivered IMU sample are counted
+     * as late. Use a budget larger than the camera delivery delay to avoid those.
+     * IMU calls wait while a frame is processed. The samples still held when the
+     * wrapper is destroyed are delivered in order before the module is destroyed.
+     */
+    static std::unique_ptr<AlgorithmModule> makeTimeOrdered(AlgorithmModule *module, double latencyBudgetSeconds);
+
+    /**
+     * Wrap a module so that it also receives synchronized gyro+acc samples
+     * through addImu, interpolated either to the gyroscope timestamps
+     * (fixedRate <= 0) or to a fixed output rate in Hz
+     */
+    static std::unique_ptr<AlgorithmModule> makeImuSynchronized(AlgorithmModule *module, double fixedRate = 0);
 };
 
 class CpuAlgorithmModule : public AlgorithmModule {
@@ -68,16 +209,70 @@ public:
                           cv::Mat &outputColorFrame) = 0;
 
     void addFrame(double t, const CameraIntrinsics &cameraIntrinsics) final;
+    void addGrayFrame(double t, const cv::Mat &grayFrame, const CameraIntrinsics &cameraIntrinsics) final;
     void setupRendering(int width, int height) final;
     void render(double t) final;
 
     virtual ~CpuAlgorithmModule();
 
+    /**
+     * Take ownership of a module. With "cpuPipelineFrames" > 0, the wrapper stops the
+     * pipeline worker thread before deleting the module, so the thread never calls
+     * addFrame on a partially destroyed subclass. All modules should be returned
+     * through this. A pipelined module gets the sensor calls in the sensor threads
+     * while addFrame runs in the worker thread, so it must make them thread-safe
+     * itself: makeThreadSafe does not help and asserts against it
+     */
+    static std::unique_ptr<AlgorithmModule> makePipelineOwner(CpuAlgorithmModule *module);
+
 protected:
-    CpuAlgorithmModule(int textureId, int width, int height);
+    /**
+     * @param settings optional module settings. Uses "gpuReadbackBuffers": if >= 2, frames
+     *   are read from the GPU asynchronously and passed to addFrame that many frames
+     *   minus one late, with their original timestamps. With "gpuCombinedReadback",
+     *   the gray and color frames are converted in one pass and read in one transfer.
+     *   "gpuPyramidLevels" >= 2 enables grayPyramid(). With "algorithmImageDownscale" > 1,
+     *   grayFrame and grayPyramid() are produced at a resolution that many times smaller
+     *   (width rounded down to a multiple of 4) by averaging boxes of that many pixels
+     *   per axis, while colorFrame keeps the full resolution.
+     *   With "cameraYuvImages" > 0, frames only come from addGrayFrame, colorFrame is
+     *   nullptr and the camera texture is only drawn to the screen
+     */
+    CpuAlgorithmModule(int textureId, int width, int height, const json *settings = nullptr);
     bool visualizationEnabled = true;
+    // set to false if the module only uses the lower levels of grayPyramid(). Then the
+    // full resolution gray image is not read from the GPU and grayFrame is empty
+    bool grayFrameEnabled = true;
+    // set to true if the module uses grayPyramid(), otherwise "gpuPyramidLevels" is
+    // ignored and no pyramid is built or read from the GPU
+    bool grayPyramidEnabled = false;
+
+    /**
+     * Gray image pyramid of the frame given to addFrame, built on the GPU. Only valid
+     * during addFrame. Level 0 is grayFrame and level k is 2^k times smaller. Empty
+     * unless grayPyramidEnabled, "gpuPyramidLevels" >= 2 and the image size is
+     * divisible accordingly
+     */
+    const std::vector<cv::Mat> &grayPyramid() const;
+
+    /**
+     * The cameraIntrinsics given to addFrame match grayFrame. These match colorFrame,
+     * which differ if the algorithm input is downscaled. Only valid during addFrame
+     */
+    const CameraIntrinsics &colorFrameIntrinsics() const;
 
 private:
+    /**
+     * With "cpuPipelineFrames" > 0, the GL thread only reads frames to a pool of that
+     * many frames and the abstract addFrame runs in a separate worker thread, so it
+     * is no longer serialized with the other methods. "cpuPipelineDropPolicy" sets
+     * what happens when the pool is full: "oldest", "newest" or "block".
+     * Stops the worker thread, called by the makePipelineOwner wrapper. Does nothing
+     * if not pipelined.
+     */
+    void stopPipeline();
+    friend class PipelineOwnerImplementation;
+
     struct impl;
     std::unique_ptr<impl> pimpl;
 };
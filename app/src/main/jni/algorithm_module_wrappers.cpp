@@ -4,93 +4,637 @@
 #include "opengl/gpu_camera_adapter.hpp"
 #include "opengl/camera_renderer.hpp"
 #include "algorithm_module.hpp"
+#include "reorder_buffer.hpp"
+#include "imu_synchronizer.hpp"
 #include "logging.hpp"
 
+#include <nlohmann/json.hpp>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <deque>
+#include <iomanip>
+#include <sstream>
+#include <thread>
+#include <vector>
+
 struct CpuAlgorithmModule::impl {
-    cv::Mat colorFrame, grayFrame, visualization;
+    struct Frame {
+        // with combined readback, gray and color point to this buffer
+        cv::Mat combined;
+        cv::Mat gray, color;
+        // pyramid levels point to pyramidBuffer, level 0 may also be gray
+        cv::Mat pyramidBuffer;
+        std::vector<cv::Mat> pyramid;
+        bool hasGray = true;
+        double t = 0;
+        // cam is scaled to the gray image, colorCam is for the full resolution color image
+        CameraIntrinsics cam, colorCam;
+    };
+
+    // what to do in the pipelined mode when all frames in the pool are in use
+    enum class DropPolicy {
+        // reuse the oldest frame not yet taken by the algorithm thread
+        OLDEST,
+        // skip the new frame
+        NEWEST,
+        // wait in the GL thread until the algorithm thread releases a frame
+        BLOCK
+    };
+
+    cv::Mat visualization;
     std::mutex mutex, renderMutex;
     std::unique_ptr<GpuCameraAdapter> gpuAdapter;
-    std::unique_ptr<GpuCameraAdapter::TextureAdapter> rgbaTexture, grayTexture;
+    // produces the gray images and the pyramid at the algorithm resolution,
+    // null if it equals the camera resolution
+    std::unique_ptr<GpuCameraAdapter> algorithmAdapter;
+    std::unique_ptr<GpuCameraAdapter::TextureAdapter> rgbaTexture, grayTexture, combinedTexture;
     std::unique_ptr<CameraRenderer> renderer;
+    int width, height;
+    // resolution of the gray images, may be smaller than width x height
+    int algorithmWidth, algorithmHeight;
+    int readbackBuffers = 0;
+    bool combinedReadback = false;
+
+    // frames come from addGrayFrame and the camera texture is only displayed
+    bool cpuCapture = false;
+    int screenWidth = 0, screenHeight = 0;
+
+    // GPU pyramid, created on the first frame when the subclass settings are known
+    std::unique_ptr<GpuCameraAdapter::TextureAdapter> pyramidTexture;
+    int pyramidLevels = 0;
+    int pyramidFirstLevel = 0;
+    // the frame being processed, for grayPyramid()
+    const Frame *currentFrame = nullptr;
+    const std::vector<cv::Mat> noPyramid;
+
+    // used without pipelining, and for frames dropped by the pipeline
+    Frame directFrame;
+
+    // frames whose pixels are still being read from the GPU (asynchronous readback)
+    struct PendingFrame {
+        double t;
+        CameraIntrinsics cam;
+    };
+    std::deque<PendingFrame> pendingFrames;
+
+    // readback statistics, logged every READBACK_LOG_INTERVAL frames
+    static constexpr int READBACK_LOG_INTERVAL = 100;
+    int readbackFrames = 0;
+    double readbackSeconds = 0, addedLatencySeconds = 0;
+
+    // pipelined mode: the GL thread reads frames from the GPU to a preallocated
+    // pool and the algorithm runs in a separate worker thread
+    bool pipelined = false;
+    DropPolicy dropPolicy = DropPolicy::OLDEST;
+    std::vector<Frame> pool;
+    std::vector<Frame*> freeFrames;
+    std::deque<Frame*> readyFrames;
+    std::mutex poolMutex;
+    std::condition_variable poolChanged;
+    bool stopWorker = false;
+    std::thread worker;
+    cv::Mat workerOutput;
+
+    // GL and algorithm rates, logged every PIPELINE_LOG_INTERVAL_SECONDS
+    static constexpr double PIPELINE_LOG_INTERVAL_SECONDS = 5;
+    std::chrono::steady_clock::time_point pipelineStatsStart;
+    int glFrameCount = 0;
+    std::atomic<int> algorithmFrameCount { 0 };
+    int droppedFrameCount = 0; // protected by poolMutex
+
+    void allocate(Frame &frame) const {
+        if (combinedReadback) {
+            // layout of TextureAdapter::Type::GRAY_AND_BGRA
+            frame.combined = cv::Mat(cv::Size(width, height + height / 4), CV_8UC4);
+            frame.color = frame.combined.rowRange(0, height);
+            frame.gray = cv::Mat(cv::Size(width, height), CV_8UC1, frame.combined.ptr(height));
+        } else {
+            frame.gray = cv::Mat(cv::Size(algorithmWidth, algorithmHeight), CV_8UC1);
+            frame.color = cv::Mat(cv::Size(width, height), CV_8UC4);
+        }
+    }
+
+    GpuCameraAdapter &grayAdapter() {
+        return algorithmAdapter ? *algorithmAdapter : *gpuAdapter;
+    }
+
+    /**
+     * Scale intrinsics from the camera to the algorithm resolution. The GPU averages
+     * integer boxes starting from the top-left corner, see GpuCameraAdapter::create,
+     * so pixel centers map as (x + 0.5) / factor - 0.5
+     */
+    CameraIntrinsics scaleToAlgorithm(const CameraIntrinsics &cam) const {
+        if (!algorithmAdapter) return cam;
+        const float sx = 1.0f / (width / algorithmWidth), sy = 1.0f / (height / algorithmHeight);
+        CameraIntrinsics scaled = cam;
+        scaled.focalLengthX = cam.focalLengthX * sx;
+        scaled.focalLengthY = cam.focalLengthY * sy;
+        scaled.principalPointX = (cam.principalPointX + 0.5f) * sx - 0.5f;
+        scaled.principalPointY = (cam.principalPointY + 0.5f) * sy - 0.5f;
+        return scaled;
+    }
+
+    int readbackLatency() const {
+        return (combinedTexture ? *combinedTexture : *grayTexture).readbackLatency();
+    }
+
+    void createPyramid(bool grayNeeded) {
+        // level 0 comes from the pyramid unless it is not needed or read otherwise
+        pyramidFirstLevel = (combinedTexture || !grayNeeded) ? 1 : 0;
+        pyramidTexture = grayAdapter().createPyramidAdapter(pyramidLevels, pyramidFirstLevel, readbackBuffers);
+    }
+
+    void ensurePyramidBuffer(Frame &frame) const {
+        if (!frame.pyramidBuffer.empty()) return;
+        frame.pyramidBuffer = cv::Mat(1, int(pyramidTexture->readPixelsSize()), CV_8UC1);
+        frame.pyramid.resize(pyramidLevels);
+        std::size_t offset = 0;
+        for (int k = pyramidFirstLevel; k < pyramidLevels; ++k) {
+            const int w = algorithmWidth >> k, h = algorithmHeight >> k;
+            frame.pyramid[k] = cv::Mat(cv::Size(w, h), CV_8UC1, frame.pyramidBuffer.data + offset);
+            offset += std::size_t(w) * h;
+        }
+        if (pyramidFirstLevel == 0) frame.gray = frame.pyramid[0];
+    }
+
+    // returns false if there are no pixels yet (asynchronous readback)
+    bool readFrame(Frame &frame, bool grayNeeded, bool pyramidNeeded) {
+        const auto readStart = std::chrono::steady_clock::now();
+        if (pyramidLevels > 1 && !pyramidNeeded) {
+            log_warn("gpuPyramidLevels set but the module does not use grayPyramid(), ignoring");
+            pyramidLevels = 0;
+        }
+        if (pyramidLevels > 1 && !pyramidTexture) createPyramid(grayNeeded);
+        bool ok = true;
+        frame.hasGray = true;
+        if (combinedTexture) {
+            ok = GpuCameraAdapter::readChecked(*combinedTexture, frame.combined);
+        } else if (pyramidTexture && pyramidFirstLevel == 0) {
+            // read as pyramid level 0 below
+        } else if (grayNeeded) {
+            ok = GpuCameraAdapter::readChecked(*grayTexture, frame.gray);
+        } else {
+            frame.hasGray = false;
+        }
+        if (pyramidTexture) {
+            ensurePyramidBuffer(frame);
+            ok = GpuCameraAdapter::readChecked(*pyramidTexture, frame.pyramidBuffer) && ok;
+        }
+        if (rgbaTexture) {
+            // both textures use the same latency. The color one may have been created
+            // later, in which case the first frames are dropped until it catches up
+            ok = GpuCameraAdapter::readChecked(*rgbaTexture, frame.color) && ok;
+        }
+        readbackSeconds += std::chrono::duration<double>(std::chrono::steady_clock::now() - readStart).count();
+        return ok;
+    }
+
+    Frame *acquireFrame() {
+        std::unique_lock<std::mutex> lock(poolMutex);
+        if (freeFrames.empty()) {
+            switch (dropPolicy) {
+                case DropPolicy::BLOCK:
+                    poolChanged.wait(lock, [this]() { return !freeFrames.empty() || stopWorker; });
+                    if (freeFrames.empty()) return nullptr;
+                    break;
+                case DropPolicy::OLDEST:
+                    droppedFrameCount++;
+                    if (!readyFrames.empty()) {
+                        Frame *oldest = readyFrames.front();
+                        readyFrames.pop_front();
+                        return oldest;
+                    }
+                    return nullptr;
+                case DropPolicy::NEWEST:
+                    droppedFrameCount++;
+                    return nullptr;
+            }
+        }
+        Frame *frame = freeFrames.back();
+        freeFrames.pop_back();
+        return frame;
+    }
+
+    void releaseFrame(Frame *frame) {
+        std::lock_guard<std::mutex> lock(poolMutex);
+        freeFrames.push_back(frame);
+        poolChanged.notify_all();
+    }
+
+    void submitFrame(Frame *frame) {
+        std::lock_guard<std::mutex> lock(poolMutex);
+        readyFrames.push_back(frame);
+        poolChanged.notify_all();
+    }
+
+    void process(CpuAlgorithmModule &module, Frame &frame, cv::Mat &output) {
+        static const cv::Mat noGray;
+        const cv::Mat &gray = frame.hasGray ? frame.gray : noGray;
+        if (!frame.pyramid.empty()) frame.pyramid[0] = gray;
+        currentFrame = &frame;
+        module.addFrame(frame.t, gray, module.visualizationEnabled ? &frame.color : nullptr,
+                frame.cam, output);
+        currentFrame = nullptr;
+    }
+
+    void workerLoop(CpuAlgorithmModule &module) {
+        int drainedAtStop = 0;
+        while (true) {
+            Frame *frame;
+            {
+                std::unique_lock<std::mutex> lock(poolMutex);
+                poolChanged.wait(lock, [this]() { return !readyFrames.empty() || stopWorker; });
+                // frames already read from the GPU are processed before stopping, so
+                // that, e.g., the recorder does not lose the end of the video
+                if (readyFrames.empty()) break;
+                if (stopWorker) drainedAtStop++;
+                frame = readyFrames.front();
+                readyFrames.pop_front();
+            }
+            process(module, *frame, workerOutput);
+            if (module.visualizationEnabled) {
+                // copied so that the renderer never sees a frame being modified
+                std::lock_guard<std::mutex> lock(renderMutex);
+                if (renderer) {
+                    workerOutput.copyTo(visualization);
+                    renderer->setTextureData(visualization.cols, visualization.rows,
+                            visualization.data, CameraRenderer::AspectFixMethod::CROP);
+                }
+            }
+            algorithmFrameCount++;
+            releaseFrame(frame);
+        }
+        if (drainedAtStop > 0) log_debug("CPU pipeline: processed %d queued frame(s) at stop", drainedAtStop);
+    }
+
+    void logPipelineStats() {
+        glFrameCount++;
+        const auto now = std::chrono::steady_clock::now();
+        const double elapsed = std::chrono::duration<double>(now - pipelineStatsStart).count();
+        if (elapsed < PIPELINE_LOG_INTERVAL_SECONDS) return;
+        int dropped;
+        {
+            std::lock_guard<std::mutex> lock(poolMutex);
+            dropped = droppedFrameCount;
+            droppedFrameCount = 0;
+        }
+        log_info("CPU pipeline: GL %.1f fps, algorithm %.1f fps, dropped %d frame(s)",
+                glFrameCount / elapsed, algorithmFrameCount.exchange(0) / elapsed, dropped);
+        glFrameCount = 0;
+        pipelineStatsStart = now;
+    }
 };
 
-void GpuCameraAdapter::readChecked(GpuCameraAdapter::TextureAdapter &adapter, cv::Mat &mat) {
+bool GpuCameraAdapter::readChecked(GpuCameraAdapter::TextureAdapter &adapter, cv::Mat &mat) {
     adapter.render();
     assert(adapter.readPixelsSize() == mat.total() * mat.elemSize());
-    adapter.readPixels(mat.data);
+    return adapter.readPixels(mat.data);
 }
 
-CpuAlgorithmModule::~CpuAlgorithmModule() = default;
+CpuAlgorithmModule::~CpuAlgorithmModule() {
+    if (pimpl->worker.joinable()) {
+        // too late, the subclass has already been destroyed
+        log_error("pipelined CpuAlgorithmModule not owned by makePipelineOwner()");
+        stopPipeline();
+    }
+}
 
-CpuAlgorithmModule::CpuAlgorithmModule(int textureId, int width, int height) : pimpl(new impl) {
+CpuAlgorithmModule::CpuAlgorithmModule(int textureId, int width, int height, const json *settings) : pimpl(new impl) {
     log_debug("setting up CPU frames %d x %d (tex ID %d)", width, height, textureId);
-    pimpl->colorFrame = cv::Mat(cv::Size(width, height), CV_8UC4);
-    pimpl->grayFrame = cv::Mat(cv::Size(width, height), CV_8UC1);
+    pimpl->width = pimpl->algorithmWidth = width;
+    pimpl->height = pimpl->algorithmHeight = height;
+    int pipelineFrames = 0;
+    if (settings) {
+        pimpl->cpuCapture = settings->value("cameraYuvImages", 0) > 0;
+        const int downscale = settings->value("algorithmImageDownscale", 1);
+        if (downscale > 1 && pimpl->cpuCapture) {
+            log_warn("algorithm input downscaling not supported with YUV capture, ignoring");
+        } else if (downscale > 1) {
+            // gray images are read as RGBA, 4 pixels at a time
+            pimpl->algorithmWidth = (width / downscale) / 4 * 4;
+            pimpl->algorithmHeight = height / downscale;
+            log_debug("algorithm input %d x %d", pimpl->algorithmWidth, pimpl->algorithmHeight);
+        }
+        const int aw = pimpl->algorithmWidth, ah = pimpl->algorithmHeight;
+        pimpl->pyramidLevels = settings->value("gpuPyramidLevels", 0);
+        if (pimpl->pyramidLevels > 1 && !GpuCameraAdapter::isValidPyramid(aw, ah, pimpl->pyramidLevels)) {
+            log_warn("%d pyramid levels not supported for %d x %d, disabling", pimpl->pyramidLevels, aw, ah);
+            pimpl->pyramidLevels = 0;
+        }
+        pimpl->readbackBuffers = settings->value("gpuReadbackBuffers", 0);
+        // only useful if the color frame is also read, see setupRendering. The
+        // combined layout requires gray and color images of the same size
+        pimpl->combinedReadback = settings->value("gpuCombinedReadback", false)
+                && width % 4 == 0 && height % 4 == 0;
+        if (pimpl->combinedReadback && (aw != width || ah != height)) {
+            log_warn("combined GPU readback not supported with a downscaled algorithm input, disabling");
+            pimpl->combinedReadback = false;
+        }
+        pipelineFrames = settings->value("cpuPipelineFrames", 0);
+        if (pimpl->cpuCapture) {
+            // the frame source thread already runs in parallel with the GL thread
+            if (pipelineFrames > 0 || pimpl->pyramidLevels > 1 || pimpl->combinedReadback)
+                log_warn("GPU readback settings do not apply to YUV capture, ignoring");
+            pipelineFrames = 0;
+            pimpl->pyramidLevels = 0;
+            pimpl->combinedReadback = false;
+        }
+        const std::string policy = settings->value("cpuPipelineDropPolicy", std::string("oldest"));
+        if (policy == "newest") pimpl->dropPolicy = impl::DropPolicy::NEWEST;
+        else if (policy == "block") pimpl->dropPolicy = impl::DropPolicy::BLOCK;
+        else pimpl->dropPolicy = impl::DropPolicy::OLDEST;
+    }
+    pimpl->allocate(pimpl->directFrame);
 
     pimpl->gpuAdapter = GpuCameraAdapter::create(width, height, textureId);
-    pimpl->grayTexture = pimpl->gpuAdapter->createTextureAdapter(
-            GpuCameraAdapter::TextureAdapter::Type::GRAY_COMPRESSED);
+    if (pimpl->algorithmWidth != width || pimpl->algorithmHeight != height) {
+        pimpl->algorithmAdapter = GpuCameraAdapter::create(width, height, textureId,
+                pimpl->algorithmWidth, pimpl->algorithmHeight);
+    }
+    if (!pimpl->cpuCapture) {
+        pimpl->grayTexture = pimpl->grayAdapter().createTextureAdapter(
+                GpuCameraAdapter::TextureAdapter::Type::GRAY_COMPRESSED, pimpl->readbackBuffers);
+    }
+
+    if (pipelineFrames > 0) {
+        log_debug("CPU pipeline with %d frame(s)", pipelineFrames);
+        pimpl->pipelined = true;
+        pimpl->pool.resize(pipelineFrames);
+        for (auto &frame : pimpl->pool) {
+            pimpl->allocate(frame);
+            pimpl->freeFrames.push_back(&frame);
+        }
+        pimpl->pipelineStatsStart = std::chrono::steady_clock::now();
+        pimpl->worker = std::thread([this]() { pimpl->workerLoop(*this); });
+    }
+}
+
+void CpuAlgorithmModule::stopPipeline() {
+    if (!pimpl->worker.joinable()) return;
+    {
+        std::lock_guard<std::mutex> lock(pimpl->poolMutex);
+        pimpl->stopWorker = true;
+        pimpl->poolChanged.notify_all();
+    }
+    pimpl->worker.join();
 }
 
 void CpuAlgorithmModule::setupRendering(int visuWidth, int visuHeight) {
+    if (pimpl->cpuCapture) {
+        // the camera texture is drawn as is in render, no GPU readback
+        std::lock_guard<std::mutex> renderLock(pimpl->renderMutex);
+        pimpl->screenWidth = visuWidth;
+        pimpl->screenHeight = visuHeight;
+        return;
+    }
     if (visualizationEnabled) {
         std::lock_guard<std::mutex> lock(pimpl->mutex);
-        pimpl->rgbaTexture = pimpl->gpuAdapter->createTextureAdapter(GpuCameraAdapter::TextureAdapter::Type::BGRA);
+        if (pimpl->combinedReadback) {
+            // replaces the separate gray texture, which is released with its PBOs
+            pimpl->combinedTexture = pimpl->gpuAdapter->createTextureAdapter(
+                    GpuCameraAdapter::TextureAdapter::Type::GRAY_AND_BGRA, pimpl->readbackBuffers);
+            pimpl->grayTexture.reset();
+        } else {
+            pimpl->rgbaTexture = pimpl->gpuAdapter->createTextureAdapter(
+                    GpuCameraAdapter::TextureAdapter::Type::BGRA, pimpl->readbackBuffers);
+        }
         log_debug("screen size size set to %dx%d", visuWidth, visuHeight);
+        std::lock_guard<std::mutex> renderLock(pimpl->renderMutex);
         pimpl->renderer = CameraRenderer::build(visuWidth, visuHeight);
     }
 }
 
-void CpuAlgorithmModule::addFrame(double t, const CameraIntrinsics &cam) {
+void CpuAlgorithmModule::addFrame(double tNow, const CameraIntrinsics &camNow) {
     std::lock_guard<std::mutex> lock(pimpl->mutex);
-    GpuCameraAdapter::readChecked(*pimpl->grayTexture, pimpl->grayFrame);
+    impl &p = *pimpl;
+    // frames are given in addGrayFrame
+    if (p.cpuCapture) return;
 
-    if (pimpl->rgbaTexture) {
-        assert(!pimpl->colorFrame.empty());
-        GpuCameraAdapter::readChecked(*pimpl->rgbaTexture, pimpl->colorFrame);
+    impl::Frame *frame = &p.directFrame;
+    if (p.pipelined) {
+        p.logPipelineStats();
+        frame = p.acquireFrame();
+        if (!frame) {
+            // dropped, but the asynchronous readback ring must still advance
+            if (p.readbackLatency() == 0) return;
+            frame = &p.directFrame;
+        }
     }
+    const bool dropped = p.pipelined && frame == &p.directFrame;
+    const auto discard = [&p, frame, dropped]() {
+        if (p.pipelined && !dropped) p.releaseFrame(frame);
+    };
 
-    addFrame(t, pimpl->grayFrame, visualizationEnabled ? &pimpl->colorFrame : nullptr,
-             cam, pimpl->visualization);
+    const bool ok = p.readFrame(*frame, grayFrameEnabled, grayPyramidEnabled);
+
+    // with asynchronous readback, the pixels belong to an earlier frame
+    p.pendingFrames.push_back({ tNow, camNow });
+    if (int(p.pendingFrames.size()) <= p.readbackLatency()) {
+        discard();
+        return;
+    }
+    const impl::PendingFrame pending = p.pendingFrames.front();
+    p.pendingFrames.pop_front();
+    if (!ok || dropped) {
+        discard();
+        return;
+    }
+
+    frame->t = pending.t;
+    frame->cam = p.scaleToAlgorithm(pending.cam);
+    frame->colorCam = pending.cam;
+    p.addedLatencySeconds += tNow - pending.t;
+    if (++p.readbackFrames == impl::READBACK_LOG_INTERVAL) {
+        log_info("GPU readback: GL thread blocked %.2f ms / frame, added latency %d frame(s), %.1f ms",
+                p.readbackSeconds / p.readbackFrames * 1000,
+                p.readbackLatency(),
+                p.addedLatencySeconds / p.readbackFrames * 1000);
+        p.readbackFrames = 0;
+        p.readbackSeconds = p.addedLatencySeconds = 0;
+    }
+
+    if (p.pipelined) {
+        p.submitFrame(frame);
+        return;
+    }
+
+    p.process(*this, *frame, p.visualization);
 
     if (visualizationEnabled) {
-        assert(pimpl->renderer);
-        std::lock_guard<std::mutex> lock(pimpl->renderMutex);
-        pimpl->renderer->setTextureData(pimpl->visualization.cols, pimpl->visualization.rows,
-                pimpl->visualization.data, CameraRenderer::AspectFixMethod::CROP);
+        assert(p.renderer);
+        std::lock_guard<std::mutex> lock(p.renderMutex);
+        p.renderer->setTextureData(p.visualization.cols, p.visualization.rows,
+                p.visualization.data, CameraRenderer::AspectFixMethod::CROP);
     }
 }
 
+void CpuAlgorithmModule::addGrayFrame(double t, const cv::Mat &grayFrame, const CameraIntrinsics &cam) {
+    std::lock_guard<std::mutex> lock(pimpl->mutex);
+    impl &p = *pimpl;
+    if (!p.cpuCapture) return;
+    // only used for colorFrameIntrinsics(), there is no color frame
+    p.directFrame.colorCam = cam;
+    p.currentFrame = &p.directFrame;
+    addFrame(t, grayFrame, nullptr, cam, p.visualization);
+    p.currentFrame = nullptr;
+}
+
+const CpuAlgorithmModule::CameraIntrinsics &CpuAlgorithmModule::colorFrameIntrinsics() const {
+    const impl::Frame *frame = pimpl->currentFrame;
+    assert(frame && "colorFrameIntrinsics() called outside addFrame");
+    return frame->colorCam;
+}
+
+const std::vector<cv::Mat> &CpuAlgorithmModule::grayPyramid() const {
+    const impl::Frame *frame = pimpl->currentFrame;
+    if (!frame) return pimpl->noPyramid;
+    return frame->pyramid;
+}
+
 void CpuAlgorithmModule::render(double t) {
+    if (pimpl->cpuCapture) {
+        std::lock_guard<std::mutex> lock(pimpl->renderMutex);
+        if (pimpl->screenWidth > 0) pimpl->gpuAdapter->renderToScreen(pimpl->screenWidth, pimpl->screenHeight);
+        return;
+    }
     if (!visualizationEnabled) return;
     std::lock_guard<std::mutex> lock(pimpl->renderMutex);
     (void)t; // not used here
     pimpl->renderer->render();
 }
 
-class MutexLockedImplementation : public AlgorithmModule {
+// Owns a CpuAlgorithmModule and stops its pipeline worker while the subclass still exists
+class PipelineOwnerImplementation : public AlgorithmModule {
 public:
-    typedef std::lock_guard<std::mutex> Lock;
     void addGyro(double t, const Vector3d &val) final {
-        Lock lock(m);
         p->addGyro(t, val);
     }
 
     void addAcc(double t, const Vector3d &val) final {
-        Lock lock(m);
         p->addAcc(t, val);
     }
 
+    void addImuBatch(const ImuSample *samples, std::size_t count) final {
+        p->addImuBatch(samples, count);
+    }
+
+    void addImu(double t, const Vector3d &gyro, const Vector3d &acc) final {
+        p->addImu(t, gyro, acc);
+    }
+
     void addGps(double t, const Gps &gps) final {
-        Lock lock(m);
         p->addGps(t, gps);
     }
 
     void addJsonData(const json &json) final {
-        Lock lock(m);
         p->addJsonData(json);
     }
 
+    void addEvent(const Event &event) final {
+        p->addEvent(event);
+    }
+
+    void addFrameMetadata(double t, const FrameMetadata &metadata) final {
+        p->addFrameMetadata(t, metadata);
+    }
+
+    std::string status() const final {
+        return p->status();
+    }
+
+    int trackingStatus() const final {
+        return p->trackingStatus();
+    }
+
+    bool pose(Pose &pose) const final {
+        return p->pose(pose);
+    }
+
+    bool pipelined() const final {
+        return p->pimpl->pipelined;
+    }
+
+    void addFrame(double t, const CameraIntrinsics &cam) final {
+        p->addFrame(t, cam);
+    }
+
+    void addGrayFrame(double t, const cv::Mat &gray, const CameraIntrinsics &cam) final {
+        p->addGrayFrame(t, gray, cam);
+    }
+
+    void setupRendering(int width, int height) final {
+        p->setupRendering(width, height);
+    }
+
+    void render(double t) final {
+        p->render(t);
+    }
+
+    PipelineOwnerImplementation(CpuAlgorithmModule *module) : p(module) {}
+
+    ~PipelineOwnerImplementation() {
+        p->stopPipeline();
+    }
+
+private:
+    std::unique_ptr<CpuAlgorithmModule> p;
+};
+
+std::unique_ptr<AlgorithmModule> CpuAlgorithmModule::makePipelineOwner(CpuAlgorithmModule *module) {
+    return std::unique_ptr<AlgorithmModule>(new PipelineOwnerImplementation(module));
+}
+
+class MutexLockedImplementation : public AlgorithmModule {
+public:
+    typedef std::lock_guard<std::mutex> Lock;
+    void addGyro(double t, const Vector3d &val) final {
+        const ImuSample sample = { ImuSample::Type::GYROSCOPE, t, val, {}, 3 };
+        addImuBatch(&sample, 1);
+    }
+
+    void addAcc(double t, const Vector3d &val) final {
+        const ImuSample sample = { ImuSample::Type::ACCELEROMETER, t, val, {}, 3 };
+        addImuBatch(&sample, 1);
+    }
+
+    void addImuBatch(const ImuSample *samples, std::size_t count) final {
+        std::size_t queued = 0;
+        if (queueSensors) {
+            SensorLock lock(queueMutex, *this);
+            queued = std::min(count, SENSOR_QUEUE_CAPACITY - queuedImu.size());
+            queuedImu.insert(queuedImu.end(), samples, samples + queued);
+        }
+        if (queued == count) return;
+        deliverNow(count - queued, [&]() { p->addImuBatch(samples + queued, count - queued); });
+    }
+
+    void addImu(double t, const Vector3d &gyro, const Vector3d &acc) final {
+        if (enqueue(queuedSynchronizedImu, SENSOR_QUEUE_CAPACITY, { t, gyro, acc })) return;
+        deliverNow(1, [&]() { p->addImu(t, gyro, acc); });
+    }
+
+    void addGps(double t, const Gps &gps) final {
+        if (enqueue(queuedGps, GPS_QUEUE_CAPACITY, { t, gps })) return;
+        deliverNow(1, [&]() { p->addGps(t, gps); });
+    }
+
+    void addJsonData(const json &json) final {
+        if (enqueue(queuedJson, EVENT_QUEUE_CAPACITY, json)) return;
+        deliverNow(1, [&]() { p->addJsonData(json); });
+    }
+
+    void addEvent(const Event &event) final {
+        if (enqueue(queuedEvents, EVENT_QUEUE_CAPACITY, event)) return;
+        deliverNow(1, [&]() { p->addEvent(event); });
+    }
+
+    void addFrameMetadata(double t, const FrameMetadata &metadata) final {
+        if (enqueue(queuedMetadata, EVENT_QUEUE_CAPACITY, { t, metadata })) return;
+        deliverNow(1, [&]() { p->addFrameMetadata(t, metadata); });
+    }
+
     std::string status() const final {
         Lock lock(const_cast<MutexLockedImplementation*>(this)->statusLock);
         return statusStruct.textStatus;
@@ -102,44 +646,418 @@ public:
     }
 
     void addFrame(double t, const CameraIntrinsics &cam) final {
+        processFrame([this, t, &cam]() { p->addFrame(t, cam); });
+    }
+
+    void addGrayFrame(double t, const cv::Mat &gray, const CameraIntrinsics &cam) final {
+        processFrame([this, t, &gray, &cam]() { p->addGrayFrame(t, gray, cam); });
+    }
+
+    void setupRendering(int width, int height) final {
+        Lock lock(m);
+        return p->setupRendering(width, height);
+    }
+
+    void render(double t) final {
+        Lock lock(m);
+        p->render(t);
+    }
+
+    MutexLockedImplementation(AlgorithmModule *nonThreadSafe, ThreadSafeMode mode) :
+        queueSensors(mode == ThreadSafeMode::QUEUE_SENSORS),
+        p(nonThreadSafe)
+    {
+        if (queueSensors) {
+            queuedImu.reserve(SENSOR_QUEUE_CAPACITY);
+            drainedImu.reserve(SENSOR_QUEUE_CAPACITY);
+            queuedSynchronizedImu.reserve(SENSOR_QUEUE_CAPACITY);
+            drainedSynchronizedImu.reserve(SENSOR_QUEUE_CAPACITY);
+            queuedGps.reserve(GPS_QUEUE_CAPACITY);
+            drainedGps.reserve(GPS_QUEUE_CAPACITY);
+            queuedJson.reserve(EVENT_QUEUE_CAPACITY);
+            drainedJson.reserve(EVENT_QUEUE_CAPACITY);
+            queuedEvents.reserve(EVENT_QUEUE_CAPACITY);
+            drainedEvents.reserve(EVENT_QUEUE_CAPACITY);
+            queuedMetadata.reserve(EVENT_QUEUE_CAPACITY);
+            drainedMetadata.reserve(EVENT_QUEUE_CAPACITY);
+        }
+    }
+
+private:
+    // in QUEUE_SENSORS mode, returns false if the queue is full
+    template <class T> bool enqueue(std::vector<T> &queue, std::size_t capacity, const T &item) {
+        if (!queueSensors) return false;
+        SensorLock lock(queueMutex, *this);
+        if (queue.size() == capacity) return false;
+        queue.push_back(item);
+        return true;
+    }
+
+    /**
+     * Pass data that was not queued to the module under the module mutex. When a
+     * queue is full, the data queued before is passed first so that nothing is
+     * dropped or reordered. The sensor thread then waits like in LOCK_ALL mode
+     */
+    template <class Call> void deliverNow(std::size_t n, Call call) {
+        if (queueSensors && queueOverflows.fetch_add(unsigned(n)) == 0)
+            log_warn("sensor queue full, passing sensor data to the module directly");
+        SensorLock lock(m, *this);
+        deliverQueued();
+        call();
+    }
+
+    // must be called with m locked
+    void deliverQueued() {
+        if (!queueSensors) return;
+        {
+            // swap the buffers so that the sensor threads can continue queuing
+            // while the module processes the previous ones. Capacity is reserved
+            // in both, so this does not allocate (except for copying JSON)
+            Lock queueLock(queueMutex);
+            std::swap(queuedImu, drainedImu);
+            std::swap(queuedSynchronizedImu, drainedSynchronizedImu);
+            std::swap(queuedGps, drainedGps);
+            std::swap(queuedJson, drainedJson);
+            std::swap(queuedEvents, drainedEvents);
+            std::swap(queuedMetadata, drainedMetadata);
+        }
+        if (!drainedImu.empty()) p->addImuBatch(drainedImu.data(), drainedImu.size());
+        for (const auto &s : drainedSynchronizedImu) p->addImu(s.t, s.gyro, s.acc);
+        for (const auto &g : drainedGps) p->addGps(g.t, g.gps);
+        for (const auto &r : drainedMetadata) p->addFrameMetadata(r.t, r.metadata);
+        for (const auto &e : drainedEvents) p->addEvent(e);
+        for (const auto &j : drainedJson) p->addJsonData(j);
+        drainedImu.clear();
+        drainedSynchronizedImu.clear();
+        drainedGps.clear();
+        drainedMetadata.clear();
+        drainedEvents.clear();
+        drainedJson.clear();
+    }
+
+    // passes the queued sensor data to the module before the frame and updates the status
+    template <class FrameCall> void processFrame(FrameCall frameCall) {
         Status tmpStatus;
         {
+            // also protects the drained buffers, since frames may come from two threads
             Lock lock(m);
-            p->addFrame(t, cam);
+            deliverQueued();
+            frameCall();
             tmpStatus = {
                 .textStatus = p->status(),
                 .trackingStatus = p->trackingStatus()
             };
         }
 
+        std::ostringstream oss;
+        oss << tmpStatus.textStatus << "\nmax sensor stall "
+            << std::fixed << std::setprecision(1) << (maxSensorStallNanos.load() * 1e-6) << " ms";
+        if (queueOverflows > 0) oss << ", passed directly on full queue " << queueOverflows.load();
+        tmpStatus.textStatus = oss.str();
+
         {
             Lock lock(statusLock);
             statusStruct = tmpStatus;
         }
     }
 
-    void setupRendering(int width, int height) final {
+    // enough for a few seconds of IMU data without frames
+    static constexpr std::size_t SENSOR_QUEUE_CAPACITY = 4096;
+    static constexpr std::size_t GPS_QUEUE_CAPACITY = 64;
+    // poses, WiFi scans and capture results, a few per frame at most
+    static constexpr std::size_t EVENT_QUEUE_CAPACITY = 256;
+
+    /**
+     * Lock taken by the sensor calls. Measures the time spent waiting for the
+     * mutex, but only reads the clock if the mutex was not free
+     */
+    class SensorLock {
+    public:
+        SensorLock(std::mutex &mutex, MutexLockedImplementation &parent) : mutex(mutex) {
+            if (mutex.try_lock()) return;
+            const auto t0 = std::chrono::steady_clock::now();
+            mutex.lock();
+            const long long stall = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - t0).count();
+            long long prev = parent.maxSensorStallNanos.load();
+            while (stall > prev && !parent.maxSensorStallNanos.compare_exchange_weak(prev, stall));
+        }
+        ~SensorLock() { mutex.unlock(); }
+    private:
+        std::mutex &mutex;
+    };
+
+    struct Status {
+        std::string textStatus = "";
+        int trackingStatus = -1;
+    } statusStruct;
+
+    struct SynchronizedImu {
+        double t;
+        Vector3d gyro, acc;
+    };
+
+    struct GpsRecord {
+        double t;
+        Gps gps;
+    };
+
+    struct MetadataRecord {
+        double t;
+        FrameMetadata metadata;
+    };
+
+    const bool queueSensors;
+    std::mutex m, statusLock, queueMutex;
+    std::unique_ptr<AlgorithmModule> p;
+
+    // queued* are protected by queueMutex, drained* by m
+    std::vector<ImuSample> queuedImu, drainedImu;
+    std::vector<SynchronizedImu> queuedSynchronizedImu, drainedSynchronizedImu;
+    std::vector<GpsRecord> queuedGps, drainedGps;
+    std::vector<json> queuedJson, drainedJson;
+    std::vector<Event> queuedEvents, drainedEvents;
+    std::vector<MetadataRecord> queuedMetadata, drainedMetadata;
+
+    std::atomic<long long> maxSensorStallNanos { 0 };
+    // items passed under m because their queue was full
+    std::atomic<unsigned> queueOverflows { 0 };
+};
+
+std::unique_ptr<AlgorithmModule> AlgorithmModule::makeThreadSafe(AlgorithmModule *nonThreadSafe, ThreadSafeMode mode) {
+    // the pipeline worker calls addFrame outside the mutex
+    assert(!nonThreadSafe->pipelined() && "makeThreadSafe cannot serialize a pipelined module");
+    return std::unique_ptr<AlgorithmModule>(new MutexLockedImplementation(nonThreadSafe, mode));
+}
+
+class TimeOrderedImplementation : public AlgorithmModule {
+public:
+    typedef std::lock_guard<std::mutex> Lock;
+    void addGyro(double t, const Vector3d &val) final {
+        const ImuSample sample = { ImuSample::Type::GYROSCOPE, t, val, {}, 3 };
+        addImuBatch(&sample, 1);
+    }
+
+    void addAcc(double t, const Vector3d &val) final {
+        const ImuSample sample = { ImuSample::Type::ACCELEROMETER, t, val, {}, 3 };
+        addImuBatch(&sample, 1);
+    }
+
+    void addImuBatch(const ImuSample *samples, std::size_t count) final {
         Lock lock(m);
-        return p->setupRendering(width, height);
+        for (std::size_t i = 0; i < count; ++i) {
+            // extra channels are only recorded and may arrive in late batches, so
+            // they are passed on without reordering instead of being dropped as late
+            if (samples[i].isExtra()) Collector { *this }(samples[i]);
+            else buffer.push(samples[i], Collector { *this });
+        }
+        deliver();
+    }
+
+    void addImu(double t, const Vector3d &gyro, const Vector3d &acc) final {
+        p->addImu(t, gyro, acc);
+    }
+
+    void addGps(double t, const Gps &gps) final {
+        p->addGps(t, gps);
+    }
+
+    void addJsonData(const json &json) final {
+        p->addJsonData(json);
+    }
+
+    void addEvent(const Event &event) final {
+        p->addEvent(event);
+    }
+
+    void addFrameMetadata(double t, const FrameMetadata &metadata) final {
+        p->addFrameMetadata(t, metadata);
+    }
+
+    std::string status() const final {
+        std::ostringstream oss;
+        oss << p->status();
+        Lock lock(const_cast<TimeOrderedImplementation*>(this)->m);
+        oss << "\nreorder depth " << buffer.depth() << " (max " << buffer.maxDepth << ")"
+            << ", late IMU " << buffer.lateDrops
+            << ", late frames " << buffer.lateBarriers
+            << ", flushed IMU " << buffer.flushed;
+        return oss.str();
+    }
+
+    int trackingStatus() const final {
+        return p->trackingStatus();
+    }
+
+    bool pose(Pose &pose) const final {
+        return p->pose(pose);
+    }
+
+    bool pipelined() const final {
+        return p->pipelined();
+    }
+
+    void addFrame(double t, const CameraIntrinsics &cam) final {
+        // all IMU samples up to the frame are delivered before the frame. The lock is
+        // held through the frame so that no later samples reach the module before it
+        Lock lock(m);
+        buffer.barrier(t, Collector { *this });
+        deliver();
+        p->addFrame(t, cam);
+    }
+
+    void addGrayFrame(double t, const cv::Mat &gray, const CameraIntrinsics &cam) final {
+        Lock lock(m);
+        buffer.barrier(t, Collector { *this });
+        deliver();
+        p->addGrayFrame(t, gray, cam);
+    }
+
+    void setupRendering(int width, int height) final {
+        p->setupRendering(width, height);
     }
 
     void render(double t) final {
+        p->render(t);
+    }
+
+    TimeOrderedImplementation(AlgorithmModule *module, double latencyBudget) :
+        buffer(latencyBudget, BUFFER_CAPACITY),
+        p(module)
+    {
+        released.reserve(BUFFER_CAPACITY);
+    }
+
+    ~TimeOrderedImplementation() {
+        // the samples after the last frame would otherwise be lost, e.g., from recordings
         Lock lock(m);
+        buffer.flush(Collector { *this });
+        deliver();
+        if (buffer.flushed > 0) log_debug("flushed %zu reordered IMU samples", buffer.flushed);
+    }
+
+private:
+    // enough for more than 100ms of 1kHz gyro & acc
+    static constexpr std::size_t BUFFER_CAPACITY = 256;
+
+    struct Collector {
+        TimeOrderedImplementation &self;
+        void operator()(const ImuSample &s) {
+            self.released.push_back(s);
+            if (self.released.size() == self.released.capacity()) self.deliver();
+        }
+    };
+
+    void deliver() {
+        if (released.empty()) return;
+        p->addImuBatch(released.data(), released.size());
+        released.clear();
+    }
+
+    std::mutex m;
+    ReorderBuffer<ImuSample> buffer;
+    std::vector<ImuSample> released;
+    std::unique_ptr<AlgorithmModule> p;
+};
+
+std::unique_ptr<AlgorithmModule> AlgorithmModule::makeTimeOrdered(AlgorithmModule *module, double latencyBudgetSeconds) {
+    return std::unique_ptr<AlgorithmModule>(new TimeOrderedImplementation(module, latencyBudgetSeconds));
+}
+
+class ImuSynchronizingImplementation : public AlgorithmModule {
+public:
+    void addGyro(double t, const Vector3d &val) final {
+        p->addGyro(t, val);
+        synchronizer.addGyro(t, val, Output { *p });
+    }
+
+    void addAcc(double t, const Vector3d &val) final {
+        p->addAcc(t, val);
+        synchronizer.addAcc(t, val, Output { *p });
+    }
+
+    void addImuBatch(const ImuSample *samples, std::size_t count) final {
+        p->addImuBatch(samples, count);
+        for (std::size_t i = 0; i < count; ++i) {
+            const auto &s = samples[i];
+            if (s.type == ImuSample::Type::GYROSCOPE)
+                synchronizer.addGyro(s.t, s.val, Output { *p });
+            else if (s.type == ImuSample::Type::ACCELEROMETER)
+                synchronizer.addAcc(s.t, s.val, Output { *p });
+        }
+    }
+
+    void addImu(double t, const Vector3d &gyro, const Vector3d &acc) final {
+        p->addImu(t, gyro, acc);
+    }
+
+    void addGps(double t, const Gps &gps) final {
+        p->addGps(t, gps);
+    }
+
+    void addJsonData(const json &json) final {
+        p->addJsonData(json);
+    }
+
+    void addEvent(const Event &event) final {
+        p->addEvent(event);
+    }
+
+    void addFrameMetadata(double t, const FrameMetadata &metadata) final {
+        p->addFrameMetadata(t, metadata);
+    }
+
+    std::string status() const final {
+        return p->status();
+    }
+
+    int trackingStatus() const final {
+        return p->trackingStatus();
+    }
+
+    bool pose(Pose &pose) const final {
+        return p->pose(pose);
+    }
+
+    bool pipelined() const final {
+        return p->pipelined();
+    }
+
+    void addFrame(double t, const CameraIntrinsics &cam) final {
+        p->addFrame(t, cam);
+    }
+
+    void addGrayFrame(double t, const cv::Mat &gray, const CameraIntrinsics &cam) final {
+        p->addGrayFrame(t, gray, cam);
+    }
+
+    void setupRendering(int width, int height) final {
+        p->setupRendering(width, height);
+    }
+
+    void render(double t) final {
         p->render(t);
     }
 
-    MutexLockedImplementation(AlgorithmModule *nonThreadSafe) : p(nonThreadSafe) {}
+    ImuSynchronizingImplementation(AlgorithmModule *module, double fixedRate) :
+        synchronizer(fixedRate > 0
+            ? ImuSynchronizer::Mode::FIXED_RATE
+            : ImuSynchronizer::Mode::GYRO_TIMESTAMPS, fixedRate),
+        p(module)
+    {}
 
 private:
-    struct Status {
-        std::string textStatus = "";
-        int trackingStatus = -1;
-    } statusStruct;
+    struct Output {
+        AlgorithmModule &module;
+        void operator()(double t, const Vector3d &gyro, const Vector3d &acc) {
+            module.addImu(t, gyro, acc);
+        }
+    };
 
-    std::mutex m, statusLock;
+    ImuSynchronizer synchronizer;
     std::unique_ptr<AlgorithmModule> p;
 };
 
-std::unique_ptr<AlgorithmModule> AlgorithmModule::makeThreadSafe(AlgorithmModule *nonThreadSafe) {
-    return std::unique_ptr<AlgorithmModule>(new MutexLockedImplementation(nonThreadSafe));
+std::unique_ptr<AlgorithmModule> AlgorithmModule::makeImuSynchronized(AlgorithmModule *module, double fixedRate) {
+    return std::unique_ptr<AlgorithmModule>(new ImuSynchronizingImplementation(module, fixedRate));
 }
\ No newline at end of file
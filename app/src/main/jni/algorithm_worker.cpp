@@ -2,13 +2,21 @@
 
 #include <atomic>
 #include <cassert>
+#include <condition_variable>
 #include <memory>
+#include <mutex>
+#include <vector>
 
 #include <fstream>
 #include <Eigen/Dense>
 #include "logging.hpp"
 #include <nlohmann/json.hpp>
 #include "algorithm_module.hpp"
+#include "sensor_source.hpp"
+#include "frame_source.hpp"
+#include "native_camera_session.hpp"
+#include "capture_metadata.hpp"
+#include <opencv2/core.hpp>
 #include "jniutil.hpp"
 
 using nlohmann::json;
@@ -21,6 +29,28 @@ namespace {
     json settingsJson;
     std::shared_ptr<AlgorithmModule> algorithmPtr;
 
+    // A module is closed, e.g., the recorder has written its files, when the last
+    // reference is released. That may happen in another thread that was using
+    // the module while nativeStop cleared algorithmPtr
+    std::mutex closeMutex;
+    std::condition_variable moduleClosed;
+    int openModules = 0;
+
+    std::shared_ptr<AlgorithmModule> makeClosable(std::unique_ptr<AlgorithmModule> module) {
+        {
+            std::lock_guard<std::mutex> lock(closeMutex);
+            openModules++;
+        }
+        return std::shared_ptr<AlgorithmModule>(module.release(), [](AlgorithmModule *m) {
+            delete m;
+            {
+                std::lock_guard<std::mutex> lock(closeMutex);
+                openModules--;
+            }
+            moduleClosed.notify_all();
+        });
+    }
+
     class Clock {
     public:
         double convert(int64_t tNanos) const {
@@ -39,6 +69,131 @@ namespace {
     };
 
     std::unique_ptr<Clock> doubleClock;
+
+    /**
+     * A single sensor sample in the direct ByteBuffer shared with AlgorithmWorker.java.
+     * The layout must match the one written in AlgorithmWorker.addToImuBatch
+     */
+    struct ImuBatchRecord {
+        int64_t timeNanos;
+        int32_t type;
+        float values[6];
+        int32_t dimensions;
+    };
+    static_assert(sizeof(ImuBatchRecord) == 40, "unexpected ImuBatchRecord layout");
+
+    const ImuBatchRecord *imuBatchBuffer = nullptr;
+    std::size_t imuBatchCapacity = 0;
+    std::vector<AlgorithmModule::ImuSample> imuBatchSamples;
+
+    std::unique_ptr<SensorSource> nativeSensors;
+    // indexed by SensorSource::Type, polled by the Java frequency monitors
+    std::atomic<int64_t> nativeSensorSamples[2];
+
+    // Frames whose capture results had not arrived yet. Retried on the next frames
+    // and passed to addFrameMetadata if found, about a quarter of a second at 30 FPS
+    constexpr std::size_t MAX_PENDING_METADATA = 8;
+    struct PendingMetadata {
+        int64_t timeNanos;
+        double t;
+    };
+    struct LateMetadata {
+        double t;
+        AlgorithmModule::FrameMetadata metadata;
+    };
+    std::mutex metadataMutex;
+    PendingMetadata pendingMetadata[MAX_PENDING_METADATA]; // guarded by metadataMutex
+    std::size_t pendingMetadataCount = 0;
+    // With YUV capture, the same frames also arrive through the SurfaceTexture.
+    // Only the first path to see a timestamp waits for its late capture results
+    int64_t latestMetadataFrameNanos = 0;
+    // match statistics, logged every METADATA_LOG_INTERVAL frames
+    constexpr int METADATA_LOG_INTERVAL = 300;
+    int metadataFrames = 0, metadataMatches = 0, metadataLate = 0, metadataMissing = 0;
+
+    AlgorithmModule::FrameMetadata toFrameMetadata(const CaptureMetadataRing::Record &record) {
+        AlgorithmModule::FrameMetadata m;
+        m.frameNumber = record.frameNumber;
+        m.exposureTime = record.exposureTimeNanos * 1e-9;
+        m.rollingShutterSkew = record.rollingShutterSkewNanos * 1e-9;
+        m.frameDuration = record.frameDurationNanos * 1e-9;
+        return m;
+    }
+
+    void attachCaptureMetadata(AlgorithmModule &algorithm, int64_t timeNanos, double t,
+            AlgorithmModule::CameraIntrinsics &cam) {
+        const auto ring = currentCaptureMetadata();
+        LateMetadata late[MAX_PENDING_METADATA];
+        std::size_t lateCount = 0;
+        {
+            std::lock_guard<std::mutex> lock(metadataMutex);
+            CaptureMetadataRing::Record record;
+            std::size_t kept = 0;
+            for (std::size_t i = 0; i < pendingMetadataCount; ++i) {
+                const PendingMetadata &p = pendingMetadata[i];
+                if (ring->find(p.timeNanos, record)) late[lateCount++] = { p.t, toFrameMetadata(record) };
+                else pendingMetadata[kept++] = p;
+            }
+            pendingMetadataCount = kept;
+            metadataLate += int(lateCount);
+
+            const bool firstPath = timeNanos > latestMetadataFrameNanos;
+            if (ring->find(timeNanos, record)) {
+                cam.metadata = toFrameMetadata(record);
+                if (firstPath) metadataMatches++;
+            } else if (firstPath) {
+                if (pendingMetadataCount == MAX_PENDING_METADATA) {
+                    // the oldest one is given up
+                    for (std::size_t i = 1; i < pendingMetadataCount; ++i) pendingMetadata[i - 1] = pendingMetadata[i];
+                    pendingMetadataCount--;
+                    metadataMissing++;
+                }
+                pendingMetadata[pendingMetadataCount++] = { timeNanos, t };
+            }
+            if (firstPath) {
+                latestMetadataFrameNanos = timeNanos;
+                if (++metadataFrames == METADATA_LOG_INTERVAL) {
+                    log_debug("capture metadata of %d frame(s): %d on time, %d late, %d missing",
+                            metadataFrames, metadataMatches, metadataLate, metadataMissing);
+                    metadataFrames = metadataMatches = metadataLate = metadataMissing = 0;
+                }
+            }
+        }
+        // outside the lock, the module may have its own
+        for (std::size_t i = 0; i < lateCount; ++i) algorithm.addFrameMetadata(late[i].t, late[i].metadata);
+    }
+
+    // frames from the camera frame source (YUV capture), see configure
+    AlgorithmModule::CameraIntrinsics cameraFrameIntrinsics;
+    int cameraFrameNumber = 0;
+
+    void processCameraFrame(const FrameSource::Frame &frame) {
+        auto algorithm = std::atomic_load(&algorithmPtr);
+        if (!algorithm) return;
+        if ((cameraFrameNumber++ % frameStride) != 0) return;
+        // wraps the Y plane without copying
+        const cv::Mat gray(frame.height, frame.width, CV_8UC1,
+                const_cast<std::uint8_t*>(frame.gray), std::size_t(frame.rowStride));
+        AlgorithmModule::CameraIntrinsics cam = cameraFrameIntrinsics;
+        const double t = doubleClock->convert(frame.timeNanos);
+        attachCaptureMetadata(*algorithm, frame.timeNanos, t, cam);
+        algorithm->addGrayFrame(t, gray, cam);
+    }
+
+    void processNativeSensorEvent(const SensorSource::Event &event) {
+        nativeSensorSamples[int(event.type)].fetch_add(1, std::memory_order_relaxed);
+        auto algorithm = std::atomic_load(&algorithmPtr);
+        if (!algorithm) return;
+        const double t = doubleClock->convert(event.timeNanos);
+        switch (event.type) {
+            case SensorSource::Type::GYROSCOPE:
+                algorithm->addGyro(t, { event.x, event.y, event.z });
+                break;
+            case SensorSource::Type::ACCELEROMETER:
+                algorithm->addAcc(t, { event.x, event.y, event.z });
+                break;
+        }
+    }
 }
 
 extern "C" {
@@ -51,7 +206,11 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_nativeStop(JNI
         return;
     }
     std::atomic_store(&algorithmPtr, std::shared_ptr<AlgorithmModule>(nullptr));
-    // dtor may be called here
+    // dtor may be called here, or in a thread still using the module
+    algorithm.reset();
+    std::unique_lock<std::mutex> lock(closeMutex);
+    moduleClosed.wait(lock, []() { return openModules == 0; });
+    log_debug("module closed");
 }
 
 JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_configureVisualization(
@@ -79,9 +238,13 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_configure(
         jstring moduleSettingsJson) {
 
     std::atomic_store(&algorithmPtr, std::shared_ptr<AlgorithmModule>(nullptr));
+    auto cameraFrames = currentCameraFrameSource();
+    // not delivering while the clock and settings change
+    if (cameraFrames) cameraFrames->stop();
     doubleClock = std::make_unique<Clock>(timeNanos);
 
     frameNumber = 0;
+    cameraFrameNumber = 0;
     frameStride = static_cast<int>(frameStrideJint);
     recordExternalPoses = recordExternalPosesJboolean;
 
@@ -98,7 +261,33 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_configure(
     }
 
     auto ptr = AlgorithmModule::build(textureId, width, height, moduleName, settingsJsonPtr);
-    std::atomic_store(&algorithmPtr, std::shared_ptr<AlgorithmModule>(std::move(ptr)));
+    if (settingsJsonPtr) {
+        const std::string imuSyncMode = settingsJson.value("imuSyncMode", std::string("off"));
+        if (imuSyncMode != "off") {
+            const double rate = imuSyncMode == "fixed" ? settingsJson.value("imuSyncRate", 0.0) : 0.0;
+            log_info("synchronizing IMU samples (%s, %g Hz)", imuSyncMode.c_str(), rate);
+            ptr = AlgorithmModule::makeImuSynchronized(ptr.release(), rate);
+        }
+        // applied last so that the synchronizer also sees ordered samples
+        const double reorderLatencyMs = settingsJson.value("imuReorderLatencyMs", 0.0);
+        if (reorderLatencyMs > 0) {
+            log_info("time-ordering sensor data with %g ms latency budget", reorderLatencyMs);
+            ptr = AlgorithmModule::makeTimeOrdered(ptr.release(), reorderLatencyMs * 1e-3);
+        }
+    }
+    std::atomic_store(&algorithmPtr, makeClosable(std::move(ptr)));
+
+    if (cameraFrames && settingsJsonPtr) {
+        cameraFrameIntrinsics = {
+            .cameraIndex = 0,
+            .focalLengthX = settingsJson.value("focalLengthX", -1.0f),
+            .focalLengthY = settingsJson.value("focalLengthY", -1.0f),
+            .principalPointX = settingsJson.value("principalPointX", width * 0.5f),
+            .principalPointY = settingsJson.value("principalPointY", height * 0.5f),
+            .metadata = {}
+        };
+        cameraFrames->start(processCameraFrame);
+    }
 }
 
 JNIEXPORT jboolean JNICALL Java_org_example_viotester_AlgorithmWorker_processFrame(
@@ -119,12 +308,31 @@ JNIEXPORT jboolean JNICALL Java_org_example_viotester_AlgorithmWorker_processFra
         .focalLengthX = fx,
         .focalLengthY = fy,
         .principalPointX = px,
-        .principalPointY = py
+        .principalPointY = py,
+        .metadata = {}
     };
-    algorithm->addFrame(doubleClock->convert(timeNanos), cam);
+    const double t = doubleClock->convert(timeNanos);
+    attachCaptureMetadata(*algorithm, timeNanos, t, cam);
+    algorithm->addFrame(t, cam);
     return true;
 }
 
+JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processFrameGap(
+        JNIEnv *, jobject,
+        jlong timeNanos,
+        jlong gapNanos,
+        jint missingFrames) {
+    auto algorithm = std::atomic_load(&algorithmPtr);
+    if (!algorithm) return;
+    // gap log, written by the recorder
+    AlgorithmModule::Event e = {};
+    e.type = AlgorithmModule::Event::Type::FRAME_GAP;
+    e.t = doubleClock->convert(timeNanos);
+    e.duration = gapNanos * 1e-9;
+    e.missingFrames = missingFrames;
+    algorithm->addEvent(e);
+}
+
 JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processGyroSample(
         JNIEnv*, jobject,
         jlong timeNanos, jfloat x, jfloat y, jfloat z) {
@@ -142,6 +350,62 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processAccSamp
     algorithm->addAcc(doubleClock->convert(timeNanos), { x, y, z });
 }
 
+JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_setImuBatchBuffer(
+        JNIEnv *env, jobject, jobject buffer) {
+    imuBatchBuffer = reinterpret_cast<const ImuBatchRecord*>(env->GetDirectBufferAddress(buffer));
+    assert(imuBatchBuffer != nullptr);
+    imuBatchCapacity = static_cast<std::size_t>(env->GetDirectBufferCapacity(buffer)) / sizeof(ImuBatchRecord);
+    imuBatchSamples.clear();
+    imuBatchSamples.reserve(imuBatchCapacity);
+    log_debug("IMU batch buffer with capacity %zu", imuBatchCapacity);
+}
+
+JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processImuBatch(
+        JNIEnv*, jobject, jint count) {
+    auto algorithm = std::atomic_load(&algorithmPtr);
+    if (!algorithm) return;
+
+    const std::size_t n = static_cast<std::size_t>(count);
+    assert(imuBatchBuffer && n <= imuBatchCapacity);
+    imuBatchSamples.resize(n); // never reallocates, reserved in setImuBatchBuffer
+    for (std::size_t i = 0; i < n; ++i) {
+        const ImuBatchRecord &r = imuBatchBuffer[i];
+        auto &s = imuBatchSamples[i];
+        s.type = static_cast<AlgorithmModule::ImuSample::Type>(r.type);
+        s.t = doubleClock->convert(r.timeNanos);
+        s.dimensions = r.dimensions;
+        if (r.dimensions >= 3) s.val = { r.values[0], r.values[1], r.values[2] };
+        else s.val = { r.values[0], 0, 0 };
+        if (r.dimensions >= 6) s.bias = { r.values[3], r.values[4], r.values[5] };
+        else s.bias = {};
+    }
+    algorithm->addImuBatch(imuBatchSamples.data(), n);
+}
+
+JNIEXPORT jboolean JNICALL Java_org_example_viotester_AlgorithmWorker_startNativeSensors(
+        JNIEnv*, jobject, jboolean useCalibGyro, jboolean useCalibAcc) {
+    nativeSensors.reset();
+    SensorSource::Settings settings;
+    settings.useCalibGyro = useCalibGyro;
+    settings.useCalibAcc = useCalibAcc;
+    nativeSensors = SensorSource::createNdk(settings);
+    if (!nativeSensors) return false;
+    nativeSensors->start(processNativeSensorEvent);
+    return true;
+}
+
+JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_stopNativeSensors(JNIEnv*, jobject) {
+    if (!nativeSensors) return;
+    nativeSensors->stop();
+    nativeSensors.reset();
+}
+
+JNIEXPORT jlong JNICALL Java_org_example_viotester_AlgorithmWorker_getNativeSensorSampleCount(
+        JNIEnv*, jobject, jint nativeType) {
+    assert(nativeType == int(SensorSource::Type::GYROSCOPE) || nativeType == int(SensorSource::Type::ACCELEROMETER));
+    return nativeSensorSamples[nativeType].load(std::memory_order_relaxed);
+}
+
 JNIEXPORT jstring JNICALL Java_org_example_viotester_AlgorithmWorker_getStatsString(
         JNIEnv *env, jobject) {
     auto algorithm = std::atomic_load(&algorithmPtr);
@@ -201,16 +465,11 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processGpsLoca
 JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processGpsTime(JNIEnv *, jobject, jlong timeNanos, jdouble gpsTimeUtcSeconds) {
     auto algorithm = std::atomic_load(&algorithmPtr);
     if (!algorithm) return;
-    const double t = doubleClock->convert(timeNanos);
-    algorithm->addJsonData(
-            AlgorithmModule::json {
-                    { "time", t },
-                    { "gpsTime",
-                              {
-                                      { "utcSeconds", gpsTimeUtcSeconds }
-                              }
-                    }
-            });
+    AlgorithmModule::Event e = {};
+    e.type = AlgorithmModule::Event::Type::GNSS_TIME;
+    e.t = doubleClock->convert(timeNanos);
+    e.utcSeconds = gpsTimeUtcSeconds;
+    algorithm->addEvent(e);
 }
 
 JNIEXPORT jdouble JNICALL Java_org_example_viotester_AlgorithmWorker_convertTime(JNIEnv *, jobject, jlong timeNanos) {
@@ -258,7 +517,8 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_processExterna
             .focalLengthX = fx,
             .focalLengthY = fy,
             .principalPointX = ppx,
-            .principalPointY = ppy
+            .principalPointY = ppy,
+            .metadata = {}
     };
     auto algorithm = std::atomic_load(&algorithmPtr);
     if (!algorithm) return;
@@ -280,30 +540,18 @@ JNIEXPORT void JNICALL Java_org_example_viotester_AlgorithmWorker_recordPoseMatr
     const Eigen::Vector3f p = -R.transpose() * viewMatrix.block<3, 1>(0, 3);
     const Eigen::Quaternionf q(R);
 
-    algorithm->addJsonData(
-            AlgorithmModule::json {
-                    // Android Studio thinks this indentation is pretty and refuses to change
-                    // so let's keep it that way
-                    { "time", t },
-                    { getStringOrEmpty(env, tag).c_str(),
-                              {
-                                      { "position",
-                                              {
-                                                      { "x", p.x() },
-                                                      { "y", p.y() },
-                                                      { "z", p.z() }
-                                              }
-                                      },
-                                      { "orientation",
-                                              {
-                                                      { "w", q.w() },
-                                                      { "x", q.x() },
-                                                      { "y", q.y() },
-                                                      { "z", q.z() }
-                                              }
-                                      }
-                              }
-                    }
-            });
+    AlgorithmModule::Event e = {};
+    e.type = AlgorithmModule::Event::Type::POSE;
+    e.t = t;
+    // the tag is a short name such as "arcore"
+    copyStringTruncated(env, tag, e.tag, sizeof(e.tag));
+    e.position[0] = p.x();
+    e.position[1] = p.y();
+    e.position[2] = p.z();
+    e.orientation[0] = q.w();
+    e.orientation[1] = q.x();
+    e.orientation[2] = q.y();
+    e.orientation[3] = q.z();
+    algorithm->addEvent(e);
 }
 }
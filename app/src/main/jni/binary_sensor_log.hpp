@@ -0,0 +1,188 @@
+#ifndef BINARY_SENSOR_LOG_HPP
+#define BINARY_SENSOR_LOG_HPP
+
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <memory>
+#include <string>
+
+#include "logging.hpp"
+#include "tar_entry.hpp"
+
+#if !defined(__BYTE_ORDER__) || __BYTE_ORDER__ != __ORDER_LITTLE_ENDIAN__
+#error "the binary sensor log is written in native byte order, which must be little-endian"
+#endif
+
+/**
+ * Writer for the compact binary sensor log, an alternative to writing each
+ * high-rate sample as a JSON line. Read it with SensorLogReader.java, which can
+ * also convert it back to the JSONL format. All numbers are little-endian.
+ *
+ * Header:
+ *   char[8]  magic "VIOSENS1"
+ *   uint32   format version
+ *   uint32   record size in bytes
+ *   uint32   number of data records between sync records
+ *   uint32   number of channels, followed by each channel:
+ *              uint8 id, uint8 max value count, uint8 name length, name (UTF-8)
+ *
+ * Data record, RECORD_SIZE bytes:
+ *   float64  time
+ *   uint8    channel id
+ *   uint8    number of values used
+ *   uint16   0
+ *   float32  values[MAX_VALUES], unused ones are 0
+ *
+ * Sync record, same size, after every syncInterval data records:
+ *   float64  time of the previous data record
+ *   uint8    SYNC_CHANNEL
+ *   uint8    0
+ *   uint16   0
+ *   char[8]  marker "VIOSYNC\0"
+ *   uint64   number of data records written before this one
+ *   uint8[8] 0
+ *
+ * A reader that finds a corrupted record can skip to the next sync marker.
+ * If the file name ends with TarEntry::SUFFIX, the file is written as a tar
+ * entry, see tar_entry.hpp.
+ */
+class BinarySensorLog {
+public:
+    enum class Channel : std::uint8_t {
+        GYROSCOPE = 1,
+        ACCELEROMETER = 2,
+        GYROSCOPE_UNCALIBRATED = 3,
+        ACCELEROMETER_UNCALIBRATED = 4,
+        MAGNETOMETER = 5,
+        MAGNETOMETER_UNCALIBRATED = 6,
+        PRESSURE = 7,
+        GYROSCOPE_CALIBRATED = 8,
+        ACCELEROMETER_CALIBRATED = 9,
+        // synchronized gyro + acc
+        IMU = 10
+    };
+
+    static constexpr std::uint32_t VERSION = 1;
+    static constexpr int MAX_VALUES = 6;
+    static constexpr std::size_t RECORD_SIZE = 8 + 4 + 4 * MAX_VALUES;
+    static constexpr std::uint8_t SYNC_CHANNEL = 0xff;
+    static constexpr std::uint32_t DEFAULT_SYNC_INTERVAL = 1000;
+
+    /** Returns nullptr if the file cannot be created */
+    static std::unique_ptr<BinarySensorLog> create(const std::string &fileName,
+            std::uint32_t syncInterval = DEFAULT_SYNC_INTERVAL) {
+        std::FILE *file = std::fopen(fileName.c_str(), "wb");
+        if (!file) {
+            log_error("failed to create binary sensor log %s", fileName.c_str());
+            return nullptr;
+        }
+        return std::unique_ptr<BinarySensorLog>(new BinarySensorLog(file, TarEntry::nameFor(fileName), syncInterval));
+    }
+
+    ~BinarySensorLog() {
+        if (!tarEntryName.empty() && !failed && !TarEntry::finish(file, tarEntryName, bytes)) {
+            log_error("failed to finish the binary sensor log tar entry");
+        }
+        if (std::fclose(file) != 0) log_error("failed to close the binary sensor log");
+    }
+
+    BinarySensorLog(const BinarySensorLog&) = delete;
+    BinarySensorLog &operator=(const BinarySensorLog&) = delete;
+
+    /** Not thread-safe */
+    void add(Channel channel, double t, const float *values, int count) {
+        if (count > MAX_VALUES) count = MAX_VALUES;
+        std::uint8_t record[RECORD_SIZE] = {};
+        std::memcpy(record, &t, 8);
+        record[8] = std::uint8_t(channel);
+        record[9] = std::uint8_t(count);
+        std::memcpy(record + 12, values, 4 * std::size_t(count));
+        write(record);
+        lastTime = t;
+        if (++records % syncInterval == 0) writeSync();
+    }
+
+    std::uint64_t recordCount() const { return records; }
+
+private:
+    static constexpr std::size_t BUFFER_SIZE = 1 << 16;
+
+    std::FILE *file;
+    // non-empty if written as a tar entry
+    const std::string tarEntryName;
+    const std::uint32_t syncInterval;
+    std::uint64_t records = 0;
+    // excluding the tar header
+    std::uint64_t bytes = 0;
+    double lastTime = 0;
+    bool failed = false;
+
+    BinarySensorLog(std::FILE *file, const std::string &tarEntryName, std::uint32_t syncInterval) :
+        file(file), tarEntryName(tarEntryName),
+        syncInterval(syncInterval > 0 ? syncInterval : std::uint32_t(DEFAULT_SYNC_INTERVAL))
+    {
+        std::setvbuf(file, nullptr, _IOFBF, BUFFER_SIZE);
+        if (!tarEntryName.empty() && !TarEntry::begin(file)) {
+            log_error("failed to write the binary sensor log");
+            failed = true;
+        }
+        writeHeader();
+    }
+
+    void writeHeader() {
+        struct ChannelInfo { Channel id; std::uint8_t values; const char *name; };
+        static const ChannelInfo channels[] = {
+            { Channel::GYROSCOPE, 3, "gyroscope" },
+            { Channel::ACCELEROMETER, 3, "accelerometer" },
+            { Channel::GYROSCOPE_UNCALIBRATED, 6, "gyroscopeUncalibrated" },
+            { Channel::ACCELEROMETER_UNCALIBRATED, 6, "accelerometerUncalibrated" },
+            { Channel::MAGNETOMETER, 3, "magnetometer" },
+            { Channel::MAGNETOMETER_UNCALIBRATED, 6, "magnetometerUncalibrated" },
+            { Channel::PRESSURE, 1, "pressure" },
+            { Channel::GYROSCOPE_CALIBRATED, 3, "gyroscopeCalibrated" },
+            { Channel::ACCELEROMETER_CALIBRATED, 3, "accelerometerCalibrated" },
+            { Channel::IMU, 6, "imu" }
+        };
+        static const char magic[8] = { 'V', 'I', 'O', 'S', 'E', 'N', 'S', '1' };
+        const std::uint32_t fields[] = {
+            VERSION,
+            std::uint32_t(RECORD_SIZE),
+            syncInterval,
+            std::uint32_t(sizeof(channels) / sizeof(channels[0]))
+        };
+        writeBytes(magic, sizeof(magic));
+        writeBytes(fields, sizeof(fields));
+        for (const ChannelInfo &c : channels) {
+            const std::uint8_t nameLength = std::uint8_t(std::strlen(c.name));
+            const std::uint8_t info[3] = { std::uint8_t(c.id), c.values, nameLength };
+            writeBytes(info, sizeof(info));
+            writeBytes(c.name, nameLength);
+        }
+    }
+
+    void writeSync() {
+        static const char marker[8] = { 'V', 'I', 'O', 'S', 'Y', 'N', 'C', '\0' };
+        std::uint8_t record[RECORD_SIZE] = {};
+        std::memcpy(record, &lastTime, 8);
+        record[8] = SYNC_CHANNEL;
+        std::memcpy(record + 12, marker, sizeof(marker));
+        std::memcpy(record + 20, &records, 8);
+        write(record);
+    }
+
+    void write(const std::uint8_t (&record)[RECORD_SIZE]) {
+        writeBytes(record, RECORD_SIZE);
+    }
+
+    void writeBytes(const void *data, std::size_t size) {
+        bytes += size;
+        if (std::fwrite(data, 1, size, file) != size && !failed) {
+            // logged once, the recording continues without the binary log
+            log_error("failed to write the binary sensor log");
+            failed = true;
+        }
+    }
+};
+
+#endif
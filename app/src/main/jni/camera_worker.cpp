@@ -2,25 +2,51 @@
 #include <jni.h>
 #include "logging.hpp"
 #include "jniutil.hpp"
+#include "capture_metadata.hpp"
+#include "frame_source.hpp"
 #include "native_camera_session.hpp"
 
 #define MY_JNI_FUNC(ret, x) JNIEXPORT ret JNICALL Java_org_example_viotester_CameraWorker_ ## x
 
 namespace {
     std::unique_ptr<NativeCameraSession> cameraSession;
+    // shared with algorithm_worker.cpp, which starts and stops the frame delivery
+    std::shared_ptr<FrameSource> cameraFrameSource;
+    // read in algorithm_worker.cpp, replaced for each session
+    std::shared_ptr<CaptureMetadataRing> captureMetadata = std::make_shared<CaptureMetadataRing>();
+}
+
+std::shared_ptr<FrameSource> currentCameraFrameSource() {
+    return std::atomic_load(&cameraFrameSource);
+}
+
+std::shared_ptr<const CaptureMetadataRing> currentCaptureMetadata() {
+    return std::atomic_load(&captureMetadata);
 }
 
 extern "C" {
 MY_JNI_FUNC(void, stopCameraSession)(JNIEnv *env, jobject thiz) {
     (void)env; (void)thiz;
     cameraSession.reset();
+    // only after the session no longer outputs to the image reader
+    auto frameSource = std::atomic_exchange(&cameraFrameSource, std::shared_ptr<FrameSource>(nullptr));
+    if (frameSource) frameSource->stop();
 }
 
-MY_JNI_FUNC(void, startCameraSession)(JNIEnv *env, jobject thiz, jstring cameraId, jint targetFps, jobject surface) {
+MY_JNI_FUNC(void, startCameraSession)(JNIEnv *env, jobject thiz, jstring cameraId, jint targetFps, jobject surface,
+        jint width, jint height, jint yuvImages) {
     (void)thiz;
     cameraSession.reset();
-    cameraSession = NativeCameraSession::create(getStringOrEmpty(env, cameraId), targetFps);
+    std::shared_ptr<FrameSource> frameSource;
+    if (yuvImages > 0) {
+        frameSource = FrameSource::createImageReader(width, height, yuvImages);
+        if (!frameSource) log_warn("YUV capture not available, using the SurfaceTexture only");
+    }
+    std::atomic_store(&cameraFrameSource, frameSource);
+    auto metadata = std::make_shared<CaptureMetadataRing>();
+    std::atomic_store(&captureMetadata, metadata);
+    cameraSession = NativeCameraSession::create(getStringOrEmpty(env, cameraId), targetFps, metadata);
     assert(cameraSession);
-    cameraSession->initCameraSurface(env, surface);
+    cameraSession->initCameraSurface(env, surface, frameSource ? frameSource->captureWindow() : nullptr);
+}
 }
-}
\ No newline at end of file
@@ -0,0 +1,82 @@
+#ifndef CAPTURE_METADATA_HPP
+#define CAPTURE_METADATA_HPP
+
+#include <array>
+#include <atomic>
+#include <cstdint>
+
+/**
+ * Per-frame capture results (ACameraMetadata given to onCaptureCompleted),
+ * stored in a fixed ring of recent frames and looked up by sensor timestamp.
+ *
+ * Lock-free: a single producer (the camera callback thread) writes each slot
+ * under a sequence counter and any number of readers retry or skip slots that
+ * are being written. Readers never block the camera thread.
+ */
+class CaptureMetadataRing {
+public:
+    struct Record {
+        int64_t timeNanos = 0;
+        int64_t exposureTimeNanos = 0;
+        int64_t rollingShutterSkewNanos = 0;
+        int64_t frameDurationNanos = 0;
+        // capture results counted in this session, gaps are not visible
+        int64_t frameNumber = -1;
+    };
+
+    // only call from the producer thread
+    void push(const Record &record) {
+        Slot &slot = slots[next++ % SLOTS];
+        const uint32_t seq = slot.sequence.load(std::memory_order_relaxed);
+        slot.sequence.store(seq + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        slot.timeNanos.store(record.timeNanos, std::memory_order_relaxed);
+        slot.exposureTimeNanos.store(record.exposureTimeNanos, std::memory_order_relaxed);
+        slot.rollingShutterSkewNanos.store(record.rollingShutterSkewNanos, std::memory_order_relaxed);
+        slot.frameDurationNanos.store(record.frameDurationNanos, std::memory_order_relaxed);
+        slot.frameNumber.store(record.frameNumber, std::memory_order_relaxed);
+        slot.sequence.store(seq + 2, std::memory_order_release);
+    }
+
+    /** Find the record with exactly the given sensor timestamp. Can be called from any thread */
+    bool find(int64_t timeNanos, Record &out) const {
+        for (const Slot &slot : slots) {
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+                const uint32_t before = slot.sequence.load(std::memory_order_acquire);
+                if (before & 1) continue; // being written
+                Record r;
+                r.timeNanos = slot.timeNanos.load(std::memory_order_relaxed);
+                r.exposureTimeNanos = slot.exposureTimeNanos.load(std::memory_order_relaxed);
+                r.rollingShutterSkewNanos = slot.rollingShutterSkewNanos.load(std::memory_order_relaxed);
+                r.frameDurationNanos = slot.frameDurationNanos.load(std::memory_order_relaxed);
+                r.frameNumber = slot.frameNumber.load(std::memory_order_relaxed);
+                std::atomic_thread_fence(std::memory_order_acquire);
+                if (slot.sequence.load(std::memory_order_relaxed) != before) continue;
+                if (before == 0 || r.timeNanos != timeNanos) break;
+                out = r;
+                return true;
+            }
+        }
+        return false;
+    }
+
+private:
+    // about half a second of frames at 30 FPS
+    static constexpr std::size_t SLOTS = 16;
+    static constexpr int MAX_READ_ATTEMPTS = 4;
+
+    struct Slot {
+        // odd while being written, 0 if never written
+        std::atomic<uint32_t> sequence { 0 };
+        std::atomic<int64_t> timeNanos { 0 };
+        std::atomic<int64_t> exposureTimeNanos { 0 };
+        std::atomic<int64_t> rollingShutterSkewNanos { 0 };
+        std::atomic<int64_t> frameDurationNanos { 0 };
+        std::atomic<int64_t> frameNumber { -1 };
+    };
+
+    std::array<Slot, SLOTS> slots;
+    std::size_t next = 0; // producer only
+};
+
+#endif
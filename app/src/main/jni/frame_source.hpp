@@ -0,0 +1,69 @@
+#ifndef FRAME_SOURCE_HPP
+#define FRAME_SOURCE_HPP
+
+#include <cstdint>
+#include <functional>
+#include <memory>
+#include <string>
+#include <vector>
+
+struct ANativeWindow;
+
+/**
+ * A source of gray camera frames in CPU memory that delivers them on its own
+ * thread, bypassing the SurfaceTexture and the GPU readback in CpuAlgorithmModule.
+ */
+struct FrameSource {
+    struct Frame {
+        int64_t timeNanos;
+        int width, height;
+        /**
+         * Gray / Y plane, rowStride bytes per row. Not copied from the camera
+         * buffer and only valid during the callback
+         */
+        const std::uint8_t *gray;
+        int rowStride;
+    };
+
+    typedef std::function<void(const Frame &frame)> Callback;
+
+    /**
+     * Reads YUV_420_888 images with an AImageReader of at most maxImages buffers.
+     * The camera session must output to captureWindow(). Each image is released
+     * as soon as the callback returns, and if the callback is slower than the
+     * camera, only the latest image is delivered. Returns nullptr on failure
+     */
+    static std::unique_ptr<FrameSource> createImageReader(int width, int height, int maxImages);
+
+    /**
+     * A fake source that replays raw 8-bit gray images from the given files, each
+     * exactly width * height bytes, with timestamps intervalNanos apart. If realTime
+     * is true, the frames are spaced according to their timestamps, otherwise they
+     * are emitted as fast as possible. Does not depend on Android and can be used
+     * on a Linux host.
+     */
+    static std::unique_ptr<FrameSource> createReplay(std::vector<std::string> files,
+            int width, int height, int64_t intervalNanos, bool realTime = true);
+
+    /**
+     * The window a camera session must output to, or nullptr if this source is
+     * not fed by the camera
+     */
+    virtual ANativeWindow *captureWindow() { return nullptr; }
+
+    /**
+     * Start delivering frames. The callback is called from the thread of this source
+     */
+    virtual void start(const Callback &callback) = 0;
+
+    /**
+     * Stop delivering frames. Blocks until a callback in progress has returned and
+     * guarantees that the callback is not called after this returns. Does nothing
+     * if not started
+     */
+    virtual void stop() = 0;
+
+    virtual ~FrameSource() = default;
+};
+
+#endif
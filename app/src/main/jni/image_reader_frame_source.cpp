@@ -0,0 +1,113 @@
+#include "frame_source.hpp"
+
+#include <media/NdkImage.h>
+#include <media/NdkImageReader.h>
+
+#include <cassert>
+#include <mutex>
+
+#include "logging.hpp"
+
+namespace {
+class ImageReaderFrameSource : public FrameSource {
+private:
+    AImageReader *reader;
+    ANativeWindow *window = nullptr;
+
+    // protects the callback, held while it runs so that stop() can wait for it
+    std::mutex mutex;
+    Callback callback;
+    bool running = false;
+
+    int deliveredFrames = 0;
+    // images not acquired because all buffers were in use
+    int busyFrames = 0;
+
+    static void onImageAvailable(void *context, AImageReader *) {
+        static_cast<ImageReaderFrameSource*>(context)->deliver();
+    }
+
+    // called in the image reader thread
+    void deliver() {
+        std::lock_guard<std::mutex> lock(mutex);
+        if (!running) return;
+
+        AImage *image = nullptr;
+        // skips images that arrived while the previous callback was running
+        const media_status_t status = AImageReader_acquireLatestImage(reader, &image);
+        if (status == AMEDIA_IMGREADER_MAX_IMAGES_ACQUIRED) {
+            busyFrames++;
+            return;
+        }
+        if (status != AMEDIA_OK || !image) return;
+
+        Frame frame;
+        std::uint8_t *data = nullptr;
+        int dataLength = 0;
+        int32_t rowStride = 0;
+        if (AImage_getTimestamp(image, &frame.timeNanos) == AMEDIA_OK
+            && AImage_getWidth(image, &frame.width) == AMEDIA_OK
+            && AImage_getHeight(image, &frame.height) == AMEDIA_OK
+            && AImage_getPlaneData(image, 0, &data, &dataLength) == AMEDIA_OK
+            && AImage_getPlaneRowStride(image, 0, &rowStride) == AMEDIA_OK) {
+            frame.gray = data;
+            frame.rowStride = rowStride;
+            callback(frame);
+            deliveredFrames++;
+        } else {
+            log_warn("failed to read image reader frame");
+        }
+        // returns the buffer to the camera
+        AImage_delete(image);
+    }
+
+public:
+    explicit ImageReaderFrameSource(AImageReader *reader) : reader(reader) {
+        AImageReader_getWindow(reader, &window);
+        AImageReader_ImageListener listener {
+            .context = this,
+            .onImageAvailable = onImageAvailable
+        };
+        AImageReader_setImageListener(reader, &listener);
+    }
+
+    ~ImageReaderFrameSource() final {
+        stop();
+        AImageReader_setImageListener(reader, nullptr);
+        // also releases the window
+        AImageReader_delete(reader);
+        log_debug("image reader: %d frame(s) delivered, %d skipped with all buffers in use",
+                deliveredFrames, busyFrames);
+    }
+
+    ANativeWindow *captureWindow() final {
+        return window;
+    }
+
+    void start(const Callback &cb) final {
+        std::lock_guard<std::mutex> lock(mutex);
+        assert(!running);
+        callback = cb;
+        running = true;
+    }
+
+    void stop() final {
+        std::lock_guard<std::mutex> lock(mutex);
+        running = false;
+        callback = nullptr;
+    }
+};
+}
+
+std::unique_ptr<FrameSource> FrameSource::createImageReader(int width, int height, int maxImages) {
+    // acquireLatestImage needs at least two buffers
+    if (maxImages < 2) maxImages = 2;
+    AImageReader *reader = nullptr;
+    const media_status_t status = AImageReader_new(width, height, AIMAGE_FORMAT_YUV_420_888, maxImages, &reader);
+    if (status != AMEDIA_OK || !reader) {
+        log_error("failed to create a %d x %d image reader: %d", width, height, status);
+        return nullptr;
+    }
+    log_info("YUV image reader %d x %d, %d buffers", width, height, maxImages);
+    return std::unique_ptr<FrameSource>(new ImageReaderFrameSource(reader));
+}
@@ -0,0 +1,153 @@
+#ifndef IMU_SYNCHRONIZER_HPP
+#define IMU_SYNCHRONIZER_HPP
+
+#include <algorithm>
+#include <cassert>
+#include <cmath>
+#include <cstddef>
+#include <vector>
+#include "jsonl-recorder/types.hpp"
+
+/**
+ * Combines separate gyroscope and accelerometer streams into gyro+acc samples
+ * on a common timeline: either the gyroscope timestamps or a fixed output rate.
+ * Values are linearly interpolated. Samples are kept in preallocated rings, so
+ * adding samples never allocates.
+ *
+ * Both streams must be (roughly) time-ordered, out-of-order samples are dropped.
+ * Not thread-safe.
+ */
+class ImuSynchronizer {
+public:
+    typedef recorder::Vector3d Vector3d;
+
+    enum class Mode {
+        GYRO_TIMESTAMPS,
+        FIXED_RATE
+    };
+
+    /**
+     * @param mode output timeline
+     * @param fixedRate output rate in Hz, only used in FIXED_RATE mode
+     * @param capacity number of samples buffered per stream
+     */
+    ImuSynchronizer(Mode mode, double fixedRate = 0, std::size_t capacity = 64) :
+        mode(mode),
+        period(mode == Mode::FIXED_RATE ? 1.0 / fixedRate : 0),
+        gyro(capacity),
+        acc(capacity)
+    {
+        assert(mode != Mode::FIXED_RATE || fixedRate > 0);
+    }
+
+    /**
+     * Add a gyroscope sample and call the callback(t, gyro, acc) for each
+     * synchronized sample that became available
+     */
+    template <class Callback> void addGyro(double t, const Vector3d &val, Callback output) {
+        if (!gyro.push({ t, val })) drops++;
+        emit(output);
+    }
+
+    template <class Callback> void addAcc(double t, const Vector3d &val, Callback output) {
+        if (!acc.push({ t, val })) drops++;
+        emit(output);
+    }
+
+    /** Number of samples dropped because they were out of order or the buffer overflowed */
+    std::size_t drops = 0;
+
+private:
+    struct Stamped {
+        double t;
+        Vector3d val;
+    };
+
+    class Ring {
+    public:
+        explicit Ring(std::size_t capacity) : data(capacity) {}
+
+        bool push(const Stamped &s) {
+            if (s.t <= lastT) return false;
+            lastT = s.t;
+            bool overflow = count == data.size();
+            if (overflow) popFront();
+            data[(start + count) % data.size()] = s;
+            count++;
+            return !overflow;
+        }
+
+        const Stamped &at(std::size_t i) const { return data[(start + i) % data.size()]; }
+        const Stamped &back() const { return at(count - 1); }
+        std::size_t size() const { return count; }
+        void popFront() { start = (start + 1) % data.size(); count--; }
+
+        /** Discard samples that are not needed for interpolating at time t or later */
+        void discardBefore(double t) {
+            while (count >= 2 && at(1).t <= t) popFront();
+        }
+
+        /** Interpolate at t, which must be inside the buffered range */
+        Vector3d interpolate(double t) const {
+            for (std::size_t i = 0; i + 1 < count; ++i) {
+                const Stamped &a = at(i), &b = at(i + 1);
+                if (b.t >= t) {
+                    const double w = (t - a.t) / (b.t - a.t);
+                    return {
+                        a.val.x + w * (b.val.x - a.val.x),
+                        a.val.y + w * (b.val.y - a.val.y),
+                        a.val.z + w * (b.val.z - a.val.z)
+                    };
+                }
+            }
+            return back().val;
+        }
+
+    private:
+        std::vector<Stamped> data;
+        std::size_t start = 0, count = 0;
+        double lastT = -1e100;
+    };
+
+    bool covers(const Ring &r, double t) const {
+        return r.size() > 0 && r.at(0).t <= t && r.back().t >= t;
+    }
+
+    template <class Callback> void emit(Callback &output) {
+        if (gyro.size() == 0 || acc.size() == 0) return;
+        if (mode == Mode::GYRO_TIMESTAMPS) {
+            // in this mode, the gyro ring only contains samples that have not been output yet
+            while (gyro.size() > 0) {
+                const Stamped &g = gyro.at(0);
+                // samples before the first accelerometer sample cannot be interpolated
+                if (g.t >= acc.at(0).t) {
+                    if (!covers(acc, g.t)) break;
+                    output(g.t, g.val, acc.interpolate(g.t));
+                    acc.discardBefore(g.t);
+                }
+                gyro.popFront();
+            }
+        } else {
+            if (!started) {
+                const double t0 = std::max(gyro.at(0).t, acc.at(0).t);
+                nextT = std::ceil(t0 / period) * period;
+                started = true;
+            }
+            while (covers(gyro, nextT) && covers(acc, nextT)) {
+                output(nextT, gyro.interpolate(nextT), acc.interpolate(nextT));
+                nextT += period;
+            }
+            gyro.discardBefore(nextT);
+            acc.discardBefore(nextT);
+        }
+    }
+
+    const Mode mode;
+    const double period;
+    Ring gyro, acc;
+    // FIXED_RATE: the next output time, set from the first samples. Timestamps may be negative
+    bool started = false;
+    double nextT = 0;
+};
+
+#endif
@@ -1,6 +1,7 @@
 #ifndef JNIUTIL_HPP
 #define JNIUTIL_HPP
 
+#include <cstring>
 #include <string>
 #include <jni.h>
 
@@ -14,4 +15,25 @@ inline std::string getStringOrEmpty(JNIEnv *env, jstring s) {
     return result;
 }
 
+/**
+ * Copies the string as modified UTF-8 to out, truncated to capacity - 1 bytes
+ * and always NUL-terminated. Empty if s is null. Does not allocate if the
+ * string fits.
+ */
+inline void copyStringTruncated(JNIEnv *env, jstring s, char *out, std::size_t capacity) {
+    if (capacity == 0) return;
+    out[0] = '\0';
+    if (s == nullptr) return;
+    const std::size_t length = std::size_t(env->GetStringUTFLength(s));
+    if (length < capacity) {
+        env->GetStringUTFRegion(s, 0, env->GetStringLength(s), out);
+        out[length] = '\0';
+    } else {
+        const char *cstr = env->GetStringUTFChars(s, nullptr);
+        std::strncpy(out, cstr, capacity - 1);
+        out[capacity - 1] = '\0';
+        env->ReleaseStringUTFChars(s, cstr);
+    }
+}
+
 #endif
\ No newline at end of file
@@ -0,0 +1,287 @@
+#ifndef JSONL_EMITTER_HPP
+#define JSONL_EMITTER_HPP
+
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <string>
+#include <vector>
+
+#include <nlohmann/json.hpp>
+#include "algorithm_module.hpp"
+
+/**
+ * Formats the recorded event types with a known schema (AlgorithmModule::Event,
+ * frame metadata and extra sensor samples) as JSON lines directly into a reused buffer, without
+ * building a nlohmann::json tree. Numbers use a fixed number of decimals. The keys
+ * and nesting are the same as in the generic toJson versions, which are kept for
+ * comparison (see jsonl_emitter_benchmark). Not thread-safe, use one emitter per
+ * writer thread.
+ */
+class JsonlEmitter {
+public:
+    typedef AlgorithmModule::Event Event;
+    typedef AlgorithmModule::FrameMetadata FrameMetadata;
+    typedef AlgorithmModule::json json;
+
+    // decimals: time stamps to nanoseconds, positions to micrometers
+    static constexpr int TIME_DECIMALS = 9;
+    // about the resolution of a double at current UTC times in seconds
+    static constexpr int UTC_DECIMALS = 6;
+    static constexpr int POSITION_DECIMALS = 6;
+    static constexpr int ORIENTATION_DECIMALS = 7;
+    // sensor samples are floats, this keeps about their precision
+    static constexpr int SENSOR_DECIMALS = 7;
+
+    JsonlEmitter() {
+        line.reserve(INITIAL_CAPACITY);
+    }
+
+    /** The line without a newline. Valid until the next call */
+    const std::string &emit(const Event &e) {
+        line.clear();
+        switch (e.type) {
+            case Event::Type::POSE: {
+                // keys in the same (sorted) order as nlohmann::json
+                const bool tagFirst = std::strcmp(e.tag, "time") < 0;
+                append("{");
+                if (tagFirst) {
+                    appendPose(e);
+                    append(",");
+                }
+                appendTime(e.t);
+                if (!tagFirst) {
+                    append(",");
+                    appendPose(e);
+                }
+                append("}");
+                break;
+            }
+            case Event::Type::GNSS_TIME:
+                append("{\"gpsTime\":{\"utcSeconds\":");
+                appendFixed(e.utcSeconds, UTC_DECIMALS);
+                append("},");
+                appendTime(e.t);
+                append("}");
+                break;
+            case Event::Type::FRAME_GAP:
+                append("{\"frameGap\":{\"duration\":");
+                appendFixed(e.duration, TIME_DECIMALS);
+                append(",\"missingFrames\":");
+                appendInt(e.missingFrames);
+                append("},");
+                appendTime(e.t);
+                append("}");
+                break;
+        }
+        return line;
+    }
+
+    const std::string &emitFrameMetadata(double t, const FrameMetadata &m) {
+        line.clear();
+        append("{\"frameMetadata\":{\"exposureTime\":");
+        appendFixed(m.exposureTime, TIME_DECIMALS);
+        append(",\"frameDuration\":");
+        appendFixed(m.frameDuration, TIME_DECIMALS);
+        append(",\"number\":");
+        appendInt(m.frameNumber);
+        append(",\"rollingShutterSkew\":");
+        appendFixed(m.rollingShutterSkew, TIME_DECIMALS);
+        append("},");
+        appendTime(t);
+        append("}");
+        return line;
+    }
+
+    const std::string &emitSensor(double t, const char *type, const double *values, int count) {
+        line.clear();
+        append("{\"sensor\":{\"type\":\"");
+        appendEscaped(type);
+        append("\",\"values\":[");
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) line.push_back(',');
+            appendFixed(values[i], SENSOR_DECIMALS);
+        }
+        append("]},");
+        appendTime(t);
+        append("}");
+        return line;
+    }
+
+    /** Generic version of emit */
+    static json toJson(const Event &e) {
+        switch (e.type) {
+            case Event::Type::POSE:
+                return {
+                    { "time", e.t },
+                    { e.tag, {
+                        { "position", {
+                            { "x", e.position[0] },
+                            { "y", e.position[1] },
+                            { "z", e.position[2] }
+                        }},
+                        { "orientation", {
+                            { "w", e.orientation[0] },
+                            { "x", e.orientation[1] },
+                            { "y", e.orientation[2] },
+                            { "z", e.orientation[3] }
+                        }}
+                    }}
+                };
+            case Event::Type::GNSS_TIME:
+                return {
+                    { "time", e.t },
+                    { "gpsTime", {
+                        { "utcSeconds", e.utcSeconds }
+                    }}
+                };
+            case Event::Type::FRAME_GAP:
+                return {
+                    { "time", e.t },
+                    { "frameGap", {
+                        { "duration", e.duration },
+                        { "missingFrames", e.missingFrames }
+                    }}
+                };
+        }
+        return nullptr;
+    }
+
+    /** Generic version of emitFrameMetadata */
+    static json frameMetadataToJson(double t, const FrameMetadata &m) {
+        return {
+            { "time", t },
+            { "frameMetadata", {
+                { "number", m.frameNumber },
+                { "exposureTime", m.exposureTime },
+                { "rollingShutterSkew", m.rollingShutterSkew },
+                { "frameDuration", m.frameDuration }
+            }}
+        };
+    }
+
+    /** Generic version of emitSensor */
+    static json sensorToJson(double t, const char *type, const double *values, int count) {
+        return {
+            { "time", t },
+            { "sensor", {
+                { "type", type },
+                { "values", std::vector<double>(values, values + count) }
+            }}
+        };
+    }
+
+    /**
+     * Writes the formatted line to a recorder::Recorder, which must accept raw
+     * JSON lines (addJsonString). There is deliberately no fallback to addJson:
+     * a recorder without the fast path fails the build instead of silently
+     * building JSON trees again
+     */
+    template <class Recorder> void write(Recorder &recorder, const Event &e) {
+        recorder.addJsonString(emit(e));
+    }
+
+    template <class Recorder> void writeFrameMetadata(Recorder &recorder, double t, const FrameMetadata &m) {
+        recorder.addJsonString(emitFrameMetadata(t, m));
+    }
+
+    template <class Recorder> void writeSensor(Recorder &recorder, double t, const char *type, const double *values, int count) {
+        recorder.addJsonString(emitSensor(t, type, values, count));
+    }
+
+private:
+    static constexpr std::size_t INITIAL_CAPACITY = 512;
+    std::string line;
+
+    void appendPose(const Event &e) {
+        append("\"");
+        appendEscaped(e.tag);
+        append("\":{\"orientation\":{\"w\":");
+        appendFixed(e.orientation[0], ORIENTATION_DECIMALS);
+        append(",\"x\":");
+        appendFixed(e.orientation[1], ORIENTATION_DECIMALS);
+        append(",\"y\":");
+        appendFixed(e.orientation[2], ORIENTATION_DECIMALS);
+        append(",\"z\":");
+        appendFixed(e.orientation[3], ORIENTATION_DECIMALS);
+        append("},\"position\":{\"x\":");
+        appendFixed(e.position[0], POSITION_DECIMALS);
+        append(",\"y\":");
+        appendFixed(e.position[1], POSITION_DECIMALS);
+        append(",\"z\":");
+        appendFixed(e.position[2], POSITION_DECIMALS);
+        append("}}");
+    }
+
+    void appendTime(double t) {
+        append("\"time\":");
+        appendFixed(t, TIME_DECIMALS);
+    }
+
+    void append(const char *s) {
+        line.append(s);
+    }
+
+    void appendEscaped(const char *s) {
+        for (; *s; ++s) {
+            const char c = *s;
+            if (c == '"' || c == '\\') {
+                line.push_back('\\');
+                line.push_back(c);
+            } else if (static_cast<unsigned char>(c) < 0x20) {
+                char buf[8];
+                std::snprintf(buf, sizeof(buf), "\\u%04x", c);
+                line.append(buf);
+            } else {
+                line.push_back(c);
+            }
+        }
+    }
+
+    void appendInt(int64_t v) {
+        char buf[24];
+        char *end = buf + sizeof(buf);
+        char *p = end;
+        // negated as unsigned so that INT64_MIN works
+        uint64_t u = v < 0 ? 0 - uint64_t(v) : uint64_t(v);
+        do {
+            *--p = char('0' + u % 10);
+            u /= 10;
+        } while (u > 0);
+        if (v < 0) *--p = '-';
+        line.append(p, std::size_t(end - p));
+    }
+
+    void appendFixed(double v, int decimals) {
+        static const double scales[] = { 1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+        if (!std::isfinite(v)) {
+            // not representable in JSON
+            append("null");
+            return;
+        }
+        const double scaled = std::round(std::fabs(v) * scales[decimals]);
+        if (scaled >= 9e18) {
+            // does not fit the integer formatting, rare enough to use snprintf
+            char buf[32];
+            std::snprintf(buf, sizeof(buf), "%.17g", v);
+            line.append(buf);
+            return;
+        }
+        const uint64_t units = uint64_t(scaled);
+        const uint64_t scale = uint64_t(scales[decimals]);
+        if (v < 0 && units > 0) line.push_back('-');
+        appendInt(int64_t(units / scale));
+        if (decimals == 0) return;
+        line.push_back('.');
+        uint64_t frac = units % scale;
+        char digits[16];
+        for (int i = decimals - 1; i >= 0; --i) {
+            digits[i] = char('0' + frac % 10);
+            frac /= 10;
+        }
+        line.append(digits, std::size_t(decimals));
+    }
+};
+
+#endif
@@ -0,0 +1,351 @@
+#ifndef MJPEG_AVI_WRITER_HPP
+#define MJPEG_AVI_WRITER_HPP
+
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <memory>
+#include <string>
+#include <sys/types.h>
+#include <vector>
+
+#include "logging.hpp"
+#include "tar_entry.hpp"
+
+#if !defined(__BYTE_ORDER__) || __BYTE_ORDER__ != __ORDER_LITTLE_ENDIAN__
+#error "AVI files are little-endian and written in native byte order"
+#endif
+
+/**
+ * Writes already encoded JPEG frames to an MJPEG AVI file, so the (slow) JPEG
+ * encoding can run in parallel on other threads and this only copies bytes.
+ * Uses the OpenDML extensions for files over 1 GB:
+ *
+ *   RIFF 'AVI '
+ *     LIST 'hdrl': 'avih', LIST 'strl' ('strh', 'strf', 'indx'), LIST 'odml' ('dmlh')
+ *     LIST 'movi': '00dc' frames..., 'ix00' index of this segment
+ *     'idx1' legacy index of the first segment
+ *   RIFF 'AVIX'
+ *     LIST 'movi': '00dc' frames..., 'ix00'
+ *   ...
+ *
+ * Each RIFF segment is at most maxSegmentSize bytes. The 'indx' super index has
+ * room for MAX_SEGMENTS segments; once full, further frames are rejected. The
+ * sizes and frame counts in the headers are written by close(). If the file name
+ * ends with TarEntry::SUFFIX, the file is written as a tar entry, see tar_entry.hpp.
+ * Not thread-safe.
+ */
+class MjpegAviWriter {
+public:
+    static constexpr std::uint32_t DEFAULT_SEGMENT_SIZE = 1u << 30;
+    static constexpr int MAX_SEGMENTS = 256;
+
+    /** Returns nullptr if the file cannot be created */
+    static std::unique_ptr<MjpegAviWriter> create(const std::string &fileName,
+            int width, int height, double fps,
+            std::uint32_t maxSegmentSize = DEFAULT_SEGMENT_SIZE) {
+        std::FILE *file = std::fopen(fileName.c_str(), "wb");
+        if (!file) {
+            log_error("failed to create video file %s", fileName.c_str());
+            return nullptr;
+        }
+        return std::unique_ptr<MjpegAviWriter>(new MjpegAviWriter(file, TarEntry::nameFor(fileName),
+                width, height, fps, maxSegmentSize));
+    }
+
+    ~MjpegAviWriter() { close(); }
+
+    MjpegAviWriter(const MjpegAviWriter&) = delete;
+    MjpegAviWriter &operator=(const MjpegAviWriter&) = delete;
+
+    /** Returns false if the frame was not written */
+    bool addFrame(const std::uint8_t *jpeg, std::size_t size) {
+        if (!file || failed) return false;
+        const std::uint64_t chunkSize = 8 + padded(size);
+        // leave room for this segment's indices
+        const std::uint64_t indexSize = 8 + 24 + 8 * std::uint64_t(segmentFrames.size() + 1)
+            + (segments.empty() ? 8 + 16 * std::uint64_t(segmentFrames.size() + 1) : 0);
+        if (position - segmentStart + chunkSize + indexSize > maxSegmentSize && !segmentFrames.empty()) {
+            if (int(segments.size()) + 1 >= MAX_SEGMENTS) {
+                if (!full) log_warn("video file is full, not recording more frames");
+                full = true;
+                return false;
+            }
+            endSegment();
+            beginSegment("AVIX");
+        }
+        segmentFrames.push_back(Chunk { position - moviStart, std::uint32_t(size) });
+        writeFourcc("00dc");
+        write32(std::uint32_t(size));
+        writeBytes(jpeg, size);
+        if (size % 2) write8(0);
+        if (size > maxFrameSize) maxFrameSize = std::uint32_t(size);
+        totalFrames++;
+        return !failed;
+    }
+
+    /** Finishes the file. Returns false if anything could not be written */
+    bool close() {
+        if (!file) return !failed;
+        endSegment();
+        writeHeaderTotals();
+        if (!tarEntryName.empty() && !failed && !TarEntry::finish(file, tarEntryName, position)) failed = true;
+        if (std::fclose(file) != 0) failed = true;
+        file = nullptr;
+        if (failed) log_error("failed to write the video file");
+        return !failed;
+    }
+
+    std::uint64_t frameCount() const { return totalFrames; }
+    int segmentCount() const { return int(segments.size()) + (file ? 1 : 0); }
+
+private:
+    static constexpr std::size_t BUFFER_SIZE = 1 << 20;
+    static constexpr std::uint32_t AVIF_HASINDEX = 0x10;
+    static constexpr std::uint32_t AVIIF_KEYFRAME = 0x10;
+    static constexpr std::uint8_t AVI_INDEX_OF_INDEXES = 0;
+    static constexpr std::uint8_t AVI_INDEX_OF_CHUNKS = 1;
+    static constexpr std::uint32_t DMLH_SIZE = 248;
+
+    // frame chunk, offset from the 'movi' fourcc of its segment to the chunk header
+    struct Chunk {
+        std::uint64_t offset;
+        std::uint32_t size;
+    };
+
+    // 'ix00' chunk of a finished segment, for the super index
+    struct Segment {
+        std::uint64_t indexOffset;
+        std::uint32_t indexSize;
+        std::uint32_t frames;
+    };
+
+    std::FILE *file;
+    // non-empty if written as a tar entry, whose header comes before the AVI data
+    const std::string tarEntryName;
+    const std::uint64_t fileOffset;
+    const int width, height;
+    const double fps;
+    const std::uint32_t maxSegmentSize;
+    // in the AVI data, i.e., excluding fileOffset
+    std::uint64_t position = 0;
+    // current segment: RIFF chunk start and the 'movi' fourcc
+    std::uint64_t segmentStart = 0, moviStart = 0;
+    std::vector<Chunk> segmentFrames;
+    std::vector<Segment> segments;
+    std::uint64_t totalFrames = 0;
+    std::uint32_t firstSegmentFrames = 0;
+    std::uint32_t maxFrameSize = 0;
+    // header fields written by close()
+    std::uint64_t avihOffset = 0, strhOffset = 0, indxOffset = 0, dmlhOffset = 0;
+    bool failed = false, full = false;
+
+    MjpegAviWriter(std::FILE *file, const std::string &tarEntryName, int width, int height, double fps,
+            std::uint32_t maxSegmentSize) :
+        file(file), tarEntryName(tarEntryName), fileOffset(tarEntryName.empty() ? 0 : TarEntry::BLOCK_SIZE),
+        width(width), height(height), fps(fps > 0 ? fps : 30), maxSegmentSize(maxSegmentSize)
+    {
+        std::setvbuf(file, nullptr, _IOFBF, BUFFER_SIZE);
+        if (!tarEntryName.empty() && !TarEntry::begin(file)) failed = true;
+        writeHeaders();
+        beginSegment(nullptr);
+    }
+
+    static std::uint64_t padded(std::uint64_t size) { return size + (size % 2); }
+
+    void writeHeaders() {
+        const std::uint32_t scale = 1000, rate = std::uint32_t(fps * scale + 0.5);
+        writeFourcc("RIFF");
+        write32(0);
+        writeFourcc("AVI ");
+
+        const std::uint64_t hdrl = beginList("hdrl");
+        writeFourcc("avih");
+        write32(56);
+        avihOffset = position;
+        write32(std::uint32_t(1e6 / fps + 0.5)); // dwMicroSecPerFrame
+        write32(0); // dwMaxBytesPerSec
+        write32(0); // dwPaddingGranularity
+        write32(AVIF_HASINDEX);
+        write32(0); // dwTotalFrames, in the first segment
+        write32(0); // dwInitialFrames
+        write32(1); // dwStreams
+        write32(0); // dwSuggestedBufferSize
+        write32(std::uint32_t(width));
+        write32(std::uint32_t(height));
+        for (int i = 0; i < 4; ++i) write32(0);
+
+        const std::uint64_t strl = beginList("strl");
+        writeFourcc("strh");
+        write32(56);
+        strhOffset = position;
+        writeFourcc("vids");
+        writeFourcc("MJPG");
+        write32(0); // dwFlags
+        write32(0); // wPriority, wLanguage
+        write32(0); // dwInitialFrames
+        write32(scale);
+        write32(rate);
+        write32(0); // dwStart
+        write32(0); // dwLength, all frames
+        write32(0); // dwSuggestedBufferSize
+        write32(0xffffffffu); // dwQuality
+        write32(0); // dwSampleSize
+        write16(0);
+        write16(0);
+        write16(std::uint16_t(width));
+        write16(std::uint16_t(height));
+
+        // BITMAPINFOHEADER
+        writeFourcc("strf");
+        write32(40);
+        write32(40);
+        write32(std::uint32_t(width));
+        write32(std::uint32_t(height));
+        write16(1); // biPlanes
+        write16(24); // biBitCount
+        writeFourcc("MJPG");
+        write32(std::uint32_t(width) * std::uint32_t(height) * 3);
+        for (int i = 0; i < 4; ++i) write32(0);
+
+        // super index, filled by close()
+        writeFourcc("indx");
+        write32(24 + 16 * MAX_SEGMENTS);
+        indxOffset = position;
+        writeZeros(24 + 16 * MAX_SEGMENTS);
+        endList(strl);
+
+        const std::uint64_t odml = beginList("odml");
+        writeFourcc("dmlh");
+        write32(DMLH_SIZE);
+        dmlhOffset = position;
+        writeZeros(DMLH_SIZE);
+        endList(odml);
+        endList(hdrl);
+    }
+
+    // riffType nullptr continues the 'AVI ' RIFF started by writeHeaders
+    void beginSegment(const char *riffType) {
+        if (riffType) {
+            segmentStart = position;
+            writeFourcc("RIFF");
+            write32(0);
+            writeFourcc(riffType);
+        }
+        writeFourcc("LIST");
+        write32(0);
+        moviStart = position;
+        writeFourcc("movi");
+        segmentFrames.clear();
+    }
+
+    void endSegment() {
+        // standard index, offsets point to the frame data
+        const std::uint64_t indexOffset = position;
+        const std::uint32_t indexSize = 8 + 24 + 8 * std::uint32_t(segmentFrames.size());
+        writeFourcc("ix00");
+        write32(indexSize - 8);
+        write16(2); // wLongsPerEntry
+        write8(0); // bIndexSubType
+        write8(AVI_INDEX_OF_CHUNKS);
+        write32(std::uint32_t(segmentFrames.size()));
+        writeFourcc("00dc");
+        write64(moviStart);
+        write32(0);
+        for (const Chunk &c : segmentFrames) {
+            write32(std::uint32_t(c.offset + 8));
+            write32(c.size);
+        }
+        patch32(moviStart - 4, std::uint32_t(position - moviStart));
+
+        if (segments.empty()) {
+            // legacy index, offsets relative to 'movi' and pointing to the chunk headers
+            writeFourcc("idx1");
+            write32(16 * std::uint32_t(segmentFrames.size()));
+            for (const Chunk &c : segmentFrames) {
+                writeFourcc("00dc");
+                write32(AVIIF_KEYFRAME);
+                write32(std::uint32_t(c.offset));
+                write32(c.size);
+            }
+            firstSegmentFrames = std::uint32_t(segmentFrames.size());
+        }
+        patch32(segmentStart + 4, std::uint32_t(position - segmentStart - 8));
+        segments.push_back(Segment { indexOffset, indexSize, std::uint32_t(segmentFrames.size()) });
+        segmentFrames.clear();
+    }
+
+    void writeHeaderTotals() {
+        const std::uint32_t frames = std::uint32_t(totalFrames);
+        const std::uint32_t bufferSize = maxFrameSize + 8;
+        patch32(avihOffset + 4, std::uint32_t(maxFrameSize * fps + 0.5));
+        patch32(avihOffset + 16, firstSegmentFrames);
+        patch32(avihOffset + 28, bufferSize);
+        patch32(strhOffset + 32, frames);
+        patch32(strhOffset + 36, bufferSize);
+        patch32(dmlhOffset, frames);
+
+        std::uint8_t indx[24 + 16 * MAX_SEGMENTS] = {};
+        const std::uint16_t longsPerEntry = 4;
+        const std::uint32_t entries = std::uint32_t(segments.size());
+        std::memcpy(indx, &longsPerEntry, 2);
+        indx[3] = AVI_INDEX_OF_INDEXES;
+        std::memcpy(indx + 4, &entries, 4);
+        std::memcpy(indx + 8, "00dc", 4);
+        for (std::size_t i = 0; i < segments.size(); ++i) {
+            std::uint8_t *entry = indx + 24 + 16 * i;
+            std::memcpy(entry, &segments[i].indexOffset, 8);
+            std::memcpy(entry + 8, &segments[i].indexSize, 4);
+            std::memcpy(entry + 12, &segments[i].frames, 4);
+        }
+        patch(indxOffset, indx, sizeof(indx));
+        std::fflush(file);
+    }
+
+    std::uint64_t beginList(const char *type) {
+        writeFourcc("LIST");
+        write32(0);
+        const std::uint64_t start = position;
+        writeFourcc(type);
+        return start;
+    }
+
+    void endList(std::uint64_t start) {
+        patch32(start - 4, std::uint32_t(position - start));
+    }
+
+    void patch32(std::uint64_t offset, std::uint32_t value) {
+        patch(offset, &value, 4);
+    }
+
+    void patch(std::uint64_t offset, const void *data, std::size_t size) {
+        if (failed) return;
+        if (fseeko(file, off_t(fileOffset + offset), SEEK_SET) != 0
+                || std::fwrite(data, 1, size, file) != size
+                || fseeko(file, off_t(fileOffset + position), SEEK_SET) != 0) {
+            failed = true;
+        }
+    }
+
+    void writeFourcc(const char *fourcc) { writeBytes(fourcc, 4); }
+    void write8(std::uint8_t v) { writeBytes(&v, 1); }
+    void write16(std::uint16_t v) { writeBytes(&v, 2); }
+    void write32(std::uint32_t v) { writeBytes(&v, 4); }
+    void write64(std::uint64_t v) { writeBytes(&v, 8); }
+
+    void writeZeros(std::size_t size) {
+        static const std::uint8_t zeros[64] = {};
+        while (size > 0) {
+            const std::size_t n = size < sizeof(zeros) ? size : sizeof(zeros);
+            writeBytes(zeros, n);
+            size -= n;
+        }
+    }
+
+    void writeBytes(const void *data, std::size_t size) {
+        if (!failed && std::fwrite(data, 1, size, file) != size) failed = true;
+        position += size;
+    }
+};
+
+#endif
@@ -1,6 +1,7 @@
 #include "../algorithm_module.hpp"
 
 #include <iomanip>
+#include <mutex>
 #include <sstream>
 #include <opencv2/core.hpp>
 #include <opencv2/imgproc.hpp>
@@ -20,6 +21,10 @@ private:
     std::vector<std::vector<cv::Point3f>> objectPoints;
 
     cv::Mat colorMat, visualizationMat;
+    // the circles are found in the gray image, which may be downscaled by integer
+    // factors (see "algorithmImageDownscale") with respect to the color image
+    cv::Size graySize;
+    int scaleX = 1, scaleY = 1;
 
     // outputs
     cv::Mat cameraMatrix;
@@ -30,6 +35,10 @@ private:
     bool ready = false;
     double lastUpdateTime = 0;
 
+    // addFrame may run in the CPU pipeline worker thread, status() in the GL thread
+    mutable std::mutex statusMutex;
+    std::string statusText;
+
     static constexpr unsigned MIN_POSES = 3;
     static constexpr unsigned MAX_POSES = 30;
     static constexpr long POSE_INTERVAL_MILLIS = 500;
@@ -43,7 +52,7 @@ private:
 
         cameraMatrix = cv::Mat::eye(3, 3, CV_64F);
 
-        double rms = cv::calibrateCameraRO(objectPoints, imagePoints, colorMat.size(), iFixedPoint,
+        double rms = cv::calibrateCameraRO(objectPoints, imagePoints, graySize, iFixedPoint,
                                            cameraMatrix, distCoeffs, rvecs, tvecs, newObjPoints,
                                            cv::CALIB_FIX_ASPECT_RATIO | cv::CALIB_FIX_K3 | cv::CALIB_USE_LU);
         log_debug("RMS error reported by calibrateCamera: %g\n", rms);
@@ -51,12 +60,18 @@ private:
         bool ok = cv::checkRange(cameraMatrix) && cv::checkRange(distCoeffs);
         if (ok) {
             ready = true;
-            log_debug("calibration success. Focal lengths %g, %g", cameraMatrix.at<double>(0,0), cameraMatrix.at<double>(0,0));
+            log_debug("calibration success. Focal lengths %g, %g", cameraMatrix.at<double>(0,0) * scaleX,
+                    cameraMatrix.at<double>(1,1) * scaleY);
         }
     }
 
+    // each gray pixel is the mean of a scaleX x scaleY box of color pixels
+    cv::Point2f toColorPixels(const cv::Point2f &p) const {
+        return cv::Point2f((p.x + 0.5f) * scaleX - 0.5f, (p.y + 0.5f) * scaleY - 0.5f);
+    }
+
 public:
-    CameraCalibrator(int textureId, int w, int h) : CpuAlgorithmModule(textureId, w, h), patternSize(4, 11)
+    CameraCalibrator(int textureId, int w, int h, const json *settings) : CpuAlgorithmModule(textureId, w, h, settings), patternSize(4, 11)
     {
         colorMat = cv::Mat(h, w, CV_8UC4);
         const float squareSize = 1.0;
@@ -66,6 +81,7 @@ public:
                         ((2*j + i % 2)*squareSize),
                         (i*squareSize),
                         0));
+        statusText = buildStatus();
         log_debug("initialized camera calibrator");
     }
 
@@ -74,9 +90,13 @@ public:
                   cv::Mat &outputColorFrame) final {
         (void)cam;
 
-        assert(rgbaMat != nullptr);
         assert(!colorMat.empty());
-        rgbaMat->copyTo(colorMat);
+        // no color frame with YUV capture
+        if (rgbaMat) rgbaMat->copyTo(colorMat);
+        else cv::cvtColor(grayMat, colorMat, cv::COLOR_GRAY2BGRA);
+        graySize = grayMat.size();
+        scaleX = colorMat.cols / grayMat.cols;
+        scaleY = colorMat.rows / grayMat.rows;
         const cv::Size patternSize(4, 11);
         centers.clear();
         // https://raw.githubusercontent.com/opencv/opencv/master/doc/acircles_pattern.png
@@ -101,23 +121,35 @@ public:
             constexpr int RADIUS = 10;
             colorMat.copyTo(visualizationMat);
             for (const auto &c : centers) {
-                cv::circle(visualizationMat, c, RADIUS, cv::Scalar(0xff, 0x0, 0xff));
+                cv::circle(visualizationMat, toColorPixels(c), RADIUS, cv::Scalar(0xff, 0x0, 0xff));
             }
             outputColorFrame = visualizationMat;
         }
+
+        const std::string newStatus = buildStatus();
+        std::lock_guard<std::mutex> lock(statusMutex);
+        statusText = newStatus;
     }
 
     std::string status() const final {
+        std::lock_guard<std::mutex> lock(statusMutex);
+        return statusText;
+    }
+
+    std::string buildStatus() const {
         std::ostringstream oss;
         oss << "n pose(s): " << imagePoints.size() << "\n";
 
         if (ready) {
+            // in color frame pixels, like colorFrameIntrinsics()
+            const cv::Point2f principalPoint = toColorPixels(cv::Point2f(
+                    float(cameraMatrix.at<double>(0, 2)), float(cameraMatrix.at<double>(1, 2))));
             oss << "Focal lengths: " << std::setprecision(4)
-                << cameraMatrix.at<double>(0, 0) << ", "
-                << cameraMatrix.at<double>(1, 1) << "\n"
+                << cameraMatrix.at<double>(0, 0) * scaleX << ", "
+                << cameraMatrix.at<double>(1, 1) * scaleY << "\n"
                 << "Principal point: "
-                << cameraMatrix.at<double>(0, 2) << ", "
-                << cameraMatrix.at<double>(1, 2) << "\n"
+                << principalPoint.x << ", "
+                << principalPoint.y << "\n"
                 << "Distortion:";
             for (double d : distCoeffs) {
                 oss << "\n" << d;
@@ -140,6 +172,10 @@ public:
 };
 }
 
-std::unique_ptr<AlgorithmModule> buildCameraCalibrator(int textureId, int width, int heigth) {
-    return AlgorithmModule::makeThreadSafe(new CameraCalibrator(textureId, width, heigth));
+std::unique_ptr<AlgorithmModule> buildCameraCalibrator(int textureId, int width, int heigth, const AlgorithmModule::json *settings) {
+    auto module = CpuAlgorithmModule::makePipelineOwner(new CameraCalibrator(textureId, width, heigth, settings));
+    // sensor data is ignored and the status has its own mutex, so the pipeline
+    // worker needs no further locking
+    if (module->pipelined()) return module;
+    return AlgorithmModule::makeThreadSafe(module.release(), AlgorithmModule::ThreadSafeMode::QUEUE_SENSORS);
 }
\ No newline at end of file
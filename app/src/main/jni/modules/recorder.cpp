@@ -1,70 +1,517 @@
 #include <opencv2/core.hpp>
+#include <opencv2/imgcodecs.hpp>
 #include "../algorithm_module.hpp"
 #include "jsonl-recorder/recorder.hpp"
 #include "logging.hpp"
 #include <nlohmann/json.hpp>
+#include "../notifier.hpp"
+#include "../spsc_ring.hpp"
+#include "../writer_queue.hpp"
+#include "../binary_sensor_log.hpp"
+#include "../jsonl_emitter.hpp"
+#include "../mjpeg_avi_writer.hpp"
 #include <accelerated-arrays/future.hpp>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <deque>
+#include <fstream>
+#include <sstream>
+#include <thread>
+
+namespace {
+// queue capacities, in items
+constexpr std::size_t IMU_QUEUE_SIZE = 4096;
+constexpr std::size_t SYNCHRONIZED_IMU_QUEUE_SIZE = 2048;
+constexpr std::size_t GPS_QUEUE_SIZE = 64;
+constexpr std::size_t JSON_QUEUE_SIZE = 256;
+constexpr std::size_t EVENT_QUEUE_SIZE = 256;
+constexpr std::size_t FRAME_QUEUE_SIZE = 8;
+// color frames owned by the recorder in addition to one per encoder thread.
+// Must stay below FRAME_QUEUE_SIZE so that the frame queue never overflows
+constexpr int FRAME_POOL_SIZE = 3;
+constexpr int MAX_VIDEO_ENCODER_THREADS = 4;
+constexpr std::size_t FRAME_METADATA_QUEUE_SIZE = 64;
+// JSONL lines of the frames written to the video
+constexpr std::size_t FRAME_LINE_QUEUE_SIZE = 64;
+// same as the default of cv::VideoWriter with MJPG
+constexpr int JPEG_QUALITY = 95;
+// with the "degrade" policy, record at most every this many camera frames
+constexpr int MAX_VIDEO_FRAME_STRIDE = 8;
+// recorded frames with enough free buffers before the video FPS is raised again
+constexpr int DEGRADE_RECOVERY_FRAMES = 30;
+
+/**
+ * What happens when the writer threads cannot keep up: "drop" video frames,
+ * JSON, GPS and events, "block" the camera until a video frame buffer is free
+ * and keep the other data in memory, or "degrade" the recorded video FPS.
+ * IMU samples are never dropped, with every policy the samples that do not fit
+ * in the queue are kept in memory until the writer catches up. Sensor producers
+ * never wait, only the frame producer with "block"
+ */
+enum class QueuePolicy { DROP, BLOCK, DEGRADE };
+
+template <class T> AlgorithmModule::json queueSummary(const WriterQueue<T> &q) {
+    return {
+        { "capacity", q.capacity() },
+        { "maxDepth", q.highWaterMark() },
+        { "dropped", q.dropped() },
+        { "overflowed", q.overflows() }
+    };
+}
+
+/**
+ * Throughput of one recording stage. The busy time only includes the work
+ * itself, so items / busy time is the rate the stage could sustain alone
+ */
+struct StageStats {
+    typedef std::chrono::steady_clock Clock;
+    std::atomic<long> items { 0 };
+    std::atomic<int64_t> busyNanos { 0 };
+
+    void add(long n, Clock::time_point startTime) {
+        items += n;
+        busyNanos += std::chrono::duration_cast<std::chrono::nanoseconds>(Clock::now() - startTime).count();
+    }
+
+    double maxRate() const {
+        const int64_t busy = busyNanos.load();
+        return busy > 0 ? items.load() / (busy * 1e-9) : 0;
+    }
+
+    AlgorithmModule::json toJson() const {
+        return {
+            { "items", items.load() },
+            { "busySeconds", busyNanos.load() * 1e-9 },
+            { "maxRate", maxRate() }
+        };
+    }
+};
+}
 
 struct RecordingModule : public CpuAlgorithmModule {
+    struct SynchronizedImu {
+        double t;
+        recorder::Vector3d gyro, acc;
+    };
+
+    struct GpsRecord {
+        double t;
+        Gps gps;
+    };
+
+    // a frame copied to a pool buffer, the buffer is returned after writing
+    struct PooledFrame {
+        recorder::FrameData data;
+        int slot;
+    };
+
+    struct FrameMetadataRecord {
+        double t;
+        FrameMetadata metadata;
+    };
+
     bool recordCamera;
     std::unique_ptr<recorder::Recorder> recorder;
     int w, h;
     bool recordSensors;
-    std::unique_ptr<accelerated::Processor> recorderThread;
+    bool recordSynchronizedImu;
+    bool recordExtraSensors;
+    // if set, IMU and extra sensor samples are written here instead of the JSONL
+    std::unique_ptr<BinarySensorLog> binarySensorLog;
+
+    // woken by the producers of the writer and video threads, and by the video
+    // thread when a frame buffer is returned
+    Notifier writerWakeup, videoWakeup, frameSlotWakeup;
+    WriterQueue<ImuSample> imuQueue { IMU_QUEUE_SIZE, writerWakeup };
+    WriterQueue<SynchronizedImu> synchronizedImuQueue { SYNCHRONIZED_IMU_QUEUE_SIZE, writerWakeup };
+    WriterQueue<GpsRecord> gpsQueue { GPS_QUEUE_SIZE, writerWakeup };
+    WriterQueue<json> jsonQueue { JSON_QUEUE_SIZE, writerWakeup };
+    // poses, GNSS time and frame gaps, formatted by the emitter on the writer thread
+    WriterQueue<Event> eventQueue { EVENT_QUEUE_SIZE, writerWakeup };
+    WriterQueue<PooledFrame> frameQueue { FRAME_QUEUE_SIZE, videoWakeup };
+    // from the video thread, in video order
+    WriterQueue<recorder::FrameData> frameLineQueue { FRAME_LINE_QUEUE_SIZE, writerWakeup };
+
+    // Frame pool: addFrame copies the color frame to a free buffer, which the
+    // video thread returns after writing. CpuAlgorithmModule reuses its own
+    // frames immediately, so they must never be passed to the video thread.
+    // Each slot also has a buffer for the frame encoded as JPEG
+    std::vector<cv::Mat> framePool;
+    std::vector<std::vector<std::uint8_t>> jpegBuffers;
+    // only used by the video thread after the constructor
+    std::unique_ptr<MjpegAviWriter> videoWriter;
+    // produced by the video thread, consumed by addFrame
+    SpscRing<int> freeFrameSlots { FRAME_QUEUE_SIZE };
+    // no free buffer, or the video file could not take more frames
+    std::atomic<long> droppedVideoFrames { 0 };
+    long recordedVideoFrames = 0; // video thread only
+    // frames not recorded by the "degrade" policy and frames that waited for a buffer
+    std::atomic<long> skippedVideoFrames { 0 }, blockedVideoFrames { 0 };
+    // with the "degrade" policy, only every videoFrameStride-th frame is recorded
+    std::atomic<int> videoFrameStride { 1 };
+    long videoFrameCounter = 0;
+    int framesWithoutPressure = 0;
+
+    QueuePolicy queuePolicy = QueuePolicy::DROP;
+    std::string queuePolicyName;
+    std::string infoFileName;
+    double lastFrameTime = 0;
+    WriterQueue<FrameMetadataRecord> frameMetadataQueue { FRAME_METADATA_QUEUE_SIZE, writerWakeup };
+    JsonlEmitter emitter; // writer thread only
 
-    RecordingModule(int textureId, int width, int height, const json &settings) : CpuAlgorithmModule(textureId, width, height) {
+    // The recorder writes a single JSONL stream and is not thread-safe, so only
+    // the writer thread uses it while recording. The video is written separately
+    std::atomic<bool> stopWriter { false }, stopVideo { false };
+    // sensors, GPS, JSON events and the frame lines
+    std::thread writerThread;
+    // encodes frames on the encoder pool and writes them to the video in order
+    std::thread videoThread;
+    std::unique_ptr<accelerated::Processor> encoderPool;
+    int encoderThreads = 1;
+    StageStats sensorStats, encodeStats, videoWriteStats;
+
+    RecordingModule(int textureId, int width, int height, const json &settings) : CpuAlgorithmModule(textureId, width, height, &settings) {
         w = width;
         h = height;
-        recorderThread = accelerated::Processor::createThreadPool(1);
         recordSensors = settings.at("recordSensors").get<bool>();
         recordCamera = settings.at("recordCamera").get<bool>();
+        recordSynchronizedImu = settings.value("recordSynchronizedImu", false);
+        recordExtraSensors = settings.value("recordExtraSensors", false);
+        if (recordCamera && settings.value("cameraYuvImages", 0) > 0) {
+            // color frames are only read from the GPU
+            log_warn("video recording is not supported with YUV capture");
+            recordCamera = false;
+        }
         visualizationEnabled = true;
 
+        queuePolicyName = settings.value("recorderQueuePolicy", std::string("drop"));
+        if (queuePolicyName == "block") queuePolicy = QueuePolicy::BLOCK;
+        else if (queuePolicyName == "degrade") queuePolicy = QueuePolicy::DEGRADE;
+        else queuePolicy = QueuePolicy::DROP;
+        const bool keepAll = queuePolicy == QueuePolicy::BLOCK;
+        imuQueue.lossless = true;
+        synchronizedImuQueue.lossless = true;
+        gpsQueue.lossless = keepAll;
+        jsonQueue.lossless = keepAll;
+        eventQueue.lossless = keepAll;
+        frameMetadataQueue.lossless = keepAll;
+        // limited by the frame pool
+        frameLineQueue.lossless = true;
+
+        const json infoFile = settings.value("infoFileName", json());
+        if (infoFile.is_string()) infoFileName = infoFile.get<std::string>();
+
+        const json binaryFile = settings.value("binarySensorLogFileName", json());
+        if (recordSensors && binaryFile.is_string()) {
+            binarySensorLog = BinarySensorLog::create(binaryFile.get<std::string>());
+            if (binarySensorLog) log_info("recording sensors to %s", binaryFile.get<std::string>().c_str());
+        }
+
         auto recName = settings.at("recordingFileName");
         auto videoRecName = settings.at("videoRecordingFileName");
         std::string outputPath = recName.is_null() ? "" : recName.get<std::string>();
-        recorder = recorder::Recorder::build(outputPath,
-                (videoRecName.is_null() || !recordCamera) ? "" : videoRecName.get<std::string>());
+        // the video is written by videoWriter, the recorder only gets the frame lines
+        recorder = recorder::Recorder::build(outputPath);
 
-        recorder->setVideoRecordingFps(settings.at("targetFps").get<float>());
+        if (recordCamera && !videoRecName.is_null()) {
+            videoWriter = MjpegAviWriter::create(videoRecName.get<std::string>(),
+                    width, height, settings.at("targetFps").get<double>());
+        }
+        if (recordCamera) {
+            encoderThreads = std::max(1, std::min(settings.value("videoEncoderThreads", 1), MAX_VIDEO_ENCODER_THREADS));
+            encoderPool = accelerated::Processor::createThreadPool(encoderThreads);
+            const int poolSize = FRAME_POOL_SIZE + encoderThreads;
+            // same size and format as the BGRA color frames
+            framePool.resize(poolSize);
+            jpegBuffers.resize(poolSize);
+            for (int i = 0; i < poolSize; ++i) {
+                framePool[i] = cv::Mat(cv::Size(width, height), CV_8UC4);
+                freeFrameSlots.push(i);
+            }
+            log_debug("recording video with %d encoder thread(s), %d frame buffers", encoderThreads, poolSize);
+            videoThread = std::thread([this]() { videoLoop(); });
+        }
 
+        writerThread = std::thread([this]() { writerLoop(); });
         log_info("Recorder started, output %s", outputPath.c_str());
     }
 
+    ~RecordingModule() {
+        // the pipeline worker has already been stopped by makePipelineOwner. The
+        // threads drain all queues before exiting. The video thread goes first,
+        // because it passes the frame lines to the writer thread
+        if (videoThread.joinable()) {
+            stopVideo = true;
+            videoWakeup.notify();
+            videoThread.join();
+        }
+        if (videoWriter) {
+            videoWriter->close();
+            log_debug("%llu video frames in %d segment(s)",
+                (unsigned long long)videoWriter->frameCount(), videoWriter->segmentCount());
+        }
+        stopWriter = true;
+        writerWakeup.notify();
+        writerThread.join();
+        if (recordCamera) writeRecordingStats();
+        writeQueueSummary();
+        if (binarySensorLog) {
+            log_debug("%llu binary sensor records", (unsigned long long)binarySensorLog->recordCount());
+            binarySensorLog.reset();
+        }
+        log_info("Recorder stopped. %s, %s", queueStatus().c_str(), throughputStatus().c_str());
+    }
+
     void addGyro(double t, const recorder::Vector3d &val) final {
-        if (recordSensors)
-            recorderThread->enqueue([this, t, val]() {
-                recorder->addGyroscope(t, val.x, val.y, val.z);
-            });
+        if (recordSensors) imuQueue.push(ImuSample { ImuSample::Type::GYROSCOPE, t, val, {}, 3 });
     }
 
     void addAcc(double t, const recorder::Vector3d &val) final {
-        if (recordSensors)
-            recorderThread->enqueue([this, t, val]() {
-                recorder->addAccelerometer(t, val.x, val.y, val.z);
+        if (recordSensors) imuQueue.push(ImuSample { ImuSample::Type::ACCELEROMETER, t, val, {}, 3 });
+    }
+
+    void addImuBatch(const ImuSample *samples, std::size_t count) final {
+        if (!recordSensors) return;
+        {
+            std::lock_guard<std::mutex> lock(imuQueue.producerMutex);
+            for (std::size_t i = 0; i < count; ++i) imuQueue.pushLocked(samples[i]);
+        }
+        imuQueue.notify();
+    }
+
+    void writerLoop() {
+        while (true) {
+            // read the flag before draining so that nothing pushed before stopping is lost
+            const bool stopping = stopWriter.load();
+            const auto startTime = StageStats::Clock::now();
+            std::size_t n = 0;
+            n += imuQueue.drain([this](const ImuSample &s) { writeImuSample(s); });
+            n += synchronizedImuQueue.drain([this](const SynchronizedImu &s) { writeSynchronizedImu(s); });
+            n += gpsQueue.drain([this](const GpsRecord &r) {
+                recorder->addGps(r.t, r.gps.latitude, r.gps.longitude, r.gps.accuracy, r.gps.altitude);
+            });
+            n += jsonQueue.drain([this](json &j) {
+                recorder->addJson(j);
+                j = nullptr; // release the memory held by the slot
             });
+            n += eventQueue.drain([this](const Event &e) { emitter.write(*recorder, e); });
+            n += frameMetadataQueue.drain([this](const FrameMetadataRecord &r) { writeFrameMetadata(r); });
+            n += frameLineQueue.drain([this](const recorder::FrameData &d) { recorder->addFrame(d); });
+            if (n == 0) {
+                if (stopping) break;
+                writerWakeup.wait([this]() { return stopWriter || !writerQueuesEmpty(); });
+            } else {
+                sensorStats.add(long(n), startTime);
+            }
+        }
+    }
+
+    bool writerQueuesEmpty() const {
+        return imuQueue.empty() && synchronizedImuQueue.empty() && gpsQueue.empty()
+            && jsonQueue.empty() && eventQueue.empty() && frameMetadataQueue.empty()
+            && frameLineQueue.empty();
+    }
+
+    /**
+     * Up to encoderThreads frames are encoded to JPEG in parallel on the encoder
+     * pool, while the frame that was queued first is written to the video.
+     * Waiting for the oldest encoding keeps the video in order.
+     */
+    void videoLoop() {
+        std::deque<std::pair<PooledFrame, accelerated::Future>> encoding;
+        while (true) {
+            const bool stopping = stopVideo.load();
+            PooledFrame f;
+            while (encoding.size() < std::size_t(encoderThreads) && frameQueue.pop(f)) {
+                const int slot = f.slot;
+                encoding.emplace_back(f, encoderPool->enqueue([this, slot]() { encodeFrame(slot); }));
+            }
+            if (encoding.empty()) {
+                if (stopping) break;
+                videoWakeup.wait([this]() { return stopVideo || !frameQueue.empty(); });
+                continue;
+            }
+            encoding.front().second.wait();
+            writeFrame(encoding.front().first);
+            encoding.pop_front();
+        }
+    }
+
+    // called in the encoder pool, concurrently for different slots
+    void encodeFrame(int slot) {
+        const auto startTime = StageStats::Clock::now();
+        // the JPEG encoder drops the alpha channel of the BGRA frame
+        cv::imencode(".jpg", framePool[slot], jpegBuffers[slot], { cv::IMWRITE_JPEG_QUALITY, JPEG_QUALITY });
+        encodeStats.add(1, startTime);
+    }
+
+    // only call from the video thread
+    void writeFrame(const PooledFrame &f) {
+        const auto startTime = StageStats::Clock::now();
+        const std::vector<std::uint8_t> &jpeg = jpegBuffers[f.slot];
+        const bool written = !videoWriter || videoWriter->addFrame(jpeg.data(), jpeg.size());
+        freeFrameSlots.push(f.slot);
+        frameSlotWakeup.notify();
+        if (written) {
+            // the recorder numbers the frame lines, one for each frame in the video
+            recorder::FrameData data = f.data;
+            data.frameData = nullptr;
+            frameLineQueue.push(data);
+            recordedVideoFrames++;
+        } else {
+            droppedVideoFrames++;
+        }
+        videoWriteStats.add(1, startTime);
+    }
+
+    // only call from the writer thread
+    void writeImuSample(const ImuSample &s) {
+        if (binarySensorLog) {
+            writeBinaryImuSample(s);
+            return;
+        }
+        switch (s.type) {
+            case ImuSample::Type::GYROSCOPE:
+                recorder->addGyroscope(s.t, s.val.x, s.val.y, s.val.z);
+                // the bias of an uncalibrated primary gyro is only available in batches
+                if (recordExtraSensors && s.dimensions == 6)
+                    writeExtraSensor("gyroscopeUncalibrated", s);
+                break;
+            case ImuSample::Type::ACCELEROMETER:
+                recorder->addAccelerometer(s.t, s.val.x, s.val.y, s.val.z);
+                if (recordExtraSensors && s.dimensions == 6)
+                    writeExtraSensor("accelerometerUncalibrated", s);
+                break;
+            case ImuSample::Type::GYROSCOPE_UNCALIBRATED:
+                writeExtraSensor("gyroscopeUncalibrated", s);
+                break;
+            case ImuSample::Type::ACCELEROMETER_UNCALIBRATED:
+                writeExtraSensor("accelerometerUncalibrated", s);
+                break;
+            case ImuSample::Type::MAGNETOMETER:
+                writeExtraSensor("magnetometer", s);
+                break;
+            case ImuSample::Type::MAGNETOMETER_UNCALIBRATED:
+                writeExtraSensor("magnetometerUncalibrated", s);
+                break;
+            case ImuSample::Type::PRESSURE:
+                writeExtraSensor("pressure", s);
+                break;
+            case ImuSample::Type::GYROSCOPE_CALIBRATED:
+                writeExtraSensor("gyroscopeCalibrated", s);
+                break;
+            case ImuSample::Type::ACCELEROMETER_CALIBRATED:
+                writeExtraSensor("accelerometerCalibrated", s);
+                break;
+        }
+    }
+
+    // same records as the JSONL in writeImuSample
+    void writeBinaryImuSample(const ImuSample &s) {
+        typedef BinarySensorLog::Channel Channel;
+        const float values[6] = {
+            float(s.val.x), float(s.val.y), float(s.val.z),
+            float(s.bias.x), float(s.bias.y), float(s.bias.z)
+        };
+        const int n = s.dimensions;
+        switch (s.type) {
+            case ImuSample::Type::GYROSCOPE:
+                binarySensorLog->add(Channel::GYROSCOPE, s.t, values, 3);
+                if (recordExtraSensors && n == 6)
+                    binarySensorLog->add(Channel::GYROSCOPE_UNCALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::ACCELEROMETER:
+                binarySensorLog->add(Channel::ACCELEROMETER, s.t, values, 3);
+                if (recordExtraSensors && n == 6)
+                    binarySensorLog->add(Channel::ACCELEROMETER_UNCALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::GYROSCOPE_UNCALIBRATED:
+                binarySensorLog->add(Channel::GYROSCOPE_UNCALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::ACCELEROMETER_UNCALIBRATED:
+                binarySensorLog->add(Channel::ACCELEROMETER_UNCALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::MAGNETOMETER:
+                binarySensorLog->add(Channel::MAGNETOMETER, s.t, values, n);
+                break;
+            case ImuSample::Type::MAGNETOMETER_UNCALIBRATED:
+                binarySensorLog->add(Channel::MAGNETOMETER_UNCALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::PRESSURE:
+                binarySensorLog->add(Channel::PRESSURE, s.t, values, n);
+                break;
+            case ImuSample::Type::GYROSCOPE_CALIBRATED:
+                binarySensorLog->add(Channel::GYROSCOPE_CALIBRATED, s.t, values, n);
+                break;
+            case ImuSample::Type::ACCELEROMETER_CALIBRATED:
+                binarySensorLog->add(Channel::ACCELEROMETER_CALIBRATED, s.t, values, n);
+                break;
+        }
+    }
+
+    void writeExtraSensor(const char *type, const ImuSample &s) {
+        const double values[6] = { s.val.x, s.val.y, s.val.z, s.bias.x, s.bias.y, s.bias.z };
+        const int count = s.dimensions == 1 || s.dimensions == 6 ? s.dimensions : 3;
+        emitter.writeSensor(*recorder, s.t, type, values, count);
+    }
+
+    void writeSynchronizedImu(const SynchronizedImu &s) {
+        if (binarySensorLog) {
+            const float values[6] = {
+                float(s.gyro.x), float(s.gyro.y), float(s.gyro.z),
+                float(s.acc.x), float(s.acc.y), float(s.acc.z)
+            };
+            binarySensorLog->add(BinarySensorLog::Channel::IMU, s.t, values, 6);
+            return;
+        }
+        const double values[6] = { s.gyro.x, s.gyro.y, s.gyro.z, s.acc.x, s.acc.y, s.acc.z };
+        emitter.writeSensor(*recorder, s.t, "imu", values, 6);
+    }
+
+    void writeFrameMetadata(const FrameMetadataRecord &r) {
+        emitter.writeFrameMetadata(*recorder, r.t, r.metadata);
+    }
+
+    void addImu(double t, const recorder::Vector3d &gyro, const recorder::Vector3d &acc) final {
+        if (recordSensors && recordSynchronizedImu)
+            synchronizedImuQueue.push(SynchronizedImu { t, gyro, acc });
     }
 
     void addFrame(double t, const cv::Mat &grayFrame, cv::Mat *colorFrame,
-                            const CameraIntrinsics &cam,
+                            const CameraIntrinsics &grayCam,
                             cv::Mat &outputColorFrame) final {
+        if (grayCam.metadata.frameNumber >= 0)
+            frameMetadataQueue.push(FrameMetadataRecord { t, grayCam.metadata });
         if (recordCamera) {
             assert(colorFrame != nullptr);
+            // the video is recorded at full resolution even if the gray input is downscaled
+            const CameraIntrinsics &cam = colorFrameIntrinsics();
             // TODO: render GPU texture directly
-            auto frameData  = recorder::FrameData {
-                    .t = t,
-                    .cameraInd = cam.cameraIndex,
-                    .focalLengthX = cam.focalLengthX,
-                    .focalLengthY = cam.focalLengthY,
-                    .px = cam.principalPointX,
-                    .py = cam.principalPointY,
-                    .frameData = nullptr
-            };
-            recorderThread->enqueue([this, frameData, colorFrame]() {
-                auto f = frameData;
-                f.frameData = colorFrame;
-                recorder->addFrame(f);
-            });
+            lastFrameTime = t;
+            int slot;
+            if (queuePolicy == QueuePolicy::DEGRADE && (videoFrameCounter++ % videoFrameStride) != 0) {
+                skippedVideoFrames++;
+            } else if (acquireFrameSlot(slot)) {
+                assert(colorFrame->rows == framePool[slot].rows && colorFrame->cols == framePool[slot].cols);
+                colorFrame->copyTo(framePool[slot]);
+                auto frameData  = recorder::FrameData {
+                        .t = t,
+                        .cameraInd = cam.cameraIndex,
+                        .focalLengthX = cam.focalLengthX,
+                        .focalLengthY = cam.focalLengthY,
+                        .px = cam.principalPointX,
+                        .py = cam.principalPointY,
+                        .frameData = &framePool[slot]
+                };
+                // cannot fail, there are fewer buffers than queue slots
+                frameQueue.push(PooledFrame { frameData, slot });
+                if (queuePolicy == QueuePolicy::DEGRADE) adaptVideoFrameStride(false);
+            } else {
+                // the video thread is behind, all buffers are waiting for encoding
+                droppedVideoFrames++;
+                if (queuePolicy == QueuePolicy::DEGRADE) adaptVideoFrameStride(true);
+            }
 
             if (visualizationEnabled) {
                 outputColorFrame = *colorFrame;
@@ -72,23 +519,167 @@ struct RecordingModule : public CpuAlgorithmModule {
         }
     }
 
-    void addGps(double t, const AlgorithmModule::Gps &gps) final {
-        recorderThread->enqueue([this, t, gps]() {
-            recorder->addGps(t, gps.latitude, gps.longitude, gps.accuracy, gps.altitude);
+    /**
+     * Waits for a free buffer with the "block" policy, only call from addFrame.
+     * The sensor methods never take the locks held by the frame thread here
+     */
+    bool acquireFrameSlot(int &slot) {
+        if (freeFrameSlots.pop(slot)) return true;
+        if (queuePolicy != QueuePolicy::BLOCK) return false;
+        blockedVideoFrames++;
+        frameSlotWakeup.wait([this]() { return !freeFrameSlots.empty(); });
+        freeFrameSlots.pop(slot);
+        return true;
+    }
+
+    /**
+     * Halve the recorded FPS when a frame is dropped or the last free buffer
+     * was taken, and double it again after DEGRADE_RECOVERY_FRAMES frames with at
+     * least half of the buffers free. Only call from addFrame
+     */
+    void adaptVideoFrameStride(bool dropped) {
+        const std::size_t freeSlots = freeFrameSlots.size();
+        int stride = videoFrameStride;
+        if (dropped || freeSlots == 0) {
+            framesWithoutPressure = 0;
+            if (stride < MAX_VIDEO_FRAME_STRIDE) stride *= 2;
+        } else if (2 * freeSlots >= framePool.size()) {
+            if (++framesWithoutPressure >= DEGRADE_RECOVERY_FRAMES && stride > 1) {
+                framesWithoutPressure = 0;
+                stride /= 2;
+            }
+        } else {
+            framesWithoutPressure = 0;
+        }
+        if (stride != videoFrameStride) {
+            log_debug("recording every %d. camera frame", stride);
+            videoFrameStride = stride;
+        }
+    }
+
+    /**
+     * Adds the queue policy and the drop counts of all streams to the info.json
+     * written at the start of the session, after the writer threads have stopped
+     */
+    void writeQueueSummary() {
+        if (infoFileName.empty()) return;
+        json info = json::object();
+        {
+            std::ifstream input(infoFileName);
+            if (input) {
+                info = json::parse(input, nullptr, false);
+                if (!info.is_object()) {
+                    log_warn("could not parse %s, overwriting", infoFileName.c_str());
+                    info = json::object();
+                }
+            }
+        }
+        json queues = {
+            { "imu", queueSummary(imuQueue) },
+            { "gps", queueSummary(gpsQueue) },
+            { "json", queueSummary(jsonQueue) },
+            { "events", queueSummary(eventQueue) },
+            { "frameMetadata", queueSummary(frameMetadataQueue) }
+        };
+        if (recordSynchronizedImu) queues["synchronizedImu"] = queueSummary(synchronizedImuQueue);
+        json summary = {
+            { "policy", queuePolicyName },
+            { "queues", queues }
+        };
+        if (recordCamera) {
+            summary["video"] = {
+                { "recorded", recordedVideoFrames },
+                { "dropped", droppedVideoFrames.load() },
+                { "skipped", skippedVideoFrames.load() },
+                { "blocked", blockedVideoFrames.load() },
+                { "finalFrameStride", videoFrameStride.load() }
+            };
+        }
+        info["recordingQueues"] = summary;
+        std::ofstream output(infoFileName);
+        output << info.dump() << std::endl;
+    }
+
+    // written at the end of the recording, after the writer threads have stopped
+    void writeRecordingStats() {
+        recorder->addJson({
+            { "time", lastFrameTime },
+            { "recordingStats", {
+                { "videoFrames", recordedVideoFrames },
+                { "droppedVideoFrames", droppedVideoFrames.load() },
+                { "framePoolSize", int(framePool.size()) },
+                { "encoderThreads", encoderThreads },
+                { "stages", {
+                    { "sensors", sensorStats.toJson() },
+                    { "encode", encodeStats.toJson() },
+                    { "write", videoWriteStats.toJson() }
+                }}
+            }}
         });
     }
 
+    void addGps(double t, const AlgorithmModule::Gps &gps) final {
+        gpsQueue.push(GpsRecord { t, gps });
+    }
+
     void addJsonData(const json &json) final {
-        recorderThread->enqueue([this, json]() {
-            recorder->addJson(json);
-        });
+        jsonQueue.push(json);
+    }
+
+    void addEvent(const Event &event) final {
+        eventQueue.push(event);
+    }
+
+    void addFrameMetadata(double t, const FrameMetadata &metadata) final {
+        frameMetadataQueue.push(FrameMetadataRecord { t, metadata });
+    }
+
+    // current depth / capacity, then the maximum depth
+    template <class T> static void appendQueueStatus(std::ostringstream &oss, const char *name, const WriterQueue<T> &q) {
+        oss << " " << name << " " << q.size() << "/" << q.capacity() << " (max " << q.highWaterMark();
+        if (q.dropped() > 0) oss << ", dropped " << q.dropped();
+        if (q.overflows() > 0) oss << ", overflowed " << q.overflows();
+        oss << ")";
+    }
+
+    std::string queueStatus() const {
+        std::ostringstream oss;
+        oss << "queues (" << queuePolicyName << "):";
+        appendQueueStatus(oss, "imu", imuQueue);
+        if (recordSynchronizedImu) appendQueueStatus(oss, "sync imu", synchronizedImuQueue);
+        appendQueueStatus(oss, "gps", gpsQueue);
+        appendQueueStatus(oss, "json", jsonQueue);
+        appendQueueStatus(oss, "events", eventQueue);
+        if (recordCamera) {
+            appendQueueStatus(oss, "frames", frameQueue);
+            oss << " free buffers " << freeFrameSlots.size() << "/" << framePool.size();
+            if (droppedVideoFrames > 0) oss << " (dropped " << droppedVideoFrames.load() << ")";
+            if (blockedVideoFrames > 0) oss << " (waited for buffer " << blockedVideoFrames.load() << ")";
+            if (queuePolicy == QueuePolicy::DEGRADE) {
+                oss << " recording 1/" << videoFrameStride.load() << " frames";
+                if (skippedVideoFrames > 0) oss << " (skipped " << skippedVideoFrames.load() << ")";
+            }
+        }
+        appendQueueStatus(oss, "frame metadata", frameMetadataQueue);
+        return oss.str();
+    }
+
+    std::string throughputStatus() const {
+        std::ostringstream oss;
+        oss.precision(0);
+        oss << std::fixed << "max rate: sensors " << sensorStats.maxRate() << "/s";
+        if (recordCamera) {
+            oss << ", encode " << encodeStats.maxRate() << " fps (" << encoderThreads << " threads)"
+                << ", write " << videoWriteStats.maxRate() << " fps";
+        }
+        return oss.str();
     }
 
     std::string status() const final {
-        return "recording...";
+        return "recording...\n" + queueStatus() + "\n" + throughputStatus();
     }
 };
 
 std::unique_ptr<AlgorithmModule> buildRecorder(int textureId, int w, int h, const AlgorithmModule::json &settings) {
-    return std::make_unique<RecordingModule>(textureId, w, h, settings);
+    return CpuAlgorithmModule::makePipelineOwner(std::make_unique<RecordingModule>(textureId, w, h, settings).release());
 }
\ No newline at end of file
@@ -7,9 +7,33 @@
 
 #include <string>
 
+#include "capture_metadata.hpp"
 #include "logging.hpp"
 
 namespace {
+int64_t getInt64Entry(const ACameraMetadata *metadata, uint32_t tag, int64_t defaultValue) {
+    ACameraMetadata_const_entry entry;
+    if (ACameraMetadata_getConstEntry(metadata, tag, &entry) != ACAMERA_OK || entry.count < 1)
+        return defaultValue;
+    return entry.data.i64[0];
+}
+
+// context of the capture callbacks
+struct CaptureResultSink {
+    std::shared_ptr<CaptureMetadataRing> ring;
+    int64_t completedCaptures = 0;
+
+    void add(const ACameraMetadata *result) {
+        CaptureMetadataRing::Record record;
+        record.timeNanos = getInt64Entry(result, ACAMERA_SENSOR_TIMESTAMP, 0);
+        record.exposureTimeNanos = getInt64Entry(result, ACAMERA_SENSOR_EXPOSURE_TIME, 0);
+        record.rollingShutterSkewNanos = getInt64Entry(result, ACAMERA_SENSOR_ROLLING_SHUTTER_SKEW, 0);
+        record.frameDurationNanos = getInt64Entry(result, ACAMERA_SENSOR_FRAME_DURATION, 0);
+        record.frameNumber = completedCaptures++;
+        ring->push(record);
+    }
+};
+
 namespace camCallbacks {
     // device
     void onDisconnected(void* context, ACameraDevice* device)
@@ -61,8 +85,9 @@ namespace camCallbacks {
             void* context, ACameraCaptureSession* session,
             ACaptureRequest* request, const ACameraMetadata* result)
     {
-        // called on each frame
-        // log_debug("Capture completed");
+        // called on each frame, always in the same camera thread
+        auto *sink = static_cast<CaptureResultSink*>(context);
+        if (sink->ring) sink->add(result);
     }
 }
 
@@ -88,10 +113,15 @@ private:
     ANativeWindow* textureWindow = nullptr;
     ACameraCaptureSession* textureSession = nullptr;
     ACaptureSessionOutput* textureOutput = nullptr;
+    // optional output read on the CPU
+    ANativeWindow* cpuWindow = nullptr;
+    ACameraOutputTarget* cpuTarget = nullptr;
+    ACaptureSessionOutput* cpuOutput = nullptr;
     ACaptureSessionOutput* output = nullptr;
     ACaptureSessionOutputContainer* outputs = nullptr;
     const std::string cameraId;
     int targetFps;
+    CaptureResultSink captureResults;
 
     ACameraDevice_stateCallbacks cameraDeviceCallbacks = {
             .context = nullptr,
@@ -119,7 +149,11 @@ private:
     };
 
 public:
-    explicit NativeCameraSessionImplementation(const std::string &cameraId, int targetFps) : cameraId(cameraId), targetFps(targetFps) {
+    NativeCameraSessionImplementation(const std::string &cameraId, int targetFps, std::shared_ptr<CaptureMetadataRing> metadata) :
+        cameraId(cameraId), targetFps(targetFps)
+    {
+        captureResults.ring = std::move(metadata);
+        captureCallbacks.context = &captureResults;
         cameraManager = ACameraManager_create();
         ACameraManager_openCamera(cameraManager, cameraId.c_str(), &cameraDeviceCallbacks, &cameraDevice);
     }
@@ -132,6 +166,11 @@ public:
             ACameraCaptureSession_close(textureSession);
             ACaptureSessionOutputContainer_free(outputs);
             ACaptureSessionOutput_free(output);
+            if (cpuWindow) {
+                ACaptureSessionOutput_free(cpuOutput);
+                ACameraOutputTarget_free(cpuTarget);
+                ANativeWindow_release(cpuWindow);
+            }
 
             ACameraDevice_close(cameraDevice);
             ACameraManager_delete(cameraManager);
@@ -143,7 +182,7 @@ public:
         }
     }
 
-    void initCameraSurface(JNIEnv* env, jobject surface) final
+    void initCameraSurface(JNIEnv* env, jobject surface, ANativeWindow *cpuTargetWindow) final
     {
         // Prepare surface
         textureWindow = ANativeWindow_fromSurface(env, surface);
@@ -222,6 +261,16 @@ public:
         ACameraOutputTarget_create(textureWindow, &textureTarget);
         ACaptureRequest_addTarget(request, textureTarget);
 
+        if (cpuTargetWindow) {
+            // the same request fills both outputs, so the frames have equal timestamps
+            cpuWindow = cpuTargetWindow;
+            ANativeWindow_acquire(cpuWindow);
+            ACaptureSessionOutput_create(cpuWindow, &cpuOutput);
+            ACaptureSessionOutputContainer_add(outputs, cpuOutput);
+            ACameraOutputTarget_create(cpuWindow, &cpuTarget);
+            ACaptureRequest_addTarget(request, cpuTarget);
+        }
+
         // Create the session
         ACameraDevice_createCaptureSession(cameraDevice, outputs, &sessionStateCallbacks, &textureSession);
 
@@ -231,7 +280,8 @@ public:
 };
 }
 
-std::unique_ptr<NativeCameraSession> NativeCameraSession::create(std::string cameraId, int targetFps) {
-    return std::unique_ptr<NativeCameraSession>(new NativeCameraSessionImplementation(cameraId, targetFps));
+std::unique_ptr<NativeCameraSession> NativeCameraSession::create(std::string cameraId, int targetFps,
+        std::shared_ptr<CaptureMetadataRing> metadata) {
+    return std::unique_ptr<NativeCameraSession>(new NativeCameraSessionImplementation(cameraId, targetFps, std::move(metadata)));
 }
 NativeCameraSession::~NativeCameraSession() = default;
\ No newline at end of file
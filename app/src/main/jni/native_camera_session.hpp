@@ -3,11 +3,33 @@
 
 #include <jni.h>
 #include <memory>
+#include <string>
+
+struct ANativeWindow;
+struct FrameSource;
+class CaptureMetadataRing;
 
 struct NativeCameraSession {
-    static std::unique_ptr<NativeCameraSession> create(std::string cameraId, int targetFps);
+    /**
+     * @param metadata if given, the capture results of each frame are stored here
+     */
+    static std::unique_ptr<NativeCameraSession> create(std::string cameraId, int targetFps,
+            std::shared_ptr<CaptureMetadataRing> metadata = nullptr);
     virtual ~NativeCameraSession();
-    virtual void initCameraSurface(JNIEnv* env, jobject surface) = 0;
+    /**
+     * @param surface the SurfaceTexture surface
+     * @param cpuTarget optional second output, e.g., FrameSource::captureWindow()
+     */
+    virtual void initCameraSurface(JNIEnv* env, jobject surface, ANativeWindow *cpuTarget = nullptr) = 0;
 };
 
+/**
+ * The CPU frame source of the current camera session, set in camera_worker.cpp.
+ * nullptr if the session only outputs to the SurfaceTexture
+ */
+std::shared_ptr<FrameSource> currentCameraFrameSource();
+
+/** Capture results of the current camera session, set in camera_worker.cpp. Never nullptr */
+std::shared_ptr<const CaptureMetadataRing> currentCaptureMetadata();
+
 #endif
\ No newline at end of file
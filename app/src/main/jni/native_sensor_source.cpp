@@ -0,0 +1,129 @@
+#include "sensor_source.hpp"
+
+#include <android/looper.h>
+#include <android/sensor.h>
+
+#include <atomic>
+#include <cassert>
+#include <thread>
+
+#include "logging.hpp"
+
+namespace {
+// not defined in all NDK versions
+constexpr int SENSOR_TYPE_GYROSCOPE_UNCALIBRATED = 16;
+constexpr int SENSOR_TYPE_ACCELEROMETER_UNCALIBRATED = 35;
+
+constexpr int LOOPER_IDENT = 1;
+constexpr int POLL_TIMEOUT_MILLIS = 100;
+constexpr int EVENT_BUFFER_SIZE = 16;
+
+class NdkSensorSource : public SensorSource {
+private:
+    ASensorManager *sensorManager;
+    const ASensor *gyroSensor;
+    const ASensor *accSensor;
+    const int samplingPeriodUs;
+
+    std::thread thread;
+    std::atomic<bool> shouldQuit;
+    std::atomic<ALooper*> looper;
+
+    void enable(ASensorEventQueue *queue, const ASensor *sensor) {
+        ASensorEventQueue_enableSensor(queue, sensor);
+        const int period = samplingPeriodUs > 0 ? samplingPeriodUs : ASensor_getMinDelay(sensor);
+        ASensorEventQueue_setEventRate(queue, sensor, period);
+    }
+
+    void run(Callback callback) {
+        ALooper *l = ALooper_prepare(0);
+        ASensorEventQueue *queue = ASensorManager_createEventQueue(sensorManager, l, LOOPER_IDENT, nullptr, nullptr);
+        enable(queue, gyroSensor);
+        enable(queue, accSensor);
+        looper = l;
+        log_debug("native sensor thread started");
+
+        const int gyroType = ASensor_getType(gyroSensor);
+        const int accType = ASensor_getType(accSensor);
+
+        ASensorEvent events[EVENT_BUFFER_SIZE];
+        while (!shouldQuit) {
+            const int ident = ALooper_pollAll(POLL_TIMEOUT_MILLIS, nullptr, nullptr, nullptr);
+            if (ident != LOOPER_IDENT) continue;
+            ssize_t n;
+            while (!shouldQuit && (n = ASensorEventQueue_getEvents(queue, events, EVENT_BUFFER_SIZE)) > 0) {
+                for (ssize_t i = 0; i < n; ++i) {
+                    const ASensorEvent &e = events[i];
+                    Event event;
+                    if (e.type == gyroType) event.type = Type::GYROSCOPE;
+                    else if (e.type == accType) event.type = Type::ACCELEROMETER;
+                    else continue;
+                    event.timeNanos = e.timestamp;
+                    // also valid for the uncalibrated variants, whose bias is stored in data[3..5]
+                    event.x = e.data[0];
+                    event.y = e.data[1];
+                    event.z = e.data[2];
+                    callback(event);
+                }
+            }
+        }
+
+        looper = nullptr;
+        ASensorEventQueue_disableSensor(queue, gyroSensor);
+        ASensorEventQueue_disableSensor(queue, accSensor);
+        ASensorManager_destroyEventQueue(sensorManager, queue);
+        log_debug("native sensor thread stopped");
+    }
+
+public:
+    NdkSensorSource(ASensorManager *mgr, const ASensor *gyro, const ASensor *acc, int samplingPeriodUs) :
+        sensorManager(mgr),
+        gyroSensor(gyro),
+        accSensor(acc),
+        samplingPeriodUs(samplingPeriodUs),
+        shouldQuit(false),
+        looper(nullptr)
+    {}
+
+    ~NdkSensorSource() final {
+        stop();
+    }
+
+    void start(const Callback &callback) final {
+        assert(!thread.joinable());
+        shouldQuit = false;
+        thread = std::thread([this, callback]() { run(callback); });
+    }
+
+    void stop() final {
+        if (!thread.joinable()) return;
+        shouldQuit = true;
+        ALooper *l = looper;
+        if (l) ALooper_wake(l);
+        thread.join();
+    }
+};
+}
+
+std::unique_ptr<SensorSource> SensorSource::createNdk(const Settings &settings) {
+    // ASensorManager_getInstance is deprecated in API level 26, but
+    // ASensorManager_getInstanceForPackage is not available before that
+#pragma clang diagnostic push
+#pragma clang diagnostic ignored "-Wdeprecated-declarations"
+    ASensorManager *mgr = ASensorManager_getInstance();
+#pragma clang diagnostic pop
+    if (!mgr) return nullptr;
+
+    const ASensor *gyro = ASensorManager_getDefaultSensor(mgr, settings.useCalibGyro
+            ? ASENSOR_TYPE_GYROSCOPE
+            : SENSOR_TYPE_GYROSCOPE_UNCALIBRATED);
+    const ASensor *acc = ASensorManager_getDefaultSensor(mgr, settings.useCalibAcc
+            ? ASENSOR_TYPE_ACCELEROMETER
+            : SENSOR_TYPE_ACCELEROMETER_UNCALIBRATED);
+    if (!gyro || !acc) {
+        log_warn("native gyroscope or accelerometer not available");
+        return nullptr;
+    }
+    log_info("native sensors: %s, %s", ASensor_getName(gyro), ASensor_getName(acc));
+    return std::unique_ptr<SensorSource>(new NdkSensorSource(mgr, gyro, acc, settings.samplingPeriodUs));
+}
@@ -0,0 +1,42 @@
+#ifndef NOTIFIER_HPP
+#define NOTIFIER_HPP
+
+#include <atomic>
+#include <condition_variable>
+#include <mutex>
+
+/**
+ * Wakes a thread that waits for work produced by other threads, e.g., a writer
+ * thread waiting for its queues. notify is cheap when nobody is waiting: it does
+ * not take the mutex, only a fence and an atomic read, so producers can call it
+ * after every push. A notify after the state read by the waiter's predicate has
+ * changed is never lost.
+ */
+class Notifier {
+public:
+    void notify() {
+        // pairs with the fence in wait: either the waiter sees the new state in
+        // its predicate, or this sees the waiter
+        std::atomic_thread_fence(std::memory_order_seq_cst);
+        if (waiters.load(std::memory_order_relaxed) == 0) return;
+        // a waiter that has not yet entered condition.wait holds the mutex
+        { std::lock_guard<std::mutex> lock(mutex); }
+        condition.notify_all();
+    }
+
+    /** Returns when ready() is true. ready must only read atomics */
+    template <class Predicate> void wait(Predicate ready) {
+        std::unique_lock<std::mutex> lock(mutex);
+        waiters.fetch_add(1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_seq_cst);
+        while (!ready()) condition.wait(lock);
+        waiters.fetch_sub(1, std::memory_order_relaxed);
+    }
+
+private:
+    std::mutex mutex;
+    std::condition_variable condition;
+    std::atomic<int> waiters { 0 };
+};
+
+#endif
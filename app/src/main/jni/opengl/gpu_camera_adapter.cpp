@@ -1,26 +1,336 @@
 #include "gpu_camera_adapter.hpp"
+#include "logging.hpp"
+#include <cassert>
+#include <cstring>
+#include <functional>
 #include <memory>
+#include <sstream>
 #include <string>
+#include <vector>
+#include <EGL/egl.h>
+#include <GLES3/gl3.h>
+#include <GLES2/gl2ext.h>
 #include <accelerated-arrays/standard_ops.hpp>
 #include <accelerated-arrays/opengl/image.hpp>
 #include <accelerated-arrays/opengl/operations.hpp>
 
 namespace {
+/**
+ * Reads an RGBA texture through a ring of pixel buffer objects. Each read()
+ * starts copying the texture into the next PBO and maps the oldest one, which
+ * the GPU has usually finished with by then.
+ * Must be created and used in the GL thread.
+ */
+class PboReader {
+public:
+    PboReader(int textureId, int width, int height, int nBuffers) :
+        width(width), height(height),
+        bytes(std::size_t(width) * height * 4),
+        slots(nBuffers)
+    {
+        assert(nBuffers >= 2);
+        glGenFramebuffers(1, &fbo);
+        glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, textureId, 0);
+        assert(glCheckFramebufferStatus(GL_FRAMEBUFFER) == GL_FRAMEBUFFER_COMPLETE);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        for (auto &slot : slots) {
+            glGenBuffers(1, &slot.pbo);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+            glBufferData(GL_PIXEL_PACK_BUFFER, bytes, nullptr, GL_STREAM_READ);
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    ~PboReader() {
+        for (auto &slot : slots) {
+            if (slot.fence) glDeleteSync(slot.fence);
+            glDeleteBuffers(1, &slot.pbo);
+        }
+        glDeleteFramebuffers(1, &fbo);
+    }
+
+    /**
+     * Start reading the current texture contents and copy the frame started
+     * latency() calls ago to pixels. Returns false if there was no such frame
+     */
+    bool read(uint8_t *pixels) {
+        Slot &slot = slots[next];
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, fbo);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, nullptr);
+        slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+
+        next = (next + 1) % slots.size();
+        Slot &oldest = slots[next];
+        bool ok = false;
+        if (oldest.fence) {
+            // should already be signaled unless the GPU is more than latency() frames behind
+            constexpr GLuint64 TIMEOUT_NANOS = 100 * 1000 * 1000;
+            const GLenum waitResult = glClientWaitSync(oldest.fence, GL_SYNC_FLUSH_COMMANDS_BIT, TIMEOUT_NANOS);
+            glDeleteSync(oldest.fence);
+            oldest.fence = nullptr;
+            if (waitResult == GL_TIMEOUT_EXPIRED || waitResult == GL_WAIT_FAILED) {
+                log_warn("PBO readback fence wait failed (0x%x)", waitResult);
+            } else {
+                glBindBuffer(GL_PIXEL_PACK_BUFFER, oldest.pbo);
+                const void *mapped = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, bytes, GL_MAP_READ_BIT);
+                if (mapped) {
+                    std::memcpy(pixels, mapped, bytes);
+                    ok = true;
+                }
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            }
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        return ok;
+    }
+
+    int latency() const { return int(slots.size()) - 1; }
+    std::size_t size() const { return bytes; }
+
+private:
+    struct Slot {
+        GLuint pbo = 0;
+        GLsync fence = nullptr;
+    };
+
+    const int width, height;
+    const std::size_t bytes;
+    GLuint fbo = 0;
+    std::vector<Slot> slots;
+    std::size_t next = 0;
+};
+
+/**
+ * Measures the GPU time of the commands between begin() and end() with
+ * EXT_disjoint_timer_query. The results are collected from a ring of queries
+ * a few frames later, so the GL thread never waits for them, and their mean
+ * is logged every LOG_INTERVAL frames. Does nothing if the extension is not
+ * available. Must be created and used in the GL thread.
+ */
+class GpuTimer {
+public:
+    explicit GpuTimer(std::string name) : name(std::move(name)) {
+        const char *extensions = reinterpret_cast<const char*>(glGetString(GL_EXTENSIONS));
+        if (!extensions || !std::strstr(extensions, "GL_EXT_disjoint_timer_query")) return;
+        getQueryObjectui64v = reinterpret_cast<PFNGLGETQUERYOBJECTUI64VEXTPROC>(
+                eglGetProcAddress("glGetQueryObjectui64vEXT"));
+        if (!getQueryObjectui64v) return;
+        glGenQueries(QUERIES, queries);
+        enabled = true;
+    }
+
+    ~GpuTimer() {
+        if (enabled) glDeleteQueries(QUERIES, queries);
+    }
+
+    void begin() {
+        if (!enabled) return;
+        collect();
+        // all queries still in flight, this frame is not measured
+        if (pending == QUERIES) return;
+        glBeginQuery(GL_TIME_ELAPSED_EXT, queries[(first + pending) % QUERIES]);
+        active = true;
+    }
+
+    void end() {
+        if (!active) return;
+        glEndQuery(GL_TIME_ELAPSED_EXT);
+        pending++;
+        active = false;
+    }
+
+private:
+    static constexpr int QUERIES = 4;
+    static constexpr int LOG_INTERVAL = 100;
+
+    void collect() {
+        // reading the flag clears it. If set, the results in flight are unreliable
+        GLint disjoint = 0;
+        glGetIntegerv(GL_GPU_DISJOINT_EXT, &disjoint);
+        while (pending > 0) {
+            const GLuint query = queries[first];
+            GLuint available = 0;
+            glGetQueryObjectuiv(query, GL_QUERY_RESULT_AVAILABLE, &available);
+            if (!available) break;
+            GLuint64 nanos = 0;
+            getQueryObjectui64v(query, GL_QUERY_RESULT, &nanos);
+            if (!disjoint) {
+                totalNanos += nanos;
+                measured++;
+            }
+            first = (first + 1) % QUERIES;
+            pending--;
+        }
+        if (measured >= LOG_INTERVAL) {
+            log_info("GPU time %s: %.3f ms / frame", name.c_str(), totalNanos * 1e-6 / measured);
+            totalNanos = 0;
+            measured = 0;
+        }
+    }
+
+    const std::string name;
+    bool enabled = false, active = false;
+    PFNGLGETQUERYOBJECTUI64VEXTPROC getQueryObjectui64v = nullptr;
+    GLuint queries[QUERIES] = {};
+    int first = 0, pending = 0;
+    GLuint64 totalNanos = 0;
+    int measured = 0;
+};
+
+const char *typeName(GpuCameraAdapter::TextureAdapter::Type type) {
+    typedef GpuCameraAdapter::TextureAdapter::Type Type;
+    switch (type) {
+        case Type::RGBA: return "RGBA";
+        case Type::BGRA: return "BGRA";
+        case Type::GRAY: return "GRAY";
+        case Type::GRAY_COMPRESSED: return "GRAY_COMPRESSED";
+        case Type::GRAY_AND_BGRA: return "GRAY_AND_BGRA";
+    }
+    return "?";
+}
+
+// Packs groups of 4 consecutive gray pixels into the RGBA channels of one texel
+const char *PACK_GRAY_SHADER = R"(
+    void main() {
+        ivec2 coord = ivec2(v_texCoord * vec2(u_outSize));
+        int x = coord.x * 4;
+        outValue = vec4(
+            texelFetch(u_texture, ivec2(x, coord.y), 0).r,
+            texelFetch(u_texture, ivec2(x + 1, coord.y), 0).r,
+            texelFetch(u_texture, ivec2(x + 2, coord.y), 0).r,
+            texelFetch(u_texture, ivec2(x + 3, coord.y), 0).r);
+    }
+    )";
+
+// Copies a BGRA image to the first rows and packs its gray version to the rest, see
+// TextureAdapter::Type::GRAY_AND_BGRA
+std::string combinedGrayBgraShader(int width, int height) {
+    std::ostringstream oss;
+    oss << "const int W = " << width << ";\n"
+        << "const int H = " << height << ";\n"
+        << R"(
+        // coefficients from OpenCV, in BGR order
+        const vec3 GRAY = vec3(0.114, 0.587, 0.299);
+        void main() {
+            ivec2 coord = ivec2(v_texCoord * vec2(u_outSize));
+            if (coord.y < H) {
+                outValue = texelFetch(u_texture, coord, 0);
+            } else {
+                int offset = ((coord.y - H) * W + coord.x) * 4;
+                ivec2 p = ivec2(offset % W, offset / W);
+                outValue = vec4(
+                    dot(texelFetch(u_texture, p, 0).rgb, GRAY),
+                    dot(texelFetch(u_texture, p + ivec2(1, 0), 0).rgb, GRAY),
+                    dot(texelFetch(u_texture, p + ivec2(2, 0), 0).rgb, GRAY),
+                    dot(texelFetch(u_texture, p + ivec2(3, 0), 0).rgb, GRAY));
+            }
+        }
+        )";
+    return oss.str();
+}
+
+// 2x2 box filter, halves the size of a gray image
+const char *DOWNSAMPLE_SHADER = R"(
+    void main() {
+        ivec2 coord = ivec2(v_texCoord * vec2(u_outSize)) * 2;
+        outValue = 0.25 * (
+            texelFetch(u_texture, coord, 0).r +
+            texelFetch(u_texture, coord + ivec2(1, 0), 0).r +
+            texelFetch(u_texture, coord + ivec2(0, 1), 0).r +
+            texelFetch(u_texture, coord + ivec2(1, 1), 0).r);
+    }
+    )";
+
+/**
+ * Averages boxes of factorX x factorY pixels with one tap per pixel, which
+ * reduces the size by integer factors without skipping any pixels. Bilinear
+ * sampling only averages 2x2 pixels, so it aliases when reducing more than 2x.
+ * Output pixel (x, y) covers the box starting at (x * factorX, y * factorY)
+ */
+std::string boxFilterShader(int factorX, int factorY, bool gray) {
+    std::ostringstream oss;
+    oss << "const int FX = " << factorX << ";\n"
+        << "const int FY = " << factorY << ";\n"
+        << "#define VALUE " << (gray ? "float" : "vec4") << "\n"
+        << "#define TAP(p) texelFetch(u_texture, p, 0)" << (gray ? ".r" : "") << "\n"
+        << R"(
+        void main() {
+            ivec2 base = ivec2(v_texCoord * vec2(u_outSize)) * ivec2(FX, FY);
+            VALUE sum = VALUE(0);
+            for (int y = 0; y < FY; ++y) {
+                for (int x = 0; x < FX; ++x) sum += TAP(base + ivec2(x, y));
+            }
+            outValue = sum / float(FX * FY);
+        }
+        )";
+    return oss.str();
+}
+
+/**
+ * Packs pyramid levels to consecutive bytes of an RGBA texture whose rows are
+ * rowBytes long, in one pass that writes every texel once. Level i is the input
+ * u_texture<i + 1> (u_texture if there is only one) and its bytes start at
+ * begins[i]. The level widths are divisible by 4, so no texel spans two levels.
+ * Texels after the last level are set to zero
+ */
+std::string packPyramidShader(int rowBytes, const std::vector<int> &begins, const std::vector<int> &widths,
+        const std::vector<int> &heights) {
+    std::ostringstream oss;
+    oss << "const int ROW_TEXELS = " << (rowBytes / 4) << ";\n"
+        << R"(
+        void main() {
+            ivec2 coord = ivec2(v_texCoord * vec2(u_outSize));
+            int offset = (coord.y * ROW_TEXELS + coord.x) * 4;
+            )";
+    for (std::size_t i = 0; i < begins.size(); ++i) {
+        const std::string level = begins.size() == 1 ? "u_texture" : "u_texture" + std::to_string(i + 1);
+        oss << "if (offset < " << (begins[i] + widths[i] * heights[i]) << ") {\n"
+            << "    int i = offset - " << begins[i] << ";\n"
+            << "    ivec2 p = ivec2(i % " << widths[i] << ", i / " << widths[i] << ");\n"
+            << "    outValue = vec4(\n"
+            << "        texelFetch(" << level << ", p, 0).r,\n"
+            << "        texelFetch(" << level << ", p + ivec2(1, 0), 0).r,\n"
+            << "        texelFetch(" << level << ", p + ivec2(2, 0), 0).r,\n"
+            << "        texelFetch(" << level << ", p + ivec2(3, 0), 0).r);\n"
+            << "} else ";
+    }
+    oss << R"({
+                outValue = vec4(0);
+            }
+        }
+        )";
+    return oss.str();
+}
+
 struct GpuCameraAdapterImplementation : GpuCameraAdapter {
+    // size of the produced images, may be smaller than the camera texture
     const int width, height;
     const int textureId;
+    const bool scaled;
+    // box filter size when scaled, see boxFilterShader
+    const int factorX, factorY;
 
     std::unique_ptr<accelerated::Queue> processor;
     std::unique_ptr<accelerated::opengl::Image::Factory> imageFactory;
-    std::unique_ptr<accelerated::operations::StandardFactory> opsFactory;
+    std::unique_ptr<accelerated::opengl::operations::Factory> opsFactory;
     std::shared_ptr<accelerated::Image> cameraImage;
     std::shared_ptr<accelerated::Image> screen;
+    // for renderToScreen, created on the first call
+    std::shared_ptr<accelerated::Image> displayScreen;
+    accelerated::operations::Function displayFunction;
 
-    GpuCameraAdapterImplementation(int w, int h, int tid)
+    GpuCameraAdapterImplementation(int w, int h, int tid, int outW, int outH)
     :
-        width(w),
-        height(h),
-        textureId(tid)
+        width(outW),
+        height(outH),
+        textureId(tid),
+        scaled(outW != w || outH != h),
+        factorX(w / outW),
+        factorY(h / outH)
     {
         processor = accelerated::Processor::createQueue();
         imageFactory = accelerated::opengl::Image::createFactory(*processor);
@@ -33,6 +343,17 @@ struct GpuCameraAdapterImplementation : GpuCameraAdapter {
         GpuCameraAdapterImplementation &parent;
         accelerated::operations::Function function;
         std::shared_ptr<accelerated::Image> image;
+        // when scaled, function renders this camera-sized image and boxFunction reduces it to image
+        accelerated::operations::Function boxFunction;
+        std::shared_ptr<accelerated::Image> sourceImage;
+
+        // optional RGBA-packed version of image, read instead of it (GRAY_AND_BGRA and
+        // asynchronously read GRAY), and the asynchronous reader
+        accelerated::operations::Function packFunction;
+        std::shared_ptr<accelerated::Image> packedImage;
+        std::unique_ptr<PboReader> pboReader;
+        // the conversion passes, not the readback
+        std::unique_ptr<GpuTimer> timer;
 
         TextureWrapper(GpuCameraAdapterImplementation &parent, std::shared_ptr<accelerated::Image> img) :
                 TextureAdapter(img->width, img->height),
@@ -40,53 +361,235 @@ struct GpuCameraAdapterImplementation : GpuCameraAdapter {
                 image(img)
         {}
 
-        void readPixels(uint8_t *pixels) final {
-            image->readRaw(pixels);
+        void enableAsyncReadback(int nBuffers) {
+            // PBO reads are always RGBA, single-channel images are first packed on the GPU
+            accelerated::Image &readable = packedImage ? *packedImage : *image;
+            const int tex = dynamic_cast<accelerated::opengl::Image&>(readable).getTextureId();
+            pboReader.reset(new PboReader(tex, readable.width, readable.height, nBuffers));
+        }
+
+        bool readPixels(uint8_t *pixels) final {
+            if (pboReader) return pboReader->read(pixels);
+            (packedImage ? *packedImage : *image).readRaw(pixels);
             // the preferred way to do synchronous operations in the GL thread
             parent.processor->processAll();
+            return true;
         }
 
         std::size_t readPixelsSize() const final {
-            return image->size();
+            return packedImage ? packedImage->size() : image->size();
+        }
+
+        int readbackLatency() const final {
+            return pboReader ? pboReader->latency() : 0;
         }
 
         void render(bool bindFrameBuffer) final {
+            const bool timed = function && bindFrameBuffer && timer;
             if (function) {
                 if (bindFrameBuffer) {
-                    accelerated::operations::callUnary(function, *parent.cameraImage, *image);
+                    if (boxFunction) {
+                        accelerated::operations::callUnary(function, *parent.cameraImage, *sourceImage);
+                        accelerated::operations::callUnary(boxFunction, *sourceImage, *image);
+                    } else {
+                        accelerated::operations::callUnary(function, *parent.cameraImage, *image);
+                    }
+                    if (packFunction) accelerated::operations::callUnary(packFunction, *image, *packedImage);
                 } else {
                     accelerated::operations::callUnary(function, *parent.cameraImage, *parent.screen);
                 }
             }
+            // the queued operations issue their GL commands here
+            if (timed) timer->begin();
+            parent.processor->processAll();
+            if (timed) timer->end();
+        }
+    };
+
+    struct PyramidWrapper : TextureAdapter {
+        GpuCameraAdapterImplementation &parent;
+        accelerated::operations::Function grayFunction, boxFunction;
+        accelerated::operations::Function packFunction;
+        std::vector<accelerated::operations::Function> downsampleFunctions;
+        std::vector<std::shared_ptr<accelerated::Image>> levels;
+        // inputs of packFunction, the levels that are read
+        std::vector<accelerated::Image*> packedLevels;
+        std::shared_ptr<accelerated::Image> packed;
+        // camera-sized gray image when scaled, reduced to the first level by boxFunction
+        std::shared_ptr<accelerated::Image> sourceGray;
+        std::unique_ptr<PboReader> pboReader;
+        GpuTimer timer { "pyramid" };
+
+        PyramidWrapper(GpuCameraAdapterImplementation &parent, int packedTexelsPerRow, int packedRows) :
+                TextureAdapter(packedTexelsPerRow, packedRows),
+                parent(parent)
+        {}
+
+        bool readPixels(uint8_t *pixels) final {
+            if (pboReader) return pboReader->read(pixels);
+            packed->readRaw(pixels);
+            parent.processor->processAll();
+            return true;
+        }
+
+        std::size_t readPixelsSize() const final {
+            return packed->size();
+        }
+
+        int readbackLatency() const final {
+            return pboReader ? pboReader->latency() : 0;
+        }
+
+        void render(bool bindFrameBuffer) final {
+            (void)bindFrameBuffer; // always rendered to the frame buffers
+            if (boxFunction) {
+                accelerated::operations::callUnary(grayFunction, *parent.cameraImage, *sourceGray);
+                accelerated::operations::callUnary(boxFunction, *sourceGray, *levels.at(0));
+            } else {
+                accelerated::operations::callUnary(grayFunction, *parent.cameraImage, *levels.at(0));
+            }
+            for (std::size_t i = 0; i < downsampleFunctions.size(); ++i)
+                accelerated::operations::callUnary(downsampleFunctions[i], *levels[i], *levels[i + 1]);
+            packFunction(packedLevels.data(), int(packedLevels.size()), *packed);
+            timer.begin();
             parent.processor->processAll();
+            timer.end();
         }
     };
 
+    std::unique_ptr<TextureAdapter> createPyramidAdapter(int nLevels, int firstLevel, int readbackBuffers) final {
+        assert(isValidPyramid(width, height, nLevels));
+        assert(firstLevel >= 0 && firstLevel < nLevels);
+
+        // packed rows are as wide as the first read level
+        const int rowBytes = width >> firstLevel;
+        std::size_t totalBytes = 0;
+        for (int k = firstLevel; k < nLevels; ++k) totalBytes += std::size_t(width >> k) * (height >> k);
+        const int packedRows = int((totalBytes + rowBytes - 1) / rowBytes);
+
+        auto r = new PyramidWrapper(*this, rowBytes / 4, packedRows);
+        for (int k = 0; k < nLevels; ++k) r->levels.push_back(newBuffer<1>(width >> k, height >> k));
+        // coefficients from OpenCV
+        auto gray = opsFactory->pixelwiseAffine({{ 0.299, 0.587, 0.114, 0}});
+        if (scaled) {
+            r->sourceGray = newBuffer<1>(cameraImage->width, cameraImage->height);
+            r->grayFunction = gray.build(*cameraImage, *r->sourceGray);
+            r->boxFunction = opsFactory->wrapShader(boxFilterShader(factorX, factorY, true),
+                    { *r->sourceGray }, *r->levels[0]);
+        } else {
+            r->grayFunction = gray.build(*cameraImage, *r->levels[0]);
+        }
+        for (int k = 1; k < nLevels; ++k)
+            r->downsampleFunctions.push_back(opsFactory->wrapShader(DOWNSAMPLE_SHADER,
+                    { *r->levels[k - 1] }, *r->levels[k]));
+
+        std::vector<int> begins, widths, heights;
+        std::vector<std::reference_wrapper<accelerated::Image>> inputs;
+        int begin = 0;
+        for (int k = firstLevel; k < nLevels; ++k) {
+            begins.push_back(begin);
+            widths.push_back(width >> k);
+            heights.push_back(height >> k);
+            inputs.push_back(*r->levels[k]);
+            r->packedLevels.push_back(r->levels[k].get());
+            begin += (width >> k) * (height >> k);
+        }
+        r->packed = newBuffer<4>(rowBytes / 4, packedRows);
+        r->packFunction = opsFactory->wrapShader(packPyramidShader(rowBytes, begins, widths, heights),
+                inputs, *r->packed);
+
+        if (readbackBuffers >= 2) {
+            const int tex = dynamic_cast<accelerated::opengl::Image&>(*r->packed).getTextureId();
+            r->pboReader.reset(new PboReader(tex, rowBytes / 4, packedRows, readbackBuffers));
+        }
+        log_debug("GPU pyramid, levels %d-%d, %zu bytes", firstLevel, nLevels - 1, totalBytes);
+        return std::unique_ptr<TextureAdapter>(r);
+    }
+
+    void renderToScreen(int screenWidth, int screenHeight) final {
+        if (!displayScreen || displayScreen->width != screenWidth || displayScreen->height != screenHeight) {
+            displayScreen = imageFactory->wrapScreen(screenWidth, screenHeight);
+            displayFunction = opsFactory->swizzle("rgba").build(*cameraImage, *displayScreen);
+        }
+        accelerated::operations::callUnary(displayFunction, *cameraImage, *displayScreen);
+        processor->processAll();
+    }
+
     template <int N>
     std::unique_ptr<accelerated::Image> newBuffer() {
-        return imageFactory->create<accelerated::FixedPoint<std::uint8_t>, N>(width,height);
+        return newBuffer<N>(width, height);
+    }
+
+    template <int N>
+    std::unique_ptr<accelerated::Image> newBuffer(int w, int h) {
+        return imageFactory->create<accelerated::FixedPoint<std::uint8_t>, N>(w, h);
+    }
+
+    /**
+     * Wrapper of a new output-sized image rendered from the camera texture with
+     * the given operation. When scaled, the operation renders a camera-sized image
+     * that is then reduced with boxFilterShader
+     */
+    template <int N, class Builder>
+    TextureWrapper *newRenderedWrapper(Builder &&builder) {
+        auto r = new TextureWrapper(*this, newBuffer<N>());
+        if (scaled) {
+            r->sourceImage = newBuffer<N>(cameraImage->width, cameraImage->height);
+            r->function = builder.build(*cameraImage, *r->sourceImage);
+            r->boxFunction = opsFactory->wrapShader(boxFilterShader(factorX, factorY, N == 1),
+                    { *r->sourceImage }, *r->image);
+        } else {
+            r->function = builder.build(*cameraImage, *r->image);
+        }
+        return r;
     }
 
-    std::unique_ptr<TextureAdapter> createTextureAdapter(TextureAdapter::Type type) final {
+    std::unique_ptr<TextureAdapter> createTextureAdapter(TextureAdapter::Type type, int readbackBuffers) final {
+        auto adapter = createSynchronousTextureAdapter(type);
+        auto &wrapper = static_cast<TextureWrapper&>(*adapter);
+        wrapper.timer.reset(new GpuTimer(typeName(type)));
+        if (readbackBuffers < 2) return adapter;
+        if (type == TextureAdapter::Type::RGBA && !scaled) {
+            // the camera texture cannot be attached to a frame buffer
+            log_warn("asynchronous readback not supported for RGBA, using synchronous");
+            return adapter;
+        }
+        if (type == TextureAdapter::Type::GRAY || type == TextureAdapter::Type::GRAY_COMPRESSED) {
+            assert(width % 4 == 0);
+            wrapper.packedImage = newBuffer<4>(width / 4, height);
+            wrapper.packFunction = opsFactory->wrapShader(PACK_GRAY_SHADER, { *wrapper.image }, *wrapper.packedImage);
+        }
+        wrapper.enableAsyncReadback(readbackBuffers);
+        log_debug("asynchronous readback with %d buffers", readbackBuffers);
+        return adapter;
+    }
+
+    std::unique_ptr<TextureAdapter> createSynchronousTextureAdapter(TextureAdapter::Type type) {
         switch (type) {
             case TextureAdapter::Type::RGBA:
-                return std::unique_ptr<TextureAdapter>(new TextureWrapper(*this, cameraImage));
+            {
+                if (!scaled) return std::unique_ptr<TextureAdapter>(new TextureWrapper(*this, cameraImage));
+                return std::unique_ptr<TextureAdapter>(newRenderedWrapper<4>(opsFactory->swizzle("rgba")));
+            }
             case TextureAdapter::Type::BGRA:
+                return std::unique_ptr<TextureAdapter>(newRenderedWrapper<4>(opsFactory->swizzle("bgra")));
+            case TextureAdapter::Type::GRAY_AND_BGRA:
             {
+                // the camera texture is sampled once per pixel
+                assert(!scaled);
+                assert(width % 4 == 0 && height % 4 == 0);
                 auto r = new TextureWrapper(*this, newBuffer<4>());
                 r->function = opsFactory->swizzle("bgra").build(*cameraImage, *r->image);
+                r->packedImage = newBuffer<4>(width, height + height / 4);
+                r->packFunction = opsFactory->wrapShader(combinedGrayBgraShader(width, height),
+                        { *r->image }, *r->packedImage);
                 return std::unique_ptr<TextureAdapter>(r);
             }
             case TextureAdapter::Type::GRAY_COMPRESSED:
             case TextureAdapter::Type::GRAY:
-            {
-                auto r = new TextureWrapper(*this, newBuffer<1>());
                 // coefficients from OpenCV
-                r->function = opsFactory->pixelwiseAffine({{ 0.299, 0.587, 0.114, 0}})
-                        .build(*cameraImage, *r->image);
-
-                return std::unique_ptr<TextureAdapter>(r);
-            }
+                return std::unique_ptr<TextureAdapter>(newRenderedWrapper<1>(
+                        opsFactory->pixelwiseAffine({{ 0.299, 0.587, 0.114, 0}})));
             default:
                 assert(false);
         }
@@ -98,6 +601,18 @@ GpuCameraAdapter::TextureAdapter::TextureAdapter(int w, int h) : width(w), heigh
 GpuCameraAdapter::TextureAdapter::~TextureAdapter() = default;
 GpuCameraAdapter::~GpuCameraAdapter() = default;
 
-std::unique_ptr<GpuCameraAdapter> GpuCameraAdapter::create(int w, int h, int tid) {
-    return std::unique_ptr<GpuCameraAdapter>(new GpuCameraAdapterImplementation(w, h, tid));
+bool GpuCameraAdapter::isValidPyramid(int width, int height, int levels) {
+    if (levels < 1) return false;
+    const int divisor = 1 << (levels - 1);
+    return width % divisor == 0 && height % divisor == 0 && (width / divisor) % 4 == 0;
+}
+
+std::unique_ptr<GpuCameraAdapter> GpuCameraAdapter::create(int w, int h, int tid, int outW, int outH) {
+    if (outW <= 0 || outH <= 0) {
+        outW = w;
+        outH = h;
+    } else {
+        assert(outW % 4 == 0 && outW <= w && outH <= h);
+    }
+    return std::unique_ptr<GpuCameraAdapter>(new GpuCameraAdapterImplementation(w, h, tid, outW, outH));
 }
\ No newline at end of file
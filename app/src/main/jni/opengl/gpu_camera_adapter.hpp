@@ -25,7 +25,14 @@ struct GpuCameraAdapter {
              * Can be read as a single-channel gray image to the CPU, but not as useful on
              * the GPU
              */
-            GRAY_COMPRESSED
+            GRAY_COMPRESSED,
+            /**
+             * BGRA and GRAY_COMPRESSED in a single RGBA texture of height * 5/4 rows,
+             * read with one transfer: first the BGRA image, then the gray image as
+             * width * height consecutive bytes. The camera texture is only sampled
+             * once per pixel. Height must be divisible by 4
+             */
+            GRAY_AND_BGRA
         };
 
         virtual void render(bool toFrameBuffer = true) = 0;
@@ -33,20 +40,56 @@ struct GpuCameraAdapter {
         /**
          * Read cpuSize() pixels to a 4-channel image. Note that OpenGL ES, one can only copy
          * data to the CPU side as GL_RGBA so we always have 4 bytes per pixel.
+         *
+         * With asynchronous readback, this starts reading the last rendered frame and
+         * returns the one started readbackLatency() calls earlier. Returns false if there
+         * was no such frame yet.
          */
-        virtual void readPixels(uint8_t *pixels) = 0;
+        virtual bool readPixels(uint8_t *pixels) = 0;
         virtual std::size_t readPixelsSize() const = 0;
 
+        /** Number of frames the result of readPixels lags behind render */
+        virtual int readbackLatency() const = 0;
+
         TextureAdapter(int w, int h);
         virtual ~TextureAdapter();
     };
 
-    static std::unique_ptr<GpuCameraAdapter> create(int width, int height, int textureId);
-    virtual std::unique_ptr<TextureAdapter> createTextureAdapter(TextureAdapter::Type type) = 0;
+    /**
+     * @param width camera texture width
+     * @param height camera texture height
+     * @param outputWidth if > 0, the texture adapters produce images of this size
+     *   instead, each pixel being the mean of a (width / outputWidth) x
+     *   (height / outputHeight) box of camera pixels. Pixels right or below the
+     *   last boxes are dropped. Must be divisible by 4
+     * @param outputHeight see outputWidth
+     */
+    static std::unique_ptr<GpuCameraAdapter> create(int width, int height, int textureId,
+            int outputWidth = 0, int outputHeight = 0);
+    /**
+     * @param readbackBuffers if >= 2, read pixels asynchronously through a ring of this
+     *   many pixel buffer objects, so that readPixels does not wait for the GPU. Not
+     *   supported for RGBA, which is always read synchronously
+     */
+    virtual std::unique_ptr<TextureAdapter> createTextureAdapter(TextureAdapter::Type type, int readbackBuffers = 0) = 0;
+
+    /**
+     * Gray image pyramid built on the GPU by 2x2 averaging. Levels firstLevel...levels-1,
+     * level k being (width >> k) x (height >> k), are read as consecutive bytes in a
+     * single transfer (readPixelsSize() may include some padding at the end). The
+     * width and height must be divisible by 2^(levels-1) and the smallest width by 4,
+     * see isValidPyramid
+     */
+    virtual std::unique_ptr<TextureAdapter> createPyramidAdapter(int levels, int firstLevel, int readbackBuffers = 0) = 0;
+    static bool isValidPyramid(int width, int height, int levels);
+
+    /** Draw the camera texture to the whole screen (the default frame buffer), stretched if necessary */
+    virtual void renderToScreen(int screenWidth, int screenHeight) = 0;
 
     virtual ~GpuCameraAdapter();
 
-    static void readChecked(TextureAdapter &adapter, cv::Mat &mat);
+    // returns false if readPixels had no frame available yet
+    static bool readChecked(TextureAdapter &adapter, cv::Mat &mat);
 };
 
 
@@ -0,0 +1,102 @@
+#ifndef REORDER_BUFFER_HPP
+#define REORDER_BUFFER_HPP
+
+#include <algorithm>
+#include <cassert>
+#include <cstddef>
+#include <vector>
+
+/**
+ * Bounded buffer that releases timestamped items in strict time order.
+ *
+ * Items are held until they are older than the newest pushed item by more
+ * than the latency budget, or until a barrier (e.g., a camera frame) with a
+ * later timestamp passes them. Items older than anything already released
+ * are dropped and counted. The storage is preallocated, push and release
+ * never allocate.
+ *
+ * T must have a member double t (timestamp in seconds). Not thread-safe.
+ */
+template <class T> class ReorderBuffer {
+public:
+    ReorderBuffer(double latencyBudgetSeconds, std::size_t capacity) :
+        latencyBudget(latencyBudgetSeconds), capacity(capacity)
+    {
+        assert(capacity > 0);
+        heap.reserve(capacity);
+    }
+
+    /**
+     * Add an item and pass all items that became releasable to the callback
+     * in time order. Returns false if the item was dropped as late
+     */
+    template <class Callback> bool push(const T &item, Callback release) {
+        if (item.t < releasedUntil) {
+            lateDrops++;
+            return false;
+        }
+        if (heap.size() == capacity) {
+            // budget cannot be respected, release the oldest item early
+            overflows++;
+            releaseOne(release);
+        }
+        heap.push_back(item);
+        std::push_heap(heap.begin(), heap.end(), Later());
+        maxDepth = std::max(maxDepth, heap.size());
+        newest = std::max(newest, item.t);
+        releaseUntil(newest - latencyBudget, release);
+        return true;
+    }
+
+    /**
+     * Release all items with timestamps <= t. Returns false if some item
+     * later than t had already been released, i.e., the barrier itself is late
+     */
+    template <class Callback> bool barrier(double t, Callback release) {
+        releaseUntil(t, release);
+        if (t < releasedUntil) {
+            lateBarriers++;
+            return false;
+        }
+        releasedUntil = t;
+        return true;
+    }
+
+    /** Release everything regardless of the latency budget */
+    template <class Callback> void flush(Callback release) {
+        flushed += heap.size();
+        while (!heap.empty()) releaseOne(release);
+    }
+
+    std::size_t depth() const { return heap.size(); }
+    std::size_t maxDepth = 0;
+    std::size_t lateDrops = 0;
+    std::size_t lateBarriers = 0;
+    std::size_t overflows = 0;
+    // released by flush before the latency budget or a barrier
+    std::size_t flushed = 0;
+
+private:
+    struct Later {
+        bool operator()(const T &a, const T &b) const { return a.t > b.t; }
+    };
+
+    template <class Callback> void releaseOne(Callback &release) {
+        std::pop_heap(heap.begin(), heap.end(), Later());
+        releasedUntil = std::max(releasedUntil, heap.back().t);
+        release(heap.back());
+        heap.pop_back();
+    }
+
+    template <class Callback> void releaseUntil(double t, Callback &release) {
+        while (!heap.empty() && heap.front().t <= t) releaseOne(release);
+    }
+
+    const double latencyBudget;
+    const std::size_t capacity;
+    std::vector<T> heap;
+    double newest = -1e100;
+    double releasedUntil = -1e100;
+};
+
+#endif
@@ -0,0 +1,91 @@
+#include "frame_source.hpp"
+
+#include <cassert>
+#include <chrono>
+#include <condition_variable>
+#include <fstream>
+#include <mutex>
+#include <thread>
+
+#include "logging.hpp"
+
+namespace {
+class ReplayFrameSource : public FrameSource {
+private:
+    const std::vector<std::string> files;
+    const int width, height;
+    const int64_t intervalNanos;
+    const bool realTime;
+
+    // reused for all frames
+    std::vector<std::uint8_t> buffer;
+
+    std::thread thread;
+    std::mutex mutex;
+    std::condition_variable quitCondition;
+    bool shouldQuit = false;
+
+    bool readFile(const std::string &fileName) {
+        std::ifstream input(fileName, std::ios::binary);
+        input.read(reinterpret_cast<char*>(buffer.data()), std::streamsize(buffer.size()));
+        if (!input || input.gcount() != std::streamsize(buffer.size())) {
+            log_warn("could not read %zu bytes from %s", buffer.size(), fileName.c_str());
+            return false;
+        }
+        return true;
+    }
+
+    void run(Callback callback) {
+        typedef std::chrono::steady_clock Clock;
+        const auto startTime = Clock::now();
+        for (std::size_t i = 0; i < files.size(); ++i) {
+            const int64_t t = int64_t(i) * intervalNanos;
+            std::unique_lock<std::mutex> lock(mutex);
+            if (realTime) {
+                quitCondition.wait_until(lock, startTime + std::chrono::nanoseconds(t), [this]() { return shouldQuit; });
+            }
+            if (shouldQuit) break;
+            lock.unlock();
+            if (!readFile(files[i])) continue;
+            Frame frame;
+            frame.timeNanos = t;
+            frame.width = width;
+            frame.height = height;
+            frame.gray = buffer.data();
+            frame.rowStride = width;
+            callback(frame);
+        }
+    }
+
+public:
+    ReplayFrameSource(std::vector<std::string> files, int width, int height, int64_t intervalNanos, bool realTime) :
+        files(std::move(files)), width(width), height(height), intervalNanos(intervalNanos), realTime(realTime),
+        buffer(std::size_t(width) * height)
+    {}
+
+    ~ReplayFrameSource() final {
+        stop();
+    }
+
+    void start(const Callback &callback) final {
+        assert(!thread.joinable());
+        shouldQuit = false;
+        thread = std::thread([this, callback]() { run(callback); });
+    }
+
+    void stop() final {
+        if (!thread.joinable()) return;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            shouldQuit = true;
+        }
+        quitCondition.notify_all();
+        thread.join();
+    }
+};
+}
+
+std::unique_ptr<FrameSource> FrameSource::createReplay(std::vector<std::string> files,
+        int width, int height, int64_t intervalNanos, bool realTime) {
+    return std::unique_ptr<FrameSource>(new ReplayFrameSource(std::move(files), width, height, intervalNanos, realTime));
+}
@@ -0,0 +1,65 @@
+#include "sensor_source.hpp"
+
+#include <atomic>
+#include <cassert>
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <thread>
+
+namespace {
+class ScriptedSensorSource : public SensorSource {
+private:
+    const std::vector<Event> script;
+    const bool realTime;
+
+    std::thread thread;
+    std::mutex mutex;
+    std::condition_variable quitCondition;
+    bool shouldQuit = false;
+
+    void run(Callback callback) {
+        typedef std::chrono::steady_clock Clock;
+        const auto startTime = Clock::now();
+        for (const auto &event : script) {
+            std::unique_lock<std::mutex> lock(mutex);
+            if (realTime) {
+                const auto delay = std::chrono::nanoseconds(event.timeNanos - script.front().timeNanos);
+                quitCondition.wait_until(lock, startTime + delay, [this]() { return shouldQuit; });
+            }
+            if (shouldQuit) break;
+            lock.unlock();
+            callback(event);
+        }
+    }
+
+public:
+    ScriptedSensorSource(std::vector<Event> script, bool realTime) :
+        script(std::move(script)), realTime(realTime)
+    {}
+
+    ~ScriptedSensorSource() final {
+        stop();
+    }
+
+    void start(const Callback &callback) final {
+        assert(!thread.joinable());
+        shouldQuit = false;
+        thread = std::thread([this, callback]() { run(callback); });
+    }
+
+    void stop() final {
+        if (!thread.joinable()) return;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            shouldQuit = true;
+        }
+        quitCondition.notify_all();
+        thread.join();
+    }
+};
+}
+
+std::unique_ptr<SensorSource> SensorSource::createScripted(std::vector<Event> script, bool realTime) {
+    return std::unique_ptr<SensorSource>(new ScriptedSensorSource(std::move(script), realTime));
+}
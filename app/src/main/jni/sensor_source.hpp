@@ -0,0 +1,62 @@
+#ifndef SENSOR_SOURCE_HPP
+#define SENSOR_SOURCE_HPP
+
+#include <cstdint>
+#include <functional>
+#include <memory>
+#include <vector>
+
+/**
+ * A source of IMU samples that delivers them on its own thread, bypassing
+ * the Java SensorEventListener in AlgorithmWorker.
+ */
+struct SensorSource {
+    enum class Type {
+        GYROSCOPE = 0,
+        ACCELEROMETER = 1
+    };
+
+    struct Event {
+        Type type;
+        int64_t timeNanos;
+        float x, y, z;
+    };
+
+    typedef std::function<void(const Event &event)> Callback;
+
+    struct Settings {
+        bool useCalibGyro = true;
+        bool useCalibAcc = true;
+        /** Requested sampling period, 0 = fastest possible */
+        int samplingPeriodUs = 0;
+    };
+
+    /**
+     * Reads the gyroscope and accelerometer using ASensorManager / ASensorEventQueue.
+     * Returns nullptr if the sensors are not available
+     */
+    static std::unique_ptr<SensorSource> createNdk(const Settings &settings);
+
+    /**
+     * A fake source that replays the given events on its own thread, in the
+     * given order. If realTime is true, the events are spaced according to
+     * their timestamps, otherwise they are emitted as fast as possible.
+     * Does not depend on Android and can be used on a Linux host.
+     */
+    static std::unique_ptr<SensorSource> createScripted(std::vector<Event> script, bool realTime = true);
+
+    /**
+     * Start delivering events. The callback is called from the thread of this source
+     */
+    virtual void start(const Callback &callback) = 0;
+
+    /**
+     * Stop delivering events. Blocks until the sensor thread has finished and
+     * guarantees that the callback is not called after this returns
+     */
+    virtual void stop() = 0;
+
+    virtual ~SensorSource() = default;
+};
+
+#endif
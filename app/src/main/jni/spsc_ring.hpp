@@ -0,0 +1,105 @@
+#ifndef SPSC_RING_HPP
+#define SPSC_RING_HPP
+
+#include <atomic>
+#include <cassert>
+#include <cstddef>
+#include <utility>
+#include <vector>
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer.
+ *
+ * All slots are allocated in the constructor, push and pop only copy (or
+ * move) into existing slots. When the ring is full, push fails and the item
+ * is counted as an overflow, the producer never waits for the consumer.
+ *
+ * Exactly one thread may call push and exactly one (possibly different)
+ * thread may call pop / drain at a time. The counters can be read from any
+ * thread. T must be default-constructible and copy- or move-assignable.
+ */
+template <class T> class SpscRing {
+public:
+    /** The capacity is rounded up to a power of two */
+    explicit SpscRing(std::size_t minCapacity) {
+        assert(minCapacity > 0);
+        std::size_t cap = 1;
+        while (cap < minCapacity) cap <<= 1;
+        slots.resize(cap);
+        mask = cap - 1;
+    }
+
+    SpscRing(const SpscRing&) = delete;
+    SpscRing &operator=(const SpscRing&) = delete;
+
+    template <class U> bool push(U &&item) {
+        const std::size_t t = tail.load(std::memory_order_relaxed);
+        if (t - cachedHead > mask) {
+            cachedHead = head.load(std::memory_order_acquire);
+            if (t - cachedHead > mask) {
+                overflowCount.fetch_add(1, std::memory_order_relaxed);
+                return false;
+            }
+        }
+        slots[t & mask] = std::forward<U>(item);
+        tail.store(t + 1, std::memory_order_release);
+
+        const std::size_t depth = t + 1 - cachedHead;
+        if (depth > highWater.load(std::memory_order_relaxed))
+            highWater.store(depth, std::memory_order_relaxed);
+        return true;
+    }
+
+    bool pop(T &item) {
+        const std::size_t h = head.load(std::memory_order_relaxed);
+        if (h == tail.load(std::memory_order_acquire)) return false;
+        item = std::move(slots[h & mask]);
+        head.store(h + 1, std::memory_order_release);
+        return true;
+    }
+
+    /**
+     * Pass at most maxItems queued items to the callback in place, without
+     * copying them out of the ring. Returns the number of items consumed
+     */
+    template <class Callback> std::size_t drain(Callback callback, std::size_t maxItems = std::size_t(-1)) {
+        const std::size_t h = head.load(std::memory_order_relaxed);
+        const std::size_t t = tail.load(std::memory_order_acquire);
+        std::size_t n = t - h;
+        if (n > maxItems) n = maxItems;
+        for (std::size_t i = 0; i < n; ++i) callback(slots[(h + i) & mask]);
+        head.store(h + n, std::memory_order_release);
+        return n;
+    }
+
+    /** Approximate when called from a thread other than the producer or consumer */
+    std::size_t size() const {
+        return tail.load(std::memory_order_acquire) - head.load(std::memory_order_acquire);
+    }
+
+    bool empty() const { return size() == 0; }
+    std::size_t capacity() const { return mask + 1; }
+
+    /**
+     * Largest number of queued items seen by the producer. Since the producer
+     * does not always see the latest consumer position, this is an upper bound
+     */
+    std::size_t highWaterMark() const { return highWater.load(std::memory_order_relaxed); }
+    /** Number of items rejected by push because the ring was full */
+    std::size_t overflows() const { return overflowCount.load(std::memory_order_relaxed); }
+
+private:
+    std::vector<T> slots;
+    std::size_t mask;
+
+    // consumer position, written only by the consumer
+    alignas(64) std::atomic<std::size_t> head { 0 };
+    // producer position and the producer's copy of head
+    alignas(64) std::atomic<std::size_t> tail { 0 };
+    std::size_t cachedHead = 0;
+
+    alignas(64) std::atomic<std::size_t> highWater { 0 };
+    std::atomic<std::size_t> overflowCount { 0 };
+};
+
+#endif
@@ -0,0 +1,106 @@
+#ifndef TAR_ENTRY_HPP
+#define TAR_ENTRY_HPP
+
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include <string>
+#include <sys/types.h>
+
+/**
+ * Files written as complete tar entries, so SessionArchiver can build the archive
+ * by renaming and concatenating them instead of copying every byte once more.
+ * Such a file is named ENTRY + SUFFIX, e.g., data.avi.tarentry, and contains:
+ *
+ *   ustar header of ENTRY (BLOCK_SIZE bytes, reserved by begin, written by finish)
+ *   the file contents
+ *   zeros up to a multiple of BLOCK_SIZE
+ *
+ * The header fields match TarWriter.java. Until finish, the header is all zeros.
+ */
+struct TarEntry {
+    static constexpr std::size_t BLOCK_SIZE = 512;
+    static constexpr const char *SUFFIX = ".tarentry";
+
+    /** The entry name if fileName ends with SUFFIX, its base name without it, else "" */
+    static std::string nameFor(const std::string &fileName) {
+        const std::size_t suffixLength = std::strlen(SUFFIX);
+        if (fileName.size() <= suffixLength
+                || fileName.compare(fileName.size() - suffixLength, suffixLength, SUFFIX) != 0) return "";
+        const std::size_t slash = fileName.rfind('/');
+        const std::size_t begin = slash == std::string::npos ? 0 : slash + 1;
+        return fileName.substr(begin, fileName.size() - suffixLength - begin);
+    }
+
+    /** Reserves the header at the current position, the start of the file. Returns false on error */
+    static bool begin(std::FILE *file) {
+        static const std::uint8_t zeros[BLOCK_SIZE] = {};
+        return std::fwrite(zeros, 1, BLOCK_SIZE, file) == BLOCK_SIZE;
+    }
+
+    /**
+     * Pads the contents, which end at the current position, and writes the header.
+     * Returns false on error
+     */
+    static bool finish(std::FILE *file, const std::string &name, std::uint64_t contentSize) {
+        static const std::uint8_t zeros[BLOCK_SIZE] = {};
+        std::uint8_t h[BLOCK_SIZE];
+        if (!header(h, name, contentSize, std::int64_t(std::time(nullptr)))) return false;
+        const std::size_t padding = (BLOCK_SIZE - contentSize % BLOCK_SIZE) % BLOCK_SIZE;
+        return std::fwrite(zeros, 1, padding, file) == padding
+            && fseeko(file, 0, SEEK_SET) == 0
+            && std::fwrite(h, 1, BLOCK_SIZE, file) == BLOCK_SIZE
+            && std::fflush(file) == 0;
+    }
+
+    /** ustar header of a regular file. Returns false if the name is too long */
+    static bool header(std::uint8_t (&h)[BLOCK_SIZE], const std::string &name, std::uint64_t size,
+            std::int64_t mtimeSeconds) {
+        constexpr std::size_t MAX_NAME_LENGTH = 100;
+        // largest size that fits in the 11 octal digits of the size field
+        constexpr std::uint64_t MAX_OCTAL_SIZE = 077777777777ull;
+        if (name.size() > MAX_NAME_LENGTH) return false;
+        std::memset(h, 0, BLOCK_SIZE);
+        std::memcpy(h, name.data(), name.size());
+        putOctal(h, 100, 8, 0644); // mode
+        putOctal(h, 108, 8, 0); // uid
+        putOctal(h, 116, 8, 0); // gid
+        if (size <= MAX_OCTAL_SIZE) {
+            putOctal(h, 124, 12, size);
+        } else {
+            // GNU base-256 encoding for files of 8 GiB or more
+            std::uint64_t v = size;
+            for (int i = 11; i > 0; --i) {
+                h[124 + i] = std::uint8_t(v & 0xff);
+                v >>= 8;
+            }
+            h[124] = 0x80;
+        }
+        putOctal(h, 136, 12, std::uint64_t(mtimeSeconds));
+        h[156] = '0'; // regular file
+        std::memcpy(h + 257, "ustar", 6);
+        std::memcpy(h + 263, "00", 2);
+
+        // computed with the checksum field itself filled with spaces
+        std::memset(h + 148, ' ', 8);
+        std::uint64_t checksum = 0;
+        for (std::size_t i = 0; i < BLOCK_SIZE; ++i) checksum += h[i];
+        putOctal(h, 148, 7, checksum);
+        h[155] = ' ';
+        return true;
+    }
+
+private:
+    // zero-padded octal digits followed by a NUL, filling the field
+    static void putOctal(std::uint8_t *h, int offset, int length, std::uint64_t value) {
+        const int digits = length - 1;
+        for (int i = digits - 1; i >= 0; --i) {
+            h[offset + i] = std::uint8_t('0' + (value & 7));
+            value >>= 3;
+        }
+        h[offset + digits] = 0;
+    }
+};
+
+#endif
@@ -0,0 +1,116 @@
+#ifndef WRITER_QUEUE_HPP
+#define WRITER_QUEUE_HPP
+
+#include <atomic>
+#include <cstddef>
+#include <mutex>
+#include <utility>
+#include <vector>
+
+#include "notifier.hpp"
+#include "spsc_ring.hpp"
+
+/**
+ * A preallocated queue to a writer thread. The ring itself is single-producer,
+ * but some module methods may be called from more than one thread (e.g., JSON
+ * from both the GL and GPS threads), so the producers are serialized with their
+ * own mutex. The writer thread only takes that mutex after an overflow, and the
+ * producers wake it through the given notifier after every push.
+ *
+ * When the ring is full, the item is dropped and counted by default. A lossless
+ * queue instead keeps the overflowing items in a growing buffer, in order, until
+ * the writer catches up. Producers never wait for the writer, so push can be
+ * called while holding locks that other threads need.
+ */
+template <class T> class WriterQueue {
+public:
+    std::mutex producerMutex;
+    bool lossless = false;
+
+    WriterQueue(std::size_t capacity, Notifier &consumer) : ring(capacity), consumer(consumer) {}
+
+    template <class U> bool push(U &&item) {
+        bool ok;
+        {
+            std::lock_guard<std::mutex> lock(producerMutex);
+            ok = pushLocked(std::forward<U>(item));
+        }
+        consumer.notify();
+        return ok;
+    }
+
+    // the caller must hold producerMutex and call notify() after unlocking it
+    template <class U> bool pushLocked(U &&item) {
+        // once items have overflowed, the rest must follow them to keep the order
+        if (lossless && !overflow.empty()) {
+            overflow.emplace_back(std::forward<U>(item));
+            overflowCount++;
+            return true;
+        }
+        if (ring.size() < ring.capacity()) {
+            // cannot fail, only this thread adds items
+            ring.push(std::forward<U>(item));
+            return true;
+        }
+        if (!lossless) {
+            droppedCount++;
+            return false;
+        }
+        overflow.emplace_back(std::forward<U>(item));
+        overflowCount++;
+        hasOverflow.store(true, std::memory_order_release);
+        return true;
+    }
+
+    void notify() { consumer.notify(); }
+
+    /**
+     * Pass all queued items to the callback in the order they were pushed.
+     * Only call from the writer thread. Returns the number of items consumed
+     */
+    template <class Callback> std::size_t drain(Callback callback) {
+        std::size_t n = ring.drain(callback);
+        if (hasOverflow.load(std::memory_order_acquire)) {
+            std::size_t older;
+            {
+                std::lock_guard<std::mutex> lock(producerMutex);
+                // everything still in the ring was pushed before the overflow
+                older = ring.size();
+                overflow.swap(overflowed);
+                hasOverflow.store(false, std::memory_order_relaxed);
+            }
+            n += ring.drain(callback, older);
+            for (T &item : overflowed) callback(item);
+            n += overflowed.size();
+            // keeps the capacity for the next overflow
+            overflowed.clear();
+        }
+        return n;
+    }
+
+    /** Only for queues that are not lossless, only call from the writer thread */
+    bool pop(T &item) { return ring.pop(item); }
+
+    bool empty() const {
+        return ring.empty() && !hasOverflow.load(std::memory_order_acquire);
+    }
+
+    std::size_t size() const { return ring.size(); }
+    std::size_t capacity() const { return ring.capacity(); }
+    std::size_t highWaterMark() const { return ring.highWaterMark(); }
+    std::size_t dropped() const { return droppedCount.load(); }
+    /** Items that did not fit in the ring but were kept by a lossless queue */
+    std::size_t overflows() const { return overflowCount.load(); }
+
+private:
+    SpscRing<T> ring;
+    Notifier &consumer;
+    // producer side, guarded by producerMutex
+    std::vector<T> overflow;
+    std::atomic<bool> hasOverflow { false };
+    // consumer side
+    std::vector<T> overflowed;
+    std::atomic<std::size_t> droppedCount { 0 }, overflowCount { 0 };
+};
+
+#endif
@@ -0,0 +1,126 @@
+package org.example.viotester;
+
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares TarWriter to the jtar streams it replaced on a synthetic recording
+ * session (video, JSONL and small metadata files, 2 GB by default). Runs on a
+ * plain JVM, e.g., on Linux from the repository root:
+ *
+ *   javac -d /tmp/tarbench -cp jtar-2.2.jar \
+ *       app/src/main/java/org/example/viotester/TarWriter.java \
+ *       app/src/test/java/org/example/viotester/TarWriterBenchmark.java
+ *   java -cp /tmp/tarbench:jtar-2.2.jar org.example.viotester.TarWriterBenchmark /tmp/tarbench-data 2048 3
+ *
+ * Arguments: work folder (needs twice the session size), session size in MB
+ * and the number of rounds. Both writers run alternately in each round, so
+ * the page cache affects them equally, and both archives must be identical
+ * in size. The session files are kept in the work folder for the next run.
+ */
+public class TarWriterBenchmark {
+    private static final long MB = 1024 * 1024;
+    // same as IOUtils.copyStream, used with jtar before
+    private static final int COPY_BUFFER_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException {
+        final File workFolder = new File(args.length > 0 ? args[0] : "tarbench");
+        final long sessionBytes = (args.length > 1 ? Long.parseLong(args[1]) : 2048) * MB;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        final File session = new File(workFolder, "session");
+        final File[] files = createSession(session, sessionBytes);
+        long total = 0;
+        for (File f : files) total += f.length();
+        System.out.printf(Locale.US, "session: %d files, %d MB%n", files.length, total / MB);
+
+        final File jtarFile = new File(workFolder, "jtar.tar");
+        final File tarWriterFile = new File(workFolder, "tarwriter.tar");
+        final double[] jtarSeconds = new double[rounds];
+        final double[] tarWriterSeconds = new double[rounds];
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            writeJtar(files, jtarFile);
+            jtarSeconds[i] = (System.nanoTime() - start) * 1e-9;
+
+            start = System.nanoTime();
+            writeTarWriter(files, tarWriterFile);
+            tarWriterSeconds[i] = (System.nanoTime() - start) * 1e-9;
+
+            if (jtarFile.length() != tarWriterFile.length()) {
+                throw new IllegalStateException("archive sizes differ: jtar " + jtarFile.length()
+                        + ", TarWriter " + tarWriterFile.length());
+            }
+            System.out.printf(Locale.US, "round %d: jtar %.2f s, TarWriter %.2f s%n",
+                    i + 1, jtarSeconds[i], tarWriterSeconds[i]);
+            if (!jtarFile.delete() || !tarWriterFile.delete()) throw new IOException("failed to delete archives");
+        }
+        report("jtar", total, jtarSeconds);
+        report("TarWriter", total, tarWriterSeconds);
+    }
+
+    private static void writeJtar(File[] files, File tarFile) throws IOException {
+        try (TarOutputStream out = new TarOutputStream(new BufferedOutputStream(new FileOutputStream(tarFile)))) {
+            for (File f : files) {
+                out.putNextEntry(new TarEntry(f, f.getName()));
+                try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                    copyStream(in, out);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private static void writeTarWriter(File[] files, File tarFile) throws IOException {
+        try (TarWriter out = new TarWriter(tarFile)) {
+            for (File f : files) out.addFile(f, f.getName());
+        }
+    }
+
+    private static void copyStream(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+    }
+
+    /** Like a recording: mostly video, a large JSONL log and small metadata files */
+    private static File[] createSession(File folder, long bytes) throws IOException {
+        final String[] names = { "data.avi", "data.jsonl", "info.json", "parameters.txt" };
+        final long[] sizes = { bytes * 4 / 5, bytes / 5 - 12 * 1024, 5 * 1024, 7 * 1024 };
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("failed to create " + folder);
+        final File[] files = new File[names.length];
+        final Random random = new Random(1);
+        final byte[] chunk = new byte[(int)MB];
+        for (int i = 0; i < names.length; ++i) {
+            files[i] = new File(folder, names[i]);
+            if (files[i].length() == sizes[i]) continue;
+            try (FileOutputStream out = new FileOutputStream(files[i])) {
+                for (long left = sizes[i]; left > 0; left -= chunk.length) {
+                    random.nextBytes(chunk);
+                    out.write(chunk, 0, (int)Math.min(left, chunk.length));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void report(String name, long bytes, double[] seconds) {
+        final double[] sorted = seconds.clone();
+        Arrays.sort(sorted);
+        final double median = sorted[sorted.length / 2];
+        System.out.printf(Locale.US, "%-10s median %.2f s, %.0f MB/s (best %.0f MB/s)%n",
+                name, median, bytes / MB / median, bytes / MB / sorted[0]);
+    }
+}
@@ -0,0 +1,173 @@
+// Replays raw gray frames with FrameSource::createReplay through the YUV capture
+// path of CpuAlgorithmModule (addGrayFrame), like processCameraFrame in
+// algorithm_worker.cpp. The GPU classes are replaced by fakes at link time, the
+// capture path only uses the camera adapter to draw the screen.
+#include "algorithm_module.hpp"
+#include "frame_source.hpp"
+#include "opengl/camera_renderer.hpp"
+#include "opengl/gpu_camera_adapter.hpp"
+#include "test_util.hpp"
+
+#include <opencv2/core.hpp>
+#include <nlohmann/json.hpp>
+
+#include <atomic>
+#include <cstdint>
+#include <cstdio>
+#include <fstream>
+#include <string>
+#include <thread>
+#include <vector>
+
+// --- fakes for the OpenGL code (opengl/*.cpp)
+namespace {
+int screenRenders = 0;
+int textureAdaptersCreated = 0;
+
+struct FakeGpuCameraAdapter : GpuCameraAdapter {
+    std::unique_ptr<TextureAdapter> createTextureAdapter(TextureAdapter::Type, int) final {
+        textureAdaptersCreated++;
+        return nullptr;
+    }
+    std::unique_ptr<TextureAdapter> createPyramidAdapter(int, int, int) final {
+        textureAdaptersCreated++;
+        return nullptr;
+    }
+    void renderToScreen(int, int) final { screenRenders++; }
+};
+}
+
+GpuCameraAdapter::TextureAdapter::TextureAdapter(int w, int h) : width(w), height(h) {}
+GpuCameraAdapter::TextureAdapter::~TextureAdapter() = default;
+GpuCameraAdapter::~GpuCameraAdapter() = default;
+bool GpuCameraAdapter::isValidPyramid(int, int, int) { return false; }
+std::unique_ptr<GpuCameraAdapter> GpuCameraAdapter::create(int, int, int, int, int) {
+    return std::unique_ptr<GpuCameraAdapter>(new FakeGpuCameraAdapter);
+}
+std::unique_ptr<CameraRenderer> CameraRenderer::build(int, int) { return nullptr; }
+
+// referenced by AlgorithmModule::build, not used here
+std::unique_ptr<AlgorithmModule> buildRecorder(int, int, int, const AlgorithmModule::json &) { return nullptr; }
+
+namespace {
+constexpr int WIDTH = 64, HEIGHT = 48;
+constexpr int FRAME_COUNT = 12;
+constexpr int64_t INTERVAL_NANOS = 33333333;
+
+std::uint8_t pixel(int frame, int x, int y) {
+    return std::uint8_t(frame * 31 + x * 3 + y * 7);
+}
+
+struct ReceivedFrame {
+    double t;
+    cv::Mat gray;
+    bool hasColor;
+    bool hasPyramid;
+    float focalLength, colorFocalLength;
+};
+
+class TestModule : public CpuAlgorithmModule {
+public:
+    std::vector<ReceivedFrame> frames;
+
+    TestModule(const json &settings) : CpuAlgorithmModule(1, WIDTH, HEIGHT, &settings) {
+        grayPyramidEnabled = true;
+    }
+
+    void addGyro(double, const Vector3d &) final {}
+    void addAcc(double, const Vector3d &) final {}
+
+    void addFrame(double t, const cv::Mat &grayFrame, cv::Mat *colorFrame,
+            const CameraIntrinsics &cam, cv::Mat &) final {
+        // the frame is only valid during the call
+        frames.push_back({ t, grayFrame.clone(), colorFrame != nullptr, !grayPyramid().empty(),
+                cam.focalLengthX, colorFrameIntrinsics().focalLengthX });
+    }
+};
+
+std::vector<std::string> writeFrames() {
+    std::vector<std::string> files;
+    std::vector<std::uint8_t> data(WIDTH * HEIGHT);
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) data[y * WIDTH + x] = pixel(i, x, y);
+        }
+        files.push_back("cpu_frame_replay_test_" + std::to_string(i) + ".raw");
+        std::ofstream out(files.back(), std::ios::binary);
+        out.write(reinterpret_cast<const char*>(data.data()), std::streamsize(data.size()));
+        CHECK(out);
+    }
+    return files;
+}
+
+void replay(const std::vector<std::string> &files, AlgorithmModule &module, bool realTime) {
+    AlgorithmModule::CameraIntrinsics cam;
+    cam.focalLengthX = cam.focalLengthY = 50;
+    cam.principalPointX = WIDTH / 2;
+    cam.principalPointY = HEIGHT / 2;
+    auto source = FrameSource::createReplay(files, WIDTH, HEIGHT, INTERVAL_NANOS, realTime);
+    CHECK(source && !source->captureWindow());
+    std::atomic<int> delivered(0);
+    source->start([&](const FrameSource::Frame &frame) {
+        const cv::Mat gray(frame.height, frame.width, CV_8UC1,
+                const_cast<std::uint8_t*>(frame.gray), std::size_t(frame.rowStride));
+        module.addGrayFrame(frame.timeNanos * 1e-9, gray, cam);
+        delivered++;
+    });
+    // the GL thread keeps calling addFrame and render, which must not produce frames
+    if (realTime) {
+        for (int i = 0; i < FRAME_COUNT; ++i) {
+            module.addFrame(i * INTERVAL_NANOS * 1e-9, cam);
+            module.render(0);
+        }
+    }
+    // the replay ends on its own, wait for that before stopping
+    while (delivered < FRAME_COUNT) std::this_thread::yield();
+    source->stop();
+}
+
+void checkFrames(const TestModule &module) {
+    CHECK(module.frames.size() == FRAME_COUNT);
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+        const ReceivedFrame &f = module.frames[i];
+        CHECK(f.t == i * INTERVAL_NANOS * 1e-9);
+        CHECK(f.gray.cols == WIDTH && f.gray.rows == HEIGHT && f.gray.type() == CV_8UC1);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) CHECK(f.gray.at<std::uint8_t>(y, x) == pixel(i, x, y));
+        }
+        CHECK(!f.hasColor);
+        CHECK(!f.hasPyramid);
+        CHECK(f.focalLength == 50 && f.colorFocalLength == 50);
+    }
+}
+
+// YUV capture: every replayed frame reaches addFrame in order, without GPU textures
+void testCapture(const std::vector<std::string> &files, bool realTime) {
+    const nlohmann::json settings = { { "cameraYuvImages", 1 }, { "gpuPyramidLevels", 3 } };
+    textureAdaptersCreated = screenRenders = 0;
+    TestModule module(settings);
+    module.setupRendering(640, 480);
+    replay(files, module, realTime);
+    checkFrames(module);
+    CHECK(textureAdaptersCreated == 0);
+    CHECK(screenRenders == (realTime ? FRAME_COUNT : 0));
+}
+
+// without cameraYuvImages, frames only come from the GPU and addGrayFrame is ignored
+void testIgnoredWithoutCapture(const std::vector<std::string> &files) {
+    const nlohmann::json settings = nlohmann::json::object();
+    TestModule module(settings);
+    replay(files, module, false);
+    CHECK(module.frames.empty());
+}
+}
+
+int main() {
+    const std::vector<std::string> files = writeFrames();
+    testCapture(files, false);
+    testCapture(files, true);
+    testIgnoredWithoutCapture(files);
+    for (const auto &f : files) std::remove(f.c_str());
+    std::printf("OK\n");
+    return 0;
+}
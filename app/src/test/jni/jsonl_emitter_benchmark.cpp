@@ -0,0 +1,96 @@
+// Time per JSONL line of the recorder's event and sensor formats: JsonlEmitter compared to
+// building the same nlohmann::json tree and dumping it, which is what
+// recorder::Recorder::addJson does for each line.
+// Usage: jsonl_emitter_benchmark [lines]
+#include "jsonl_emitter.hpp"
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+
+namespace {
+typedef JsonlEmitter::Event Event;
+typedef JsonlEmitter::FrameMetadata FrameMetadata;
+typedef std::chrono::steady_clock Clock;
+
+double seconds(Clock::time_point start) {
+    return std::chrono::duration<double>(Clock::now() - start).count();
+}
+
+// a 30 Hz pose and frame metadata stream with some GNSS times and frame gaps
+std::vector<Event> makeEvents(std::size_t n) {
+    std::vector<Event> events(n);
+    for (std::size_t i = 0; i < n; ++i) {
+        Event &e = events[i];
+        e = {};
+        e.t = 1000.0 + i / 30.0;
+        if (i % 50 == 7) {
+            e.type = Event::Type::GNSS_TIME;
+            e.utcSeconds = 1760000000.0 + i / 30.0;
+        } else if (i % 97 == 3) {
+            e.type = Event::Type::FRAME_GAP;
+            e.duration = 0.0667;
+            e.missingFrames = 1;
+        } else {
+            e.type = Event::Type::POSE;
+            std::strcpy(e.tag, "arcore");
+            for (int j = 0; j < 3; ++j) e.position[j] = float(0.01 * i + j);
+            e.orientation[0] = 0.5f;
+            e.orientation[1] = -0.5f;
+            e.orientation[2] = 0.5f;
+            e.orientation[3] = float(1e-4 * (i % 1000));
+        }
+    }
+    return events;
+}
+
+FrameMetadata makeMetadata(std::size_t i) {
+    FrameMetadata m;
+    m.frameNumber = int64_t(i);
+    m.exposureTime = 0.008 + 1e-6 * (i % 100);
+    m.rollingShutterSkew = 0.021;
+    m.frameDuration = 1.0 / 30;
+    return m;
+}
+}
+
+int main(int argc, char *argv[]) {
+    const std::size_t n = argc > 1 ? std::strtoul(argv[1], nullptr, 10) : 1000000;
+    const std::vector<Event> events = makeEvents(n);
+    JsonlEmitter emitter;
+
+    // the output sizes double as a check that the work is not optimized away
+    std::size_t emitterBytes = 0, jsonBytes = 0;
+    auto start = Clock::now();
+    for (std::size_t i = 0; i < n; ++i) {
+        emitterBytes += emitter.emit(events[i]).size();
+        emitterBytes += emitter.emitFrameMetadata(events[i].t, makeMetadata(i)).size();
+    }
+    for (std::size_t i = 0; i < n; ++i) {
+        const double values[6] = { 23.5, -12.25, 40.125, 0.5, -0.25, 1.0 + 1e-3 * (i % 100) };
+        emitterBytes += emitter.emitSensor(events[i].t, "magnetometerUncalibrated", values, 6).size();
+    }
+    const double emitterTime = seconds(start);
+
+    start = Clock::now();
+    for (std::size_t i = 0; i < n; ++i) {
+        jsonBytes += JsonlEmitter::toJson(events[i]).dump().size();
+        jsonBytes += JsonlEmitter::frameMetadataToJson(events[i].t, makeMetadata(i)).dump().size();
+    }
+    for (std::size_t i = 0; i < n; ++i) {
+        const double values[6] = { 23.5, -12.25, 40.125, 0.5, -0.25, 1.0 + 1e-3 * (i % 100) };
+        jsonBytes += JsonlEmitter::sensorToJson(events[i].t, "magnetometerUncalibrated", values, 6).dump().size();
+    }
+    const double jsonTime = seconds(start);
+
+    const double lines = 3.0 * n;
+    std::printf("%.0f lines\n", lines);
+    std::printf("JsonlEmitter:          %6.0f ns/line, %5.1f bytes/line\n",
+        emitterTime / lines * 1e9, emitterBytes / lines);
+    std::printf("nlohmann::json + dump: %6.0f ns/line, %5.1f bytes/line\n",
+        jsonTime / lines * 1e9, jsonBytes / lines);
+    std::printf("speedup %.1fx\n", jsonTime / emitterTime);
+    return 0;
+}
@@ -0,0 +1,228 @@
+// Writes MJPEG AVI files and parses them back: RIFF structure, headers and the
+// three indices (idx1, ix00 and the indx super index) must all find the frames.
+// Also checks the tar entry framing of tar_entry.hpp
+#include "mjpeg_avi_writer.hpp"
+#include "test_util.hpp"
+
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <fstream>
+#include <iterator>
+#include <string>
+#include <vector>
+
+namespace {
+typedef std::vector<std::uint8_t> Bytes;
+
+std::uint16_t read16(const Bytes &b, std::uint64_t at) {
+    CHECK(at + 2 <= b.size());
+    std::uint16_t v;
+    std::memcpy(&v, &b[at], 2);
+    return v;
+}
+
+std::uint32_t read32(const Bytes &b, std::uint64_t at) {
+    CHECK(at + 4 <= b.size());
+    std::uint32_t v;
+    std::memcpy(&v, &b[at], 4);
+    return v;
+}
+
+std::uint64_t read64(const Bytes &b, std::uint64_t at) {
+    CHECK(at + 8 <= b.size());
+    std::uint64_t v;
+    std::memcpy(&v, &b[at], 8);
+    return v;
+}
+
+bool fourccIs(const Bytes &b, std::uint64_t at, const char *fourcc) {
+    return at + 4 <= b.size() && std::memcmp(&b[at], fourcc, 4) == 0;
+}
+
+// position of the first chunk with the given id in [begin, end), LIST types included
+std::uint64_t findChunk(const Bytes &b, std::uint64_t begin, std::uint64_t end, const char *id) {
+    std::uint64_t at = begin;
+    while (at + 8 <= end) {
+        if (fourccIs(b, at, id)) return at;
+        if (fourccIs(b, at, "LIST") && fourccIs(b, at + 8, id)) return at;
+        at += 8 + read32(b, at + 4) + (read32(b, at + 4) % 2);
+    }
+    CHECK(!"chunk not found");
+    return 0;
+}
+
+Bytes readFile(const std::string &fileName) {
+    std::ifstream in(fileName, std::ios::binary);
+    CHECK(in);
+    return Bytes(std::istreambuf_iterator<char>(in), std::istreambuf_iterator<char>());
+}
+
+// fake JPEG data of varying, also odd, sizes
+Bytes makeFrame(int i) {
+    Bytes frame(100 + (i * 37) % 501);
+    for (std::size_t j = 0; j < frame.size(); ++j) frame[j] = std::uint8_t(i * 7 + j);
+    frame[0] = 0xff;
+    frame[1] = 0xd8;
+    return frame;
+}
+
+bool sameData(const Bytes &file, std::uint64_t at, const Bytes &frame) {
+    return at + frame.size() <= file.size() && std::memcmp(&file[at], frame.data(), frame.size()) == 0;
+}
+
+void testFile(int frameCount, std::uint32_t segmentSize, bool expectSegments) {
+    const std::string fileName = "mjpeg_avi_writer_test.avi";
+    std::vector<Bytes> frames;
+    {
+        auto writer = MjpegAviWriter::create(fileName, 320, 240, 30, segmentSize);
+        CHECK(writer);
+        for (int i = 0; i < frameCount; ++i) {
+            frames.push_back(makeFrame(i));
+            CHECK(writer->addFrame(frames.back().data(), frames.back().size()));
+        }
+        CHECK(writer->frameCount() == std::uint64_t(frameCount));
+        CHECK(writer->close());
+    }
+    const Bytes b = readFile(fileName);
+    std::remove(fileName.c_str());
+
+    // the RIFF segments cover the whole file
+    std::vector<std::uint64_t> riffs;
+    for (std::uint64_t at = 0; at < b.size(); at += 8 + read32(b, at + 4)) {
+        CHECK(fourccIs(b, at, "RIFF"));
+        CHECK(fourccIs(b, at + 8, riffs.empty() ? "AVI " : "AVIX"));
+        CHECK(read32(b, at + 4) <= segmentSize);
+        riffs.push_back(at);
+    }
+    CHECK((riffs.size() > 1) == expectSegments);
+
+    // headers
+    const std::uint64_t firstEnd = 8 + read32(b, 4);
+    const std::uint64_t hdrl = findChunk(b, 12, firstEnd, "hdrl");
+    const std::uint64_t hdrlEnd = hdrl + 8 + read32(b, hdrl + 4);
+    const std::uint64_t avih = findChunk(b, hdrl + 12, hdrlEnd, "avih");
+    CHECK(read32(b, avih + 8 + 32) == 320 && read32(b, avih + 8 + 36) == 240);
+    const std::uint64_t strl = findChunk(b, hdrl + 12, hdrlEnd, "strl");
+    const std::uint64_t strlEnd = strl + 8 + read32(b, strl + 4);
+    const std::uint64_t strh = findChunk(b, strl + 12, strlEnd, "strh");
+    CHECK(fourccIs(b, strh + 8, "vids") && fourccIs(b, strh + 12, "MJPG"));
+    CHECK(read32(b, strh + 8 + 32) == std::uint32_t(frameCount));
+    const std::uint64_t strf = findChunk(b, strl + 12, strlEnd, "strf");
+    CHECK(fourccIs(b, strf + 8 + 16, "MJPG"));
+    const std::uint64_t dmlh = findChunk(b, findChunk(b, hdrl + 12, hdrlEnd, "odml") + 12, hdrlEnd, "dmlh");
+    CHECK(read32(b, dmlh + 8) == std::uint32_t(frameCount));
+
+    // idx1 lists the frames of the first segment, relative to its 'movi'
+    const std::uint64_t movi = findChunk(b, 12, firstEnd, "movi") + 8;
+    const std::uint64_t idx1 = findChunk(b, 12, firstEnd, "idx1");
+    const std::uint32_t firstFrames = read32(b, idx1 + 4) / 16;
+    CHECK(read32(b, avih + 8 + 16) == firstFrames);
+    for (std::uint32_t i = 0; i < firstFrames; ++i) {
+        const std::uint64_t entry = idx1 + 8 + 16 * i;
+        CHECK(fourccIs(b, entry, "00dc"));
+        const std::uint64_t chunk = movi + read32(b, entry + 8);
+        CHECK(fourccIs(b, chunk, "00dc"));
+        CHECK(read32(b, entry + 12) == frames[i].size());
+        CHECK(sameData(b, chunk + 8, frames[i]));
+    }
+
+    // the super index points to one ix00 per segment, which point to the frame data
+    const std::uint64_t indx = findChunk(b, strl + 12, strlEnd, "indx");
+    CHECK(read16(b, indx + 8) == 4);
+    const std::uint32_t segments = read32(b, indx + 12);
+    CHECK(segments == riffs.size());
+    std::size_t frame = 0;
+    for (std::uint32_t s = 0; s < segments; ++s) {
+        const std::uint64_t entry = indx + 8 + 24 + 16 * s;
+        const std::uint64_t ix = read64(b, entry);
+        CHECK(ix > riffs[s] && (s + 1 == segments || ix < riffs[s + 1]));
+        CHECK(fourccIs(b, ix, "ix00"));
+        CHECK(read32(b, entry + 8) == 8 + read32(b, ix + 4));
+        const std::uint32_t n = read32(b, ix + 12);
+        CHECK(read32(b, entry + 12) == n);
+        CHECK(n > 0);
+        const std::uint64_t base = read64(b, ix + 20);
+        CHECK(fourccIs(b, base, "movi"));
+        for (std::uint32_t i = 0; i < n; ++i, ++frame) {
+            const std::uint64_t data = base + read32(b, ix + 32 + 8 * i);
+            CHECK(read32(b, ix + 32 + 8 * i + 4) == frames[frame].size());
+            CHECK(fourccIs(b, data - 8, "00dc"));
+            CHECK(sameData(b, data, frames[frame]));
+        }
+    }
+    CHECK(frame == frames.size());
+    std::printf("avi: %d frames in %zu segment(s), %zu bytes\n", frameCount, riffs.size(), b.size());
+}
+
+void testFull() {
+    const std::string fileName = "mjpeg_avi_writer_full.avi";
+    auto writer = MjpegAviWriter::create(fileName, 16, 16, 30, 2048);
+    CHECK(writer);
+    const Bytes frame(1000, 1);
+    int written = 0;
+    while (writer->addFrame(frame.data(), frame.size())) written++;
+    // one frame per segment, the super index is full
+    CHECK(written == MjpegAviWriter::MAX_SEGMENTS);
+    CHECK(writer->close());
+    std::remove(fileName.c_str());
+}
+
+Bytes writeFrames(const std::string &fileName, int frameCount) {
+    {
+        auto writer = MjpegAviWriter::create(fileName, 320, 240, 30, 16 * 1024);
+        CHECK(writer);
+        for (int i = 0; i < frameCount; ++i) {
+            const Bytes frame = makeFrame(i);
+            CHECK(writer->addFrame(frame.data(), frame.size()));
+        }
+        CHECK(writer->close());
+    }
+    const Bytes b = readFile(fileName);
+    std::remove(fileName.c_str());
+    return b;
+}
+
+std::uint64_t parseOctal(const Bytes &b, std::size_t at, std::size_t length) {
+    std::uint64_t v = 0;
+    for (std::size_t i = at; i < at + length && b[i] != 0; ++i) {
+        CHECK(b[i] >= '0' && b[i] <= '7');
+        v = v * 8 + (b[i] - '0');
+    }
+    return v;
+}
+
+// a ".tarentry" file is a tar header, the same AVI as without it and padding
+void testTarEntry() {
+    const Bytes avi = writeFrames("mjpeg_avi_writer_tar.avi", 300);
+    const Bytes entry = writeFrames("mjpeg_avi_writer_tar.avi" + std::string(TarEntry::SUFFIX), 300);
+    constexpr std::size_t BLOCK = TarEntry::BLOCK_SIZE;
+    CHECK(entry.size() % BLOCK == 0);
+    CHECK(entry.size() == BLOCK + (avi.size() + BLOCK - 1) / BLOCK * BLOCK);
+    CHECK(std::memcmp(&entry[BLOCK], avi.data(), avi.size()) == 0);
+    for (std::size_t i = BLOCK + avi.size(); i < entry.size(); ++i) CHECK(entry[i] == 0);
+
+    CHECK(std::string(reinterpret_cast<const char*>(&entry[0])) == "mjpeg_avi_writer_tar.avi");
+    CHECK(parseOctal(entry, 124, 12) == avi.size());
+    CHECK(entry[156] == '0');
+    CHECK(std::memcmp(&entry[257], "ustar\0" "00", 8) == 0);
+    std::uint64_t checksum = 8 * ' ';
+    for (std::size_t i = 0; i < BLOCK; ++i) {
+        if (i < 148 || i >= 156) checksum += entry[i];
+    }
+    CHECK(parseOctal(entry, 148, 7) == checksum);
+
+    CHECK(TarEntry::nameFor("/a/b/data.avi.tarentry") == "data.avi");
+    CHECK(TarEntry::nameFor("data.avi").empty());
+}
+}
+
+int main() {
+    testFile(1, MjpegAviWriter::DEFAULT_SEGMENT_SIZE, false);
+    testFile(200, MjpegAviWriter::DEFAULT_SEGMENT_SIZE, false);
+    testFile(500, 16 * 1024, true);
+    testFull();
+    testTarEntry();
+    std::printf("OK\n");
+    return 0;
+}
@@ -0,0 +1,148 @@
+// Tests for the scripted SensorSource: order, real-time spacing and shutdown
+#include "sensor_source.hpp"
+#include "test_util.hpp"
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstdio>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+namespace {
+typedef SensorSource::Event Event;
+typedef SensorSource::Type Type;
+typedef std::chrono::steady_clock Clock;
+
+// alternating gyro and acc samples, periodNanos apart
+std::vector<Event> makeScript(int n, int64_t periodNanos) {
+    std::vector<Event> script;
+    for (int i = 0; i < n; ++i) {
+        const Type type = i % 2 == 0 ? Type::GYROSCOPE : Type::ACCELEROMETER;
+        script.push_back({ type, 1000000000 + i * periodNanos, float(i), float(-i), 9.81f });
+    }
+    return script;
+}
+
+struct Received {
+    std::mutex mutex;
+    std::vector<Event> events;
+    std::vector<std::thread::id> threads;
+
+    SensorSource::Callback callback() {
+        return [this](const Event &e) {
+            std::lock_guard<std::mutex> lock(mutex);
+            events.push_back(e);
+            threads.push_back(std::this_thread::get_id());
+        };
+    }
+
+    std::size_t size() {
+        std::lock_guard<std::mutex> lock(mutex);
+        return events.size();
+    }
+
+    bool waitFor(std::size_t n, std::chrono::milliseconds timeout) {
+        const auto end = Clock::now() + timeout;
+        while (size() < n) {
+            if (Clock::now() > end) return false;
+            std::this_thread::sleep_for(std::chrono::milliseconds(1));
+        }
+        return true;
+    }
+};
+
+bool sameEvent(const Event &a, const Event &b) {
+    return a.type == b.type && a.timeNanos == b.timeNanos && a.x == b.x && a.y == b.y && a.z == b.z;
+}
+
+// as fast as possible: every event arrives once, in order, on the source thread
+void testFast() {
+    const std::vector<Event> script = makeScript(10000, 5000000);
+    Received received;
+    auto source = SensorSource::createScripted(script, false);
+    source->start(received.callback());
+    CHECK(received.waitFor(script.size(), std::chrono::milliseconds(5000)));
+    source->stop();
+
+    CHECK(received.events.size() == script.size());
+    for (std::size_t i = 0; i < script.size(); ++i) {
+        CHECK(sameEvent(received.events[i], script[i]));
+        CHECK(received.threads[i] != std::this_thread::get_id());
+        CHECK(received.threads[i] == received.threads[0]);
+    }
+}
+
+// real time: the events are spaced by their timestamps, relative to the first one
+void testRealTime() {
+    constexpr int64_t PERIOD_NANOS = 10000000;
+    constexpr int N = 21;
+    const std::vector<Event> script = makeScript(N, PERIOD_NANOS);
+    Received received;
+    std::vector<Clock::time_point> arrivals;
+    auto source = SensorSource::createScripted(script, true);
+    const auto start = Clock::now();
+    source->start([&](const Event &e) {
+        arrivals.push_back(Clock::now());
+        received.callback()(e);
+    });
+    CHECK(received.waitFor(N, std::chrono::milliseconds(5000)));
+    source->stop();
+
+    for (int i = 0; i < N; ++i) {
+        CHECK(sameEvent(received.events[i], script[i]));
+        // never early, the scheduling delay is not checked
+        CHECK(arrivals[i] - start >= std::chrono::nanoseconds(i * PERIOD_NANOS));
+    }
+}
+
+// stop interrupts a long real-time wait and no callbacks arrive after it returns
+void testStop() {
+    // 20 events, one per 10 s
+    const std::vector<Event> script = makeScript(20, 10000000000);
+    std::atomic<int> calls(0);
+    auto source = SensorSource::createScripted(script, true);
+    source->start([&](const Event &) { calls++; });
+    std::this_thread::sleep_for(std::chrono::milliseconds(50));
+
+    const auto stopStart = Clock::now();
+    source->stop();
+    CHECK(Clock::now() - stopStart < std::chrono::seconds(2));
+    const int callsAtStop = calls;
+    CHECK(callsAtStop == 1);
+    std::this_thread::sleep_for(std::chrono::milliseconds(50));
+    CHECK(calls == callsAtStop);
+
+    // stopping again is a no-op
+    source->stop();
+
+    // the source can be restarted and replays from the beginning
+    Received received;
+    source->start(received.callback());
+    CHECK(received.waitFor(1, std::chrono::milliseconds(2000)));
+    source->stop();
+    CHECK(received.events.size() == 1 && sameEvent(received.events[0], script[0]));
+}
+
+// the destructor stops a running source
+void testDestructor() {
+    std::atomic<int> calls(0);
+    {
+        auto source = SensorSource::createScripted(makeScript(20, 10000000000), true);
+        source->start([&](const Event &) { calls++; });
+    }
+    const int callsAtDestruction = calls;
+    std::this_thread::sleep_for(std::chrono::milliseconds(20));
+    CHECK(calls == callsAtDestruction);
+}
+}
+
+int main() {
+    testFast();
+    testRealTime();
+    testStop();
+    testDestructor();
+    std::printf("OK\n");
+    return 0;
+}
@@ -0,0 +1,118 @@
+// Throughput of the recorder's sensor queue: the WriterQueue (SpscRing)
+// compared to the previous design, one heap-allocated task per sample on a
+// mutex-protected queue, as with accelerated::Processor::enqueue.
+// Usage: spsc_ring_benchmark [samples]
+#include "writer_queue.hpp"
+
+#include <chrono>
+#include <condition_variable>
+#include <cstdio>
+#include <cstdlib>
+#include <deque>
+#include <functional>
+#include <mutex>
+#include <thread>
+
+namespace {
+// same size as ImuSample
+struct Sample {
+    int type;
+    double t;
+    double val[3], bias[3];
+    int dimensions;
+};
+
+typedef std::chrono::steady_clock Clock;
+
+double seconds(Clock::time_point start) {
+    return std::chrono::duration<double>(Clock::now() - start).count();
+}
+
+// batch > 1 pushes like addImuBatch, with one lock and notify per batch
+double benchmarkWriterQueue(std::size_t n, std::size_t batch, double &checksum) {
+    Notifier wakeup;
+    WriterQueue<Sample> queue(4096, wakeup);
+    queue.lossless = true;
+    std::atomic<bool> done { false };
+    double sum = 0;
+    const auto start = Clock::now();
+    std::thread writer([&]() {
+        while (true) {
+            const bool stopping = done.load();
+            std::size_t m = queue.drain([&](const Sample &s) { sum += s.t; });
+            if (m == 0) {
+                if (stopping) break;
+                wakeup.wait([&]() { return done || !queue.empty(); });
+            }
+        }
+    });
+    for (std::size_t i = 0; i < n; i += batch) {
+        {
+            std::lock_guard<std::mutex> lock(queue.producerMutex);
+            for (std::size_t j = i; j < i + batch && j < n; ++j)
+                queue.pushLocked(Sample { 0, double(j), { 1, 2, 3 }, {}, 3 });
+        }
+        queue.notify();
+    }
+    done = true;
+    wakeup.notify();
+    writer.join();
+    checksum = sum;
+    return seconds(start);
+}
+
+double benchmarkTaskQueue(std::size_t n, double &checksum) {
+    std::mutex mutex;
+    std::condition_variable condition;
+    std::deque<std::function<void()>> tasks;
+    bool done = false;
+    double sum = 0;
+    const auto start = Clock::now();
+    std::thread writer([&]() {
+        while (true) {
+            std::function<void()> task;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                condition.wait(lock, [&]() { return done || !tasks.empty(); });
+                if (tasks.empty()) break;
+                task = std::move(tasks.front());
+                tasks.pop_front();
+            }
+            task();
+        }
+    });
+    for (std::size_t i = 0; i < n; ++i) {
+        const Sample s { 0, double(i), { 1, 2, 3 }, {}, 3 };
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            tasks.emplace_back([&sum, s]() { sum += s.t; });
+        }
+        condition.notify_one();
+    }
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        done = true;
+    }
+    condition.notify_one();
+    writer.join();
+    checksum = sum;
+    return seconds(start);
+}
+}
+
+int main(int argc, char *argv[]) {
+    const std::size_t n = argc > 1 ? std::strtoul(argv[1], nullptr, 10) : 5000000;
+    double ringSum, batchSum, taskSum;
+    const double ring = benchmarkWriterQueue(n, 1, ringSum);
+    const double batch = benchmarkWriterQueue(n, 32, batchSum);
+    const double task = benchmarkTaskQueue(n, taskSum);
+    if (ringSum != taskSum || batchSum != taskSum) {
+        std::fprintf(stderr, "checksum mismatch\n");
+        return 1;
+    }
+    std::printf("%zu samples\n", n);
+    std::printf("WriterQueue:        %6.1f M samples/s (%.0f ns/sample)\n", n / ring * 1e-6, ring / n * 1e9);
+    std::printf("WriterQueue, 32:    %6.1f M samples/s (%.0f ns/sample)\n", n / batch * 1e-6, batch / n * 1e9);
+    std::printf("mutex + task deque: %6.1f M samples/s (%.0f ns/sample)\n", n / task * 1e-6, task / n * 1e9);
+    return 0;
+}
@@ -0,0 +1,179 @@
+// Stress test for SpscRing, WriterQueue and Notifier
+#include "spsc_ring.hpp"
+#include "writer_queue.hpp"
+#include "test_util.hpp"
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+namespace {
+constexpr std::size_t STRESS_ITEMS = 2000000;
+// a lost wakeup would hang the test instead of failing it
+constexpr std::chrono::seconds TIMEOUT(120);
+
+void startWatchdog() {
+    std::thread([]() {
+        std::this_thread::sleep_for(TIMEOUT);
+        std::fprintf(stderr, "timeout, lost wakeup?\n");
+        std::abort();
+    }).detach();
+}
+
+void testSingleThread() {
+    SpscRing<int> ring(5);
+    CHECK(ring.capacity() == 8);
+    CHECK(ring.empty());
+    for (int i = 0; i < 8; ++i) CHECK(ring.push(i));
+    CHECK(!ring.push(8));
+    CHECK(ring.overflows() == 1);
+    CHECK(ring.size() == 8);
+    CHECK(ring.highWaterMark() == 8);
+
+    int v;
+    CHECK(ring.pop(v) && v == 0);
+    std::vector<int> drained;
+    CHECK(ring.drain([&](int x) { drained.push_back(x); }, 3) == 3);
+    CHECK((drained == std::vector<int> { 1, 2, 3 }));
+    // wraps around
+    for (int i = 8; i < 12; ++i) CHECK(ring.push(i));
+    drained.clear();
+    CHECK(ring.drain([&](int x) { drained.push_back(x); }) == 8);
+    for (int i = 0; i < 8; ++i) CHECK(drained[i] == i + 4);
+    CHECK(ring.empty() && !ring.pop(v));
+}
+
+// the producer retries when the ring is full, so every item must arrive in order
+void testProducerConsumer() {
+    SpscRing<uint64_t> ring(64);
+    std::thread producer([&]() {
+        for (uint64_t i = 0; i < STRESS_ITEMS; ++i) {
+            while (!ring.push(i)) std::this_thread::yield();
+        }
+    });
+    uint64_t expected = 0;
+    int round = 0;
+    while (expected < STRESS_ITEMS) {
+        // alternate between single pops and partial drains
+        if (++round % 2 == 0) {
+            uint64_t v;
+            if (ring.pop(v)) CHECK(v == expected++);
+        } else {
+            ring.drain([&](uint64_t v) { CHECK(v == expected++); }, round % 7 + 1);
+        }
+        if (ring.empty()) std::this_thread::yield();
+    }
+    producer.join();
+    CHECK(ring.empty());
+    CHECK(ring.highWaterMark() <= ring.capacity());
+    std::printf("ring: %zu items in order, %zu retries\n", STRESS_ITEMS, ring.overflows());
+}
+
+struct Item {
+    int producer;
+    uint64_t seq, globalSeq;
+};
+
+/**
+ * Two producers push into a small lossless queue faster than the consumer
+ * drains it: nothing may be dropped, and the consumer must see the items in
+ * the order they were pushed, also across overflows
+ */
+void testLosslessWriterQueue() {
+    Notifier wakeup;
+    WriterQueue<Item> queue(8, wakeup);
+    queue.lossless = true;
+    std::atomic<int> producersDone { 0 };
+    // numbers the pushes across both producers
+    std::mutex orderMutex;
+    uint64_t globalSeq = 0;
+    const uint64_t perProducer = STRESS_ITEMS / 4;
+
+    std::vector<std::thread> producers;
+    for (int p = 0; p < 2; ++p) {
+        producers.emplace_back([&, p]() {
+            for (uint64_t i = 0; i < perProducer; ++i) {
+                std::lock_guard<std::mutex> order(orderMutex);
+                if (i % 3 == 0) {
+                    queue.push(Item { p, i, globalSeq++ });
+                } else {
+                    // batches, like addImuBatch
+                    {
+                        std::lock_guard<std::mutex> lock(queue.producerMutex);
+                        queue.pushLocked(Item { p, i, globalSeq++ });
+                    }
+                    queue.notify();
+                }
+            }
+            producersDone++;
+        });
+    }
+
+    uint64_t received = 0, nextGlobal = 0, nextSeq[2] = { 0, 0 };
+    while (true) {
+        const bool done = producersDone == 2;
+        std::size_t n = queue.drain([&](const Item &item) {
+            CHECK(item.globalSeq == nextGlobal++);
+            CHECK(item.seq == nextSeq[item.producer]++);
+            received++;
+        });
+        if (n == 0) {
+            if (done) break;
+            wakeup.wait([&]() { return producersDone == 2 || !queue.empty(); });
+        }
+    }
+    for (auto &t : producers) t.join();
+    CHECK(received == 2 * perProducer);
+    CHECK(queue.dropped() == 0);
+    CHECK(queue.empty());
+    std::printf("lossless queue: %llu items in order, %zu overflowed\n",
+        (unsigned long long)received, queue.overflows());
+}
+
+void testDroppingWriterQueue() {
+    Notifier wakeup;
+    WriterQueue<int> queue(4, wakeup);
+    for (int i = 0; i < 6; ++i) CHECK(queue.push(i) == (i < 4));
+    CHECK(queue.dropped() == 2 && queue.overflows() == 0);
+    std::vector<int> drained;
+    queue.drain([&](int x) { drained.push_back(x); });
+    CHECK((drained == std::vector<int> { 0, 1, 2, 3 }));
+}
+
+// ping-pong through two notifiers, any lost wakeup stalls the test
+void testNotifier() {
+    constexpr int ROUNDS = 200000;
+    Notifier toB, toA;
+    std::atomic<int> a { 0 }, b { 0 };
+    std::thread other([&]() {
+        for (int i = 1; i <= ROUNDS; ++i) {
+            toB.wait([&]() { return a.load() >= i; });
+            b = i;
+            toA.notify();
+        }
+    });
+    for (int i = 1; i <= ROUNDS; ++i) {
+        a = i;
+        toB.notify();
+        toA.wait([&]() { return b.load() >= i; });
+    }
+    other.join();
+    std::printf("notifier: %d round trips\n", ROUNDS);
+}
+}
+
+int main() {
+    startWatchdog();
+    testSingleThread();
+    testProducerConsumer();
+    testDroppingWriterQueue();
+    testLosslessWriterQueue();
+    testNotifier();
+    std::printf("OK\n");
+    return 0;
+}